@@ -0,0 +1,165 @@
+package benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Comparacao entre o envio de e-mails um a um, em pipeline (um quadro SEND_MESSAGE e uma resposta STATUS
+ * por e-mail), e o envio em lotes (um quadro SEND_BATCH e uma resposta BATCH_STATUS por lote), cujas
+ * gravacoes sao agrupadas pelo servidor (ver MailStorage.storeMessages).
+ * O servidor e iniciado em um processo filho (ver SessionLoadTest.startServer). Cada e-mail e enviado a
+ * alguns destinatarios fixos, de modo que o lote grave varias entradas na mesma caixa postal.
+ * Sintaxe: java benchmark/BatchSendBenchmark <port> <thread|virtual|nio> [messages] [batch-size] [addressees]
+ */
+public class BatchSendBenchmark {
+	private static final String USER = "batch@benchmark";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/BatchSendBenchmark <port> <thread|virtual|nio> [messages] [batch-size] [addressees]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		int addressees = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+		Process server = SessionLoadTest.startServer(port, mode, "256m");
+
+		try {
+			SessionLoadTest.waitForServer(port);
+
+			// aquecimento, descartado
+			sendSingle(port, batchSize, addressees);
+			sendBatched(port, batchSize, batchSize, addressees);
+
+			long singleNanos = sendSingle(port, messages, addressees);
+			long batchedNanos = sendBatched(port, messages, batchSize, addressees);
+
+			System.out.println("Mode: " + mode + ", messages: " + messages + ", batch size: " + batchSize
+				+ ", addressees: " + addressees);
+			report("single", messages, singleNanos);
+			report("batched", messages, batchedNanos);
+			System.out.printf("Speedup: %.1fx%n", (double) singleNanos / batchedNanos);
+		}
+		finally {
+			server.destroy();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Envia cada e-mail em seu proprio quadro SEND_MESSAGE, sem aguardar as respostas, que sao lidas ao fim
+	 */
+	private static long sendSingle(int port, int messages, int addressees) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(USER));
+			long start = System.nanoTime();
+
+			Thread writer = Thread.ofVirtual().start(() -> {
+				try {
+					for (int i = 0; i < messages; i++)
+						codec.writeFrame(Frame.SEND_MESSAGE, 2 + i, EMailMessageCodec.encode(buildMessage(i, addressees)));
+					codec.flush();
+				}
+				catch (IOException ex) {
+					System.out.println("Error writing to server: " + ex.getMessage());
+				}
+			});
+
+			for (int i = 0; i < messages; i++) {
+				Frame response = codec.readFrame();
+
+				if (response == null || response.getType() != Frame.STATUS || !response.getText().startsWith("E-mail sent"))
+					throw new IOException("Unexpected response: " + (response == null ? "connection closed" : response.getText()));
+			}
+
+			long elapsed = System.nanoTime() - start;
+			join(writer);
+			codec.sendFrame(Frame.LOGOFF, 2 + messages, new byte[0]);
+			return elapsed;
+		}
+	}
+
+	/**
+	 * Envia os e-mails em quadros SEND_BATCH de batchSize e-mails cada, conferindo a situacao de cada um
+	 */
+	private static long sendBatched(int port, int messages, int batchSize, int addressees) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(USER));
+			int batches = (messages + batchSize - 1) / batchSize;
+			long start = System.nanoTime();
+
+			Thread writer = Thread.ofVirtual().start(() -> {
+				try {
+					for (int batch = 0; batch < batches; batch++) {
+						List<EMailMessage> eMailMessages = new ArrayList<EMailMessage>();
+
+						for (int i = batch * batchSize; i < Math.min(messages, (batch + 1) * batchSize); i++)
+							eMailMessages.add(buildMessage(i, addressees));
+
+						codec.writeFrame(Frame.SEND_BATCH, 2 + batch, EMailMessageCodec.encodeBatch(eMailMessages));
+					}
+					codec.flush();
+				}
+				catch (IOException ex) {
+					System.out.println("Error writing to server: " + ex.getMessage());
+				}
+			});
+
+			for (int batch = 0; batch < batches; batch++) {
+				Frame response = codec.readFrame();
+
+				if (response == null || response.getType() != Frame.BATCH_STATUS)
+					throw new IOException("Unexpected response: " + (response == null ? "connection closed" : response.getText()));
+
+				for (String error : EMailMessageCodec.decodeBatchStatus(response.getPayload())) {
+					if (error != null)
+						throw new IOException("E-mail not saved: " + error);
+				}
+			}
+
+			long elapsed = System.nanoTime() - start;
+			join(writer);
+			codec.sendFrame(Frame.LOGOFF, 2 + batches, new byte[0]);
+			return elapsed;
+		}
+	}
+
+	private static void join(Thread writer) throws IOException {
+		try {
+			writer.join();
+		}
+		catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static EMailMessage buildMessage(int index, int addressees) {
+		StringBuilder addressee = new StringBuilder();
+
+		for (int i = 0; i < addressees; i++)
+			addressee.append(i == 0 ? "" : ";").append("batch").append(i).append("@benchmark");
+
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee(addressee.toString());
+		eMailMessage.setSubject("Batch benchmark " + index);
+		eMailMessage.setBody("Batch benchmark message " + index);
+		return eMailMessage;
+	}
+
+	private static void report(String label, int messages, long nanos) {
+		System.out.printf("%-8s %8.0f ms %10.0f messages/s%n", label, nanos / 1_000_000.0,
+			messages / (nanos / 1_000_000_000.0));
+	}
+}
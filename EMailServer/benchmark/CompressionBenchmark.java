@@ -0,0 +1,198 @@
+package benchmark;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.*;
+import client.Compression;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Comparacao do download de um anexo sem compressao (-Demail.compression=none no servidor) e com a
+ * compressao Deflate nos niveis 1, 6 e 9 (-Demail.compressionLevel, ver classe Compression).
+ * Para cada variante, o servidor e iniciado em um processo filho (ver SessionLoadTest.startServer), um
+ * e-mail com anexo do tamanho pedido e enviado uma unica vez, sem compressao, a um usuario novo a cada
+ * execucao, e entao baixado repetidas vezes apos a negociacao da compressao, descomprimindo cada quadro
+ * como o cliente. Sao medidos os bytes transmitidos (cabecalhos e conteudo dos quadros), a taxa de
+ * compressao, o tempo de CPU do servidor (via JMX) e do cliente (para descomprimir), e o tempo estimado de
+ * cada download em um enlace da velocidade escolhida (transmissao dos bytes somada a CPU de ambos os
+ * lados). O anexo pode ser texto de log (text), que comprime bem, ou bytes aleatorios (random), que o
+ * servidor acaba enviando sem compressao.
+ * Sintaxe: java benchmark/CompressionBenchmark <port> <thread|virtual|nio> [text|random] [attachment-MB] [downloads] [link-Mbit/s]
+ */
+public class CompressionBenchmark {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/CompressionBenchmark <port> <thread|virtual|nio> [text|random] [attachment-MB] [downloads] [link-Mbit/s]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		String content = args.length > 2 ? args[2] : "text";
+		int attachmentMegabytes = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		int downloads = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		int linkMegabits = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+		byte[] attachment = content.equals("random") ? randomAttachment(attachmentMegabytes) : logAttachment(attachmentMegabytes);
+
+		System.out.println("Mode: " + mode + ", attachment: " + content + ", " + attachmentMegabytes + " MB x " + downloads
+			+ " downloads, link: " + linkMegabits + " Mbit/s");
+		System.out.printf("  %-10s %12s %7s %16s %16s %16s%n", "variant", "wire KB", "ratio", "server CPU ms", "client CPU ms",
+			"est. time ms");
+
+		run(port, mode, "none", attachment, downloads, linkMegabits, "-Demail.compression=none");
+		for (int level : List.of(1, 6, 9))
+			run(port, mode, "deflate-" + level, attachment, downloads, linkMegabits, "-Demail.compressionLevel=" + level);
+
+		System.exit(0);
+	}
+
+	private static void run(int port, String mode, String variant, byte[] attachment, int downloads, int linkMegabits,
+			String option) throws Exception {
+		Process server = SessionLoadTest.startServer(port, mode, "256m", option);
+
+		try (JMXConnector jmx = SessionLoadTest.connectJmx(port + SessionLoadTest.JMX_PORT_OFFSET)) {
+			MBeanServerConnection connection = jmx.getMBeanServerConnection();
+			com.sun.management.OperatingSystemMXBean os = ManagementFactory.newPlatformMXBeanProxy(connection,
+				ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, com.sun.management.OperatingSystemMXBean.class);
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			ObjectName queue = new ObjectName("server:type=DeliveryQueue");
+
+			SessionLoadTest.waitForServer(port);
+
+			try (Socket socket = new Socket("localhost", port)) {
+				FrameCodec codec = new FrameCodec(socket);
+				Compression compression = new Compression();
+				String user = "compression" + Long.toHexString(System.currentTimeMillis()) + "@benchmark";
+				codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(user));
+
+				uploadAttachment(codec, user, attachment);
+
+				while ((Integer) connection.getAttribute(queue, "QueueDepth") > 0)
+					Thread.sleep(5);
+
+				negotiate(codec);
+				downloadOnce(codec, compression, 0, attachment.length);
+
+				long wireBytes = 0;
+				long clientCpuStart = threads.getCurrentThreadCpuTime();
+				long serverCpuStart = os.getProcessCpuTime();
+
+				for (int i = 1; i <= downloads; i++)
+					wireBytes += downloadOnce(codec, compression, i, attachment.length);
+
+				long serverCpuNanos = os.getProcessCpuTime() - serverCpuStart;
+				long clientCpuNanos = threads.getCurrentThreadCpuTime() - clientCpuStart;
+				long perDownload = wireBytes / downloads;
+				double transferMillis = perDownload * 8.0 / (linkMegabits * 1_000_000.0) * 1000;
+				double cpuMillis = (serverCpuNanos + clientCpuNanos) / 1_000_000.0 / downloads;
+
+				System.out.printf("  %-10s %12d %7.2f %16.1f %16.1f %16.0f%n", variant, perDownload / 1024,
+					(double) attachment.length / perDownload, serverCpuNanos / 1_000_000.0 / downloads,
+					clientCpuNanos / 1_000_000.0 / downloads, transferMillis + cpuMillis);
+
+				compression.end();
+				codec.sendFrame(Frame.LOGOFF, 2, new byte[0]);
+			}
+		}
+		finally {
+			server.destroy();
+			server.waitFor();
+		}
+	}
+
+	/**
+	 * Linhas de log com data, nivel, caminho e tempo de resposta, semelhantes as de um servidor web
+	 */
+	private static byte[] logAttachment(int megabytes) {
+		Random random = new Random(42);
+		String[] levels = { "INFO", "INFO", "INFO", "WARN", "DEBUG", "ERROR" };
+		String[] paths = { "/inbox", "/inbox/list", "/message", "/attachment", "/login", "/logoff" };
+		ByteArrayOutputStream log = new ByteArrayOutputStream(megabytes * 1024 * 1024 + 256);
+
+		for (int line = 0; log.size() < megabytes * 1024 * 1024; line++) {
+			String text = String.format("2026-10-17T%02d:%02d:%02d.%03d %-5s [session-%d] GET %s?uid=%d served in %d ms%n",
+				line / 3600 % 24, line / 60 % 60, line % 60, random.nextInt(1000), levels[random.nextInt(levels.length)],
+				random.nextInt(500), paths[random.nextInt(paths.length)], random.nextInt(100000), random.nextInt(2000));
+			log.writeBytes(text.getBytes());
+		}
+
+		return Arrays.copyOf(log.toByteArray(), megabytes * 1024 * 1024);
+	}
+
+	private static byte[] randomAttachment(int megabytes) {
+		byte[] attachment = new byte[megabytes * 1024 * 1024];
+		new Random(42).nextBytes(attachment);
+		return attachment;
+	}
+
+	/**
+	 * Envia ao proprio usuario, sem compressao, um e-mail com o anexo transmitido em pedacos
+	 */
+	private static void uploadAttachment(FrameCodec codec, String user, byte[] attachment) throws IOException {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee(user);
+		eMailMessage.setSubject("Compression benchmark");
+		eMailMessage.setBody("Compression benchmark message");
+		eMailMessage.setAttachment(true);
+		eMailMessage.setAttachmentName("benchmark.log");
+
+		codec.writeFrame(Frame.SEND_MESSAGE, 3, EMailMessageCodec.encode(eMailMessage));
+
+		for (int sent = 0; sent < attachment.length; sent += Frame.CHUNK_SIZE)
+			codec.writeFrame(Frame.ATTACHMENT_CHUNK, 3, attachment, sent, Math.min(Frame.CHUNK_SIZE, attachment.length - sent));
+
+		codec.sendFrame(Frame.ATTACHMENT_END, 3, new byte[0]);
+
+		Frame response = codec.readFrame();
+		if (!response.getText().startsWith("E-mail sent"))
+			throw new IOException("Unexpected response: " + response.getText());
+	}
+
+	/**
+	 * Negocia a compressao, ignorando o aviso de nova mensagem (identificador 0) da entrega do anexo
+	 */
+	private static void negotiate(FrameCodec codec) throws IOException {
+		codec.sendFrame(Frame.COMPRESSION, 4, FrameCodec.text(Compression.DEFLATE));
+
+		Frame response;
+		while ((response = codec.readFrame()).getRequestId() == 0)
+			;
+
+		if (response.getType() != Frame.COMPRESSION)
+			throw new IOException("Unexpected response: " + response.getText());
+	}
+
+	/**
+	 * Baixa as mensagens do usuario, descomprimindo os quadros e descartando o conteudo do anexo, cujo
+	 * tamanho e conferido. Retorna a quantidade de bytes recebidos do socket.
+	 */
+	private static long downloadOnce(FrameCodec codec, Compression compression, int round, int attachmentSize) throws IOException {
+		codec.sendFrame(Frame.RECEIVE_MESSAGES, 100 + round, new byte[0]);
+		long wireBytes = 0;
+		long received = 0;
+		Frame frame;
+
+		do {
+			frame = codec.readFrame();
+			wireBytes += Frame.HEADER_SIZE + frame.getPayload().length;
+			frame = compression.decompress(frame);
+
+			if (frame.getType() == Frame.ERROR)
+				throw new IOException(frame.getText());
+			if (frame.getType() == Frame.ATTACHMENT_CHUNK)
+				received += frame.getPayload().length;
+		} while (frame.getType() != Frame.END_OF_MESSAGES);
+
+		if (received != attachmentSize)
+			throw new IOException("Received " + received + " of " + attachmentSize + " attachment bytes");
+
+		return wireBytes;
+	}
+}
@@ -0,0 +1,113 @@
+package benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Comparacao do tempo de confirmacao de um e-mail para muitos destinatarios com as entregas feitas na
+ * propria sessao do remetente (-Demail.delivery=sync) e pela fila de entrega (ver DeliveryQueue).
+ * Para cada variante, o servidor e iniciado em um processo filho (ver SessionLoadTest.startServer) e os
+ * e-mails sao enviados um a um, medindo o tempo ate a confirmacao de cada. Em seguida, as metricas da fila
+ * sao consultadas via JMX ate que todas as entregas terminem, informando o tempo ate a fila esvaziar e o
+ * atraso das entregas.
+ * Sintaxe: java benchmark/DeliveryBenchmark <port> <thread|virtual|nio> [messages] [addressees]
+ */
+public class DeliveryBenchmark {
+	private static final String USER = "delivery@benchmark";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/DeliveryBenchmark <port> <thread|virtual|nio> [messages] [addressees]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		int addressees = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+		System.out.println("Mode: " + mode + ", messages: " + messages + ", addressees: " + addressees);
+
+		for (String delivery : List.of("sync", "queue"))
+			run(port, mode, delivery, messages, addressees);
+
+		System.exit(0);
+	}
+
+	private static void run(int port, String mode, String delivery, int messages, int addressees) throws Exception {
+		Process server = SessionLoadTest.startServer(port, mode, "256m", "-Demail.delivery=" + delivery);
+
+		try (JMXConnector jmx = SessionLoadTest.connectJmx(port + SessionLoadTest.JMX_PORT_OFFSET)) {
+			MBeanServerConnection connection = jmx.getMBeanServerConnection();
+			ObjectName queue = new ObjectName("server:type=DeliveryQueue");
+			SessionLoadTest.waitForServer(port);
+
+			long start = System.nanoTime();
+			long[] latencies = send(port, messages, addressees);
+			long sentNanos = System.nanoTime() - start;
+
+			while ((Integer) connection.getAttribute(queue, "QueueDepth") > 0)
+				Thread.sleep(5);
+
+			long deliveredNanos = System.nanoTime() - start;
+
+			System.out.printf("%-6s ack p50 %4d us, p99 %6d us, all acked in %5d ms, all delivered in %5d ms,"
+				+ " lag avg %.0f ms, max %d ms%n", delivery,
+				SessionLoadTest.percentile(latencies, 50), SessionLoadTest.percentile(latencies, 99),
+				sentNanos / 1_000_000, deliveredNanos / 1_000_000,
+				(Double) connection.getAttribute(queue, "AverageDeliveryLagMillis"),
+				(Long) connection.getAttribute(queue, "MaxDeliveryLagMillis"));
+		}
+		finally {
+			server.destroy();
+			server.waitFor();
+		}
+	}
+
+	/**
+	 * Envia cada e-mail somente apos a confirmacao do anterior, retornando os tempos de confirmacao em
+	 * microssegundos, ordenados
+	 */
+	private static long[] send(int port, int messages, int addressees) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(USER));
+			long[] latencies = new long[messages];
+
+			for (int i = 0; i < messages; i++) {
+				byte[] payload = EMailMessageCodec.encode(buildMessage(i, addressees));
+				long start = System.nanoTime();
+				codec.sendFrame(Frame.SEND_MESSAGE, 2 + i, payload);
+				Frame response = codec.readFrame();
+				latencies[i] = (System.nanoTime() - start) / 1_000;
+
+				if (response == null || !response.getText().startsWith("E-mail sent"))
+					throw new IOException("Unexpected response: " + (response == null ? "connection closed" : response.getText()));
+			}
+
+			codec.sendFrame(Frame.LOGOFF, 2 + messages, new byte[0]);
+			Arrays.sort(latencies);
+			return latencies;
+		}
+	}
+
+	private static EMailMessage buildMessage(int index, int addressees) {
+		StringBuilder addressee = new StringBuilder();
+
+		for (int i = 0; i < addressees; i++)
+			addressee.append(i == 0 ? "" : ";").append("delivery").append(i).append("@benchmark");
+
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee(addressee.toString());
+		eMailMessage.setSubject("Delivery benchmark " + index);
+		eMailMessage.setBody("Delivery benchmark message " + index);
+		return eMailMessage;
+	}
+}
@@ -0,0 +1,136 @@
+package benchmark;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Medicao do custo de CPU do servidor para servir o download de anexos.
+ * O servidor e iniciado em um processo filho (ver SessionLoadTest.startServer), no modo de execucao e no
+ * modo de download escolhidos: zerocopy (padrao do servidor, FileChannel.transferTo) ou buffered
+ * (-Demail.download=buffered, leitura do anexo para o heap). Um e-mail com anexo do tamanho pedido e
+ * enviado uma unica vez e entao baixado repetidas vezes, sendo medidos o tempo de CPU consumido pelo
+ * processo do servidor (via JMX) por GB servido, a vazao e a quantidade de coletas de lixo no servidor.
+ * Sintaxe: java benchmark/DownloadBenchmark <port> <thread|virtual|nio> <zerocopy|buffered> [attachment-MB] [downloads]
+ */
+public class DownloadBenchmark {
+	private static final String USER = "download@benchmark";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Syntax: java benchmark/DownloadBenchmark <port> <thread|virtual|nio> <zerocopy|buffered> [attachment-MB] [downloads]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		String download = args[2];
+		int attachmentMegabytes = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		int downloads = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+		Process server = SessionLoadTest.startServer(port, mode, "256m", "-Demail.download=" + download);
+
+		try (JMXConnector jmx = SessionLoadTest.connectJmx(port + SessionLoadTest.JMX_PORT_OFFSET)) {
+			MBeanServerConnection connection = jmx.getMBeanServerConnection();
+			com.sun.management.OperatingSystemMXBean os = ManagementFactory.newPlatformMXBeanProxy(connection,
+				ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, com.sun.management.OperatingSystemMXBean.class);
+
+			SessionLoadTest.waitForServer(port);
+
+			try (Socket socket = new Socket("localhost", port)) {
+				FrameCodec codec = new FrameCodec(socket);
+				codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(USER));
+				long attachmentSize = (long) attachmentMegabytes * 1024 * 1024;
+
+				uploadAttachment(codec, attachmentSize);
+				downloadOnce(codec, 0);
+
+				long collections = gcCount(connection);
+				long cpuStart = os.getProcessCpuTime();
+				long start = System.nanoTime();
+				long served = 0;
+
+				for (int i = 1; i <= downloads; i++)
+					served += downloadOnce(codec, i);
+
+				long wallNanos = System.nanoTime() - start;
+				long cpuNanos = os.getProcessCpuTime() - cpuStart;
+				double gigabytes = served / (1024.0 * 1024 * 1024);
+
+				System.out.println("Mode: " + mode + ", download: " + download + ", attachment: " + attachmentMegabytes
+					+ " MB x " + downloads + " downloads");
+				System.out.printf("Server CPU: %.0f ms per GB served%n", cpuNanos / 1_000_000.0 / gigabytes);
+				System.out.printf("Throughput: %.0f MB/s%n", served / (1024.0 * 1024) / (wallNanos / 1_000_000_000.0));
+				System.out.println("Server GC collections during downloads: " + (gcCount(connection) - collections));
+
+				codec.sendFrame(Frame.LOGOFF, 2, new byte[0]);
+			}
+		}
+		finally {
+			server.destroy();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Envia ao proprio usuario um e-mail cujo anexo, de conteudo arbitrario, e transmitido em pedacos
+	 */
+	private static void uploadAttachment(FrameCodec codec, long attachmentSize) throws IOException {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee(USER);
+		eMailMessage.setSubject("Download benchmark");
+		eMailMessage.setBody("Download benchmark message");
+		eMailMessage.setAttachment(true);
+		eMailMessage.setAttachmentName("benchmark.bin");
+
+		byte[] chunk = new byte[Frame.CHUNK_SIZE];
+		new Random(42).nextBytes(chunk);
+
+		codec.writeFrame(Frame.SEND_MESSAGE, 3, EMailMessageCodec.encode(eMailMessage));
+
+		for (long sent = 0; sent < attachmentSize; sent += chunk.length)
+			codec.writeFrame(Frame.ATTACHMENT_CHUNK, 3, chunk, 0, (int) Math.min(chunk.length, attachmentSize - sent));
+
+		codec.sendFrame(Frame.ATTACHMENT_END, 3, new byte[0]);
+
+		Frame response = codec.readFrame();
+		if (!response.getText().startsWith("E-mail sent"))
+			throw new IOException("Unexpected response: " + response.getText());
+	}
+
+	/**
+	 * Baixa as mensagens do usuario descartando o conteudo dos anexos. Retorna a quantidade de bytes de
+	 * anexo recebidos.
+	 */
+	private static long downloadOnce(FrameCodec codec, int round) throws IOException {
+		codec.sendFrame(Frame.RECEIVE_MESSAGES, 100 + round, new byte[0]);
+		long received = 0;
+		Frame frame;
+
+		while ((frame = codec.readFrame()).getType() != Frame.END_OF_MESSAGES) {
+			if (frame.getType() == Frame.ERROR)
+				throw new IOException(frame.getText());
+			if (frame.getType() == Frame.ATTACHMENT_CHUNK)
+				received += frame.getPayload().length;
+		}
+
+		return received;
+	}
+
+	private static long gcCount(MBeanServerConnection connection) throws IOException {
+		long collections = 0;
+
+		for (GarbageCollectorMXBean collector : ManagementFactory.getPlatformMXBeans(connection, GarbageCollectorMXBean.class))
+			collections += collector.getCollectionCount();
+
+		return collections;
+	}
+}
@@ -0,0 +1,116 @@
+package benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import javax.management.remote.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Comparacao da vazao de e-mails aceitos com o journal gravando um fsync por mensagem
+ * (-Demail.journalGroupCommit=false) e com a gravacao em grupo (group commit), em que as mensagens aceitas
+ * ao mesmo tempo dividem um unico fsync (ver Journal).
+ * Para cada variante, o servidor e iniciado em um processo filho (ver SessionLoadTest.startServer) e varios
+ * remetentes concorrentes enviam e-mails em lock-step, cada um aguardando a confirmacao do anterior, de modo
+ * que cada confirmacao espere o fsync de sua mensagem. Ao fim, a quantidade de fsyncs e a media de registros
+ * por fsync sao consultadas via JMX.
+ * Sintaxe: java benchmark/JournalBenchmark <port> <thread|virtual|nio> [senders] [messages-per-sender]
+ */
+public class JournalBenchmark {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/JournalBenchmark <port> <thread|virtual|nio> [senders] [messages-per-sender]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		int senders = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+		int messages = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+		System.out.println("Mode: " + mode + ", senders: " + senders + ", messages per sender: " + messages);
+
+		for (boolean groupCommit : List.of(false, true))
+			run(port, mode, groupCommit, senders, messages);
+
+		System.exit(0);
+	}
+
+	private static void run(int port, String mode, boolean groupCommit, int senders, int messages) throws Exception {
+		Process server = SessionLoadTest.startServer(port, mode, "256m", "-Demail.journalGroupCommit=" + groupCommit);
+
+		try (JMXConnector jmx = SessionLoadTest.connectJmx(port + SessionLoadTest.JMX_PORT_OFFSET)) {
+			MBeanServerConnection connection = jmx.getMBeanServerConnection();
+			ObjectName queue = new ObjectName("server:type=DeliveryQueue");
+			SessionLoadTest.waitForServer(port);
+
+			ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+			List<Future<long[]>> results = new ArrayList<>();
+			long start = System.nanoTime();
+
+			for (int sender = 0; sender < senders; sender++) {
+				int index = sender;
+				results.add(executor.submit(() -> send(port, index, messages)));
+			}
+
+			long[] latencies = new long[senders * messages];
+
+			for (int sender = 0; sender < senders; sender++)
+				System.arraycopy(results.get(sender).get(), 0, latencies, sender * messages, messages);
+
+			long elapsed = System.nanoTime() - start;
+			executor.shutdown();
+			Arrays.sort(latencies);
+
+			System.out.printf("%-12s %8.0f messages/s, ack p50 %5d us, p99 %6d us, %6d fsyncs, %.1f records/fsync%n",
+				groupCommit ? "group commit" : "one fsync", latencies.length / (elapsed / 1_000_000_000.0),
+				SessionLoadTest.percentile(latencies, 50), SessionLoadTest.percentile(latencies, 99),
+				(Long) connection.getAttribute(queue, "JournalCommits"),
+				(Double) connection.getAttribute(queue, "AverageCommitSize"));
+		}
+		finally {
+			server.destroy();
+			server.waitFor();
+		}
+	}
+
+	/**
+	 * Envia os e-mails de um remetente, cada um somente apos a confirmacao do anterior, retornando os tempos
+	 * de confirmacao em microssegundos
+	 */
+	private static long[] send(int port, int sender, int messages) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			String user = "journal" + sender + "@benchmark";
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(user));
+			long[] latencies = new long[messages];
+
+			for (int i = 0; i < messages; i++) {
+				byte[] payload = EMailMessageCodec.encode(buildMessage(user, i));
+				long start = System.nanoTime();
+				codec.sendFrame(Frame.SEND_MESSAGE, 2 + i, payload);
+				Frame response = codec.readFrame();
+				latencies[i] = (System.nanoTime() - start) / 1_000;
+
+				if (response == null || !response.getText().startsWith("E-mail sent"))
+					throw new IOException("Unexpected response: " + (response == null ? "connection closed" : response.getText()));
+			}
+
+			codec.sendFrame(Frame.LOGOFF, 2 + messages, new byte[0]);
+			return latencies;
+		}
+	}
+
+	private static EMailMessage buildMessage(String user, int index) {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee(user);
+		eMailMessage.setSubject("Journal benchmark " + index);
+		eMailMessage.setBody("Journal benchmark message " + index);
+		return eMailMessage;
+	}
+}
@@ -0,0 +1,315 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+import client.EMailMessage;
+import client.HeadlessClient;
+
+/**
+ * Gerador de carga que simula muitos usuarios simultaneos contra um servidor ja em execucao, cada um com
+ * a sua conexao, por meio do cliente sem terminal (ver classe HeadlessClient).
+ * Cada usuario executa em uma thread virtual: conecta e faz login (no maximo MAX_CONCURRENT_CONNECTS ao
+ * mesmo tempo, para nao estourar a fila de conexoes do servidor) e, quando todos estao logados, repete
+ * ate o fim da duracao escolhida um ciclo de espera (think time, com distribuicao exponencial em torno da
+ * media informada) seguida de uma operacao: o envio de um e-mail a outro usuario sorteado, com a
+ * probabilidade informada, ou o download das mensagens novas de sua caixa postal. Uma fracao dos e-mails
+ * leva um anexo do tamanho escolhido, com conteudo diferente a cada envio. Ao fim, cada usuario faz logoff.
+ * Cada usuario aguarda o resultado de sua operacao antes da seguinte, como um usuario real. Sao impressas,
+ * por operacao, a quantidade concluida, os erros, a vazao e os percentis da latencia (do envio do comando
+ * a sua resposta). Os usuarios de cada execucao tem nomes novos, para que nao baixem mensagens de
+ * execucoes anteriores.
+ * Sintaxe: java benchmark/LoadGenerator <host> <port> <users> [duration-s] [send-%] [body-bytes] [attachment-KB] [attachment-%] [think-ms]
+ */
+public class LoadGenerator {
+	private static final int MAX_CONCURRENT_CONNECTS = 50;
+	private static final long RESPONSE_TIMEOUT_SECONDS = 60;
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Syntax: java benchmark/LoadGenerator <host> <port> <users> [duration-s] [send-%] [body-bytes] [attachment-KB] [attachment-%] [think-ms]");
+			System.exit(0);
+		}
+
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int users = Integer.parseInt(args[2]);
+		int durationSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+		int sendPercent = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+		int bodyBytes = args.length > 5 ? Integer.parseInt(args[5]) : 1024;
+		int attachmentKilobytes = args.length > 6 ? Integer.parseInt(args[6]) : 64;
+		int attachmentPercent = args.length > 7 ? Integer.parseInt(args[7]) : 10;
+		long thinkMillis = args.length > 8 ? Long.parseLong(args[8]) : 1000;
+
+		System.out.println("Users: " + users + ", duration: " + durationSeconds + " s, sends: " + sendPercent + "%, body: "
+			+ bodyBytes + " bytes, attachment: " + attachmentKilobytes + " KB in " + attachmentPercent + "% of the e-mails, think time: "
+			+ thinkMillis + " ms");
+
+		Workload workload = new Workload("load" + Long.toHexString(System.currentTimeMillis()) + "-", users, sendPercent,
+			"Load generator message\n" + "x".repeat(Math.max(0, bodyBytes - 23)), attachmentKilobytes * 1024, attachmentPercent,
+			thinkMillis);
+		Semaphore connects = new Semaphore(MAX_CONCURRENT_CONNECTS);
+		CountDownLatch loggedIn = new CountDownLatch(users);
+		CountDownLatch started = new CountDownLatch(1);
+		List<User> simulated = new ArrayList<User>(users);
+		List<Thread> threads = new ArrayList<Thread>(users);
+
+		long connectStart = System.nanoTime();
+
+		for (int i = 0; i < users; i++) {
+			User user = new User(workload, i);
+			simulated.add(user);
+			threads.add(Thread.ofVirtual().start(() -> user.run(host, port, connects, loggedIn, started)));
+		}
+
+		loggedIn.await();
+		System.out.printf("Logged in: %d ms%n", (System.nanoTime() - connectStart) / 1_000_000);
+
+		long start = System.nanoTime();
+		workload.deadline = start + durationSeconds * 1_000_000_000L;
+		started.countDown();
+
+		for (Thread thread : threads)
+			thread.join();
+
+		double elapsedSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+		Map<String, Stats> totals = new LinkedHashMap<>();
+		long receivedMessages = 0;
+		long receivedBytes = 0;
+
+		for (User user : simulated) {
+			for (Map.Entry<String, Stats> entry : user.stats.entrySet())
+				totals.computeIfAbsent(entry.getKey(), name -> new Stats()).merge(entry.getValue());
+
+			receivedMessages += user.receivedMessages;
+			receivedBytes += user.receivedBytes;
+		}
+
+		System.out.printf("  %-10s %9s %7s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "ops/s", "p50 ms",
+			"p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+		for (Map.Entry<String, Stats> entry : totals.entrySet()) {
+			Stats stats = entry.getValue();
+			long[] latencies = stats.sorted();
+			String rate = entry.getKey().equals("login") || entry.getKey().equals("logoff") ? "-" : String.format("%.1f", latencies.length / elapsedSeconds);
+
+			System.out.printf("  %-10s %9d %7d %9s", entry.getKey(), latencies.length, stats.errors, rate);
+			for (double percentile : PERCENTILES)
+				System.out.printf(" %9.2f", percentile(latencies, percentile) / 1000.0);
+			System.out.printf(" %9.2f%n", latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1000.0);
+		}
+
+		System.out.printf("Received: %d e-mails, %.1f MB%n", receivedMessages, receivedBytes / (1024.0 * 1024));
+
+		if (workload.firstError.get() != null)
+			System.out.println("First error: " + workload.firstError.get());
+
+		System.exit(0);
+	}
+
+	/**
+	 * Retorna o percentil (em microssegundos) de latencias ja ordenadas, ou 0 caso nao haja nenhuma
+	 */
+	static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+
+		return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile / 100) - 1))];
+	}
+
+	/**
+	 * Parametros da carga, compartilhados por todos os usuarios simulados
+	 */
+	private static class Workload {
+		private String prefix;
+		private int users;
+		private int sendPercent;
+		private String body;
+		private byte[] attachment;
+		private int attachmentPercent;
+		private long thinkMillis;
+		private volatile long deadline;
+		private AtomicLong sequence = new AtomicLong();
+		private AtomicReference<String> firstError = new AtomicReference<>();
+
+		Workload(String prefix, int users, int sendPercent, String body, int attachmentSize, int attachmentPercent, long thinkMillis) {
+			this.prefix = prefix;
+			this.users = users;
+			this.sendPercent = sendPercent;
+			this.body = body;
+			this.attachment = new byte[attachmentSize];
+			this.attachmentPercent = attachmentPercent;
+			this.thinkMillis = thinkMillis;
+			new Random(42).nextBytes(attachment);
+		}
+
+		String userEmail(int user) {
+			return prefix + user + "@benchmark";
+		}
+
+		/**
+		 * Monta um e-mail para um usuario sorteado; o anexo, quando houver, comeca pelo numero do envio, para
+		 * que o servidor nao o reconheca como um anexo que ja possui
+		 */
+		EMailMessage buildMessage(Random random) {
+			long sequence = this.sequence.incrementAndGet();
+			EMailMessage eMailMessage = new EMailMessage();
+			eMailMessage.setAddressee(userEmail(random.nextInt(users)));
+			eMailMessage.setSubject("Load generator " + sequence);
+			eMailMessage.setBody(body);
+
+			boolean withAttachment = attachment.length > 0 && random.nextInt(100) < attachmentPercent;
+			eMailMessage.setAttachment(withAttachment);
+			eMailMessage.setAttachmentName(withAttachment ? "attachment-" + sequence + ".bin" : "");
+
+			if (withAttachment) {
+				byte[] content = attachment.clone();
+				for (int i = 0; i < Long.BYTES && i < content.length; i++)
+					content[i] = (byte) (sequence >>> (8 * i));
+				eMailMessage.setAttachmentContent(content);
+			}
+
+			return eMailMessage;
+		}
+	}
+
+	/**
+	 * Usuario simulado, com sua conexao e suas estatisticas, lidas pela thread principal apos o fim da
+	 * thread do usuario
+	 */
+	private static class User {
+		private Workload workload;
+		private int index;
+		private Map<String, Stats> stats = new LinkedHashMap<>();
+		private long receivedMessages;
+		private long receivedBytes;
+
+		User(Workload workload, int index) {
+			this.workload = workload;
+			this.index = index;
+			stats.put("login", new Stats());
+			stats.put("send", new Stats());
+			stats.put("receive", new Stats());
+			stats.put("logoff", new Stats());
+		}
+
+		void run(String host, int port, Semaphore connects, CountDownLatch loggedIn, CountDownLatch started) {
+			Random random = new Random(index);
+			HeadlessClient client = null;
+
+			try {
+				connects.acquire();
+				long start = System.nanoTime();
+
+				try {
+					client = HeadlessClient.connect(host, port);
+					client.login(workload.userEmail(index)).get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+					stats.get("login").add((System.nanoTime() - start) / 1000);
+				}
+				catch (IOException | ExecutionException | TimeoutException ex) {
+					error("login", ex);
+				}
+				finally {
+					connects.release();
+					loggedIn.countDown();
+				}
+
+				started.await();
+				HeadlessClient connection = client;
+
+				while (connection != null && System.nanoTime() < workload.deadline) {
+					think(random);
+
+					if (System.nanoTime() >= workload.deadline)
+						break;
+
+					if (random.nextInt(100) < workload.sendPercent) {
+						EMailMessage eMailMessage = workload.buildMessage(random);
+						measure("send", () -> connection.send(eMailMessage));
+					}
+					else {
+						List<EMailMessage> messages = measure("receive", connection::receive);
+
+						for (EMailMessage eMailMessage : messages == null ? List.<EMailMessage>of() : messages) {
+							receivedMessages++;
+							receivedBytes += eMailMessage.getBody().length()
+								+ (eMailMessage.getAttachmentContent() == null ? 0 : eMailMessage.getAttachmentContent().length);
+						}
+					}
+				}
+
+				if (connection != null)
+					measure("logoff", connection::logoff);
+			}
+			catch (InterruptedException ex) {
+				error("logoff", ex);
+			}
+		}
+
+		/**
+		 * Emite o comando de uma operacao e aguarda seu resultado, registrando sua latencia, desde antes da
+		 * escrita do comando (que, no envio, inclui o upload do anexo), ou o erro. Retorna o resultado, ou
+		 * null em caso de erro.
+		 */
+		private <T> T measure(String operation, Supplier<CompletableFuture<T>> command) throws InterruptedException {
+			long start = System.nanoTime();
+
+			try {
+				T value = command.get().get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				stats.get(operation).add((System.nanoTime() - start) / 1000);
+				return value;
+			}
+			catch (ExecutionException | TimeoutException ex) {
+				error(operation, ex);
+				return null;
+			}
+		}
+
+		private void think(Random random) throws InterruptedException {
+			if (workload.thinkMillis <= 0)
+				return;
+
+			long pause = (long) (-workload.thinkMillis * Math.log(1 - random.nextDouble()));
+			Thread.sleep(Math.min(pause, Math.max(0, (workload.deadline - System.nanoTime()) / 1_000_000)));
+		}
+
+		private void error(String operation, Exception ex) {
+			Stats operationStats = stats.get(operation);
+			if (operationStats != null)
+				operationStats.errors++;
+
+			Throwable cause = ex instanceof ExecutionException && ex.getCause() != null ? ex.getCause() : ex;
+			workload.firstError.compareAndSet(null, operation + ": " + cause);
+		}
+	}
+
+	/**
+	 * Latencias (em microssegundos) e erros de uma operacao
+	 */
+	private static class Stats {
+		private long[] latencies = new long[64];
+		private int count;
+		private int errors;
+
+		void add(long latency) {
+			if (count == latencies.length)
+				latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = latency;
+		}
+
+		void merge(Stats other) {
+			for (int i = 0; i < other.count; i++)
+				add(other.latencies[i]);
+			errors += other.errors;
+		}
+
+		long[] sorted() {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
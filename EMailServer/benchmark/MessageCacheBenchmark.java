@@ -0,0 +1,145 @@
+package benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Comparacao do tempo de download e listagem de caixas postais muito acessadas sem o cache de mensagens
+ * (-Demail.messageCacheMB=0) e com o cache do tamanho escolhido (ver MessageCache).
+ * Para cada variante, o servidor e iniciado em um processo filho (ver SessionLoadTest.startServer) e um
+ * remetente envia os e-mails para todas as caixas postais, com os destinatarios desconectados, de modo que
+ * o cache comece vazio (as caixas postais de cada execucao tem nomes novos). Em seguida, a cada rodada,
+ * cada destinatario faz login, baixa todas as suas mensagens (/receiveMessages desde o inicio) e lista a
+ * caixa postal (/listMessages). Ao fim, as estatisticas do cache (acertos, faltas e descartes) sao
+ * consultadas via JMX, para dimensiona-lo.
+ * Sintaxe: java benchmark/MessageCacheBenchmark <port> <thread|virtual|nio> [mailboxes] [messages] [rounds] [cache-MB]
+ */
+public class MessageCacheBenchmark {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/MessageCacheBenchmark <port> <thread|virtual|nio> [mailboxes] [messages] [rounds] [cache-MB]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		int mailboxes = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int messages = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+		int cacheMegabytes = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+
+		System.out.println("Mode: " + mode + ", mailboxes: " + mailboxes + ", messages per mailbox: " + messages
+			+ ", rounds: " + rounds);
+
+		for (int megabytes : List.of(0, cacheMegabytes))
+			run(port, mode, megabytes, mailboxes, messages, rounds);
+
+		System.exit(0);
+	}
+
+	private static void run(int port, String mode, int cacheMegabytes, int mailboxes, int messages, int rounds) throws Exception {
+		Process server = SessionLoadTest.startServer(port, mode, "512m", "-Demail.messageCacheMB=" + cacheMegabytes);
+
+		try (JMXConnector jmx = SessionLoadTest.connectJmx(port + SessionLoadTest.JMX_PORT_OFFSET)) {
+			MBeanServerConnection connection = jmx.getMBeanServerConnection();
+			ObjectName queue = new ObjectName("server:type=DeliveryQueue");
+			ObjectName cache = new ObjectName("server:type=MessageCache");
+			SessionLoadTest.waitForServer(port);
+
+			String prefix = "cache" + Long.toHexString(System.currentTimeMillis()) + "-";
+			populate(port, prefix, mailboxes, messages);
+
+			while ((Integer) connection.getAttribute(queue, "QueueDepth") > 0)
+				Thread.sleep(5);
+
+			System.out.println("Cache: " + cacheMegabytes + " MB");
+
+			for (int round = 1; round <= rounds; round++) {
+				long start = System.nanoTime();
+
+				for (int mailbox = 0; mailbox < mailboxes; mailbox++)
+					read(port, prefix + mailbox + "@benchmark", messages);
+
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("  round %d: %6d ms, %8.0f messages/s%n", round, elapsed / 1_000_000,
+					(double) mailboxes * messages / (elapsed / 1_000_000_000.0));
+			}
+
+			System.out.printf("  hits %d, misses %d, hit ratio %.2f, evictions %d, cached %d messages in %d KB%n",
+				(Long) connection.getAttribute(cache, "Hits"), (Long) connection.getAttribute(cache, "Misses"),
+				(Double) connection.getAttribute(cache, "HitRatio"), (Long) connection.getAttribute(cache, "Evictions"),
+				(Integer) connection.getAttribute(cache, "CachedMessages"),
+				(Long) connection.getAttribute(cache, "WeightBytes") / 1024);
+		}
+		finally {
+			server.destroy();
+			server.waitFor();
+		}
+	}
+
+	/**
+	 * Envia os e-mails, cada um para todas as caixas postais, aguardando a confirmacao de cada um
+	 */
+	private static void populate(int port, String prefix, int mailboxes, int messages) throws IOException {
+		StringBuilder addressees = new StringBuilder();
+
+		for (int mailbox = 0; mailbox < mailboxes; mailbox++)
+			addressees.append(mailbox == 0 ? "" : ";").append(prefix + mailbox + "@benchmark");
+
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text("sender@benchmark"));
+
+			for (int i = 0; i < messages; i++) {
+				EMailMessage eMailMessage = new EMailMessage();
+				eMailMessage.setAddressee(addressees.toString());
+				eMailMessage.setSubject("Cache benchmark " + i);
+				eMailMessage.setBody("Cache benchmark message " + i + "\n" + "x".repeat(2048));
+
+				codec.sendFrame(Frame.SEND_MESSAGE, 2 + i, EMailMessageCodec.encode(eMailMessage));
+				Frame response = codec.readFrame();
+
+				if (response == null || !response.getText().startsWith("E-mail sent"))
+					throw new IOException("Unexpected response: " + (response == null ? "connection closed" : response.getText()));
+			}
+
+			codec.sendFrame(Frame.LOGOFF, 2 + messages, new byte[0]);
+		}
+	}
+
+	/**
+	 * Baixa e lista todas as mensagens de uma caixa postal, conferindo a quantidade recebida
+	 */
+	private static void read(int port, String user, int messages) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(user));
+			codec.sendFrame(Frame.RECEIVE_MESSAGES, 2, new byte[0]);
+			codec.sendFrame(Frame.LIST_MESSAGES, 3, new byte[0]);
+			int received = 0;
+			int listed = 0;
+			Frame frame;
+
+			while ((frame = codec.readFrame()).getType() != Frame.END_OF_LIST) {
+				if (frame.getType() == Frame.ERROR)
+					throw new IOException(frame.getText());
+				if (frame.getType() == Frame.MESSAGE)
+					received++;
+				if (frame.getType() == Frame.MESSAGE_HEADER)
+					listed++;
+			}
+
+			if (received != messages || listed != messages)
+				throw new IOException(user + " received " + received + " and listed " + listed + " of " + messages);
+
+			codec.sendFrame(Frame.LOGOFF, 4, new byte[0]);
+		}
+	}
+}
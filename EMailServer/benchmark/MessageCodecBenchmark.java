@@ -0,0 +1,93 @@
+package benchmark;
+
+import java.util.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+
+/**
+ * Comparacao entre o formato compacto de EMailMessageCodec e a serializacao Java para o objeto de e-mail.
+ * Para cada perfil de mensagem (curta, com corpo longo e com anexo) sao medidos o tamanho do conteudo
+ * enviado no quadro e o tempo medio de codificacao e de decodificacao de cada formato. Antes das medicoes
+ * cada operacao e repetida por uma fase de aquecimento, para que o JIT ja tenha compilado os caminhos
+ * medidos.
+ * Sintaxe: java benchmark/MessageCodecBenchmark [iterations]
+ */
+public class MessageCodecBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		Map<String, EMailMessage> profiles = new LinkedHashMap<>();
+		profiles.put("small", buildMessage(64, 0));
+		profiles.put("large-body", buildMessage(16 * 1024, 0));
+		profiles.put("attachment", buildMessage(256, 64 * 1024));
+
+		System.out.printf("%-12s %-14s %10s %14s %14s%n", "profile", "codec", "bytes", "encode ns/op", "decode ns/op");
+
+		for (Map.Entry<String, EMailMessage> profile : profiles.entrySet()) {
+			EMailMessage eMailMessage = profile.getValue();
+			int rounds = profile.getKey().equals("small") ? iterations : Math.max(iterations / 20, 1);
+
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				measure(eMailMessage, true, rounds);
+				measure(eMailMessage, false, rounds);
+			}
+
+			report(profile.getKey(), "compact", measure(eMailMessage, true, rounds));
+			report(profile.getKey(), "serialization", measure(eMailMessage, false, rounds));
+		}
+	}
+
+	/**
+	 * Retorna o tamanho do conteudo codificado e os tempos medios, em nanossegundos, de codificacao e de
+	 * decodificacao
+	 */
+	private static long[] measure(EMailMessage eMailMessage, boolean compact, int rounds) throws Exception {
+		byte[] payload = null;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++)
+			payload = compact ? EMailMessageCodec.encodeCompact(eMailMessage) : EMailMessageCodec.serialize(eMailMessage);
+
+		long encodeNanos = System.nanoTime() - start;
+		int checksum = 0;
+		start = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++) {
+			EMailMessage decoded = compact ? EMailMessageCodec.decodeCompact(payload) : EMailMessageCodec.deserialize(payload);
+			checksum += decoded.getBody().length();
+		}
+
+		long decodeNanos = System.nanoTime() - start;
+		if (checksum != rounds * eMailMessage.getBody().length())
+			throw new IllegalStateException("Decoded message does not match the original");
+
+		return new long[] { payload.length, encodeNanos / rounds, decodeNanos / rounds };
+	}
+
+	private static void report(String profile, String codec, long[] result) {
+		System.out.printf("%-12s %-14s %10d %14d %14d%n", profile, codec, result[0], result[1], result[2]);
+	}
+
+	private static EMailMessage buildMessage(int bodySize, int attachmentSize) {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee("alice@example.com;bob@example.com");
+		eMailMessage.setSubject("Codec benchmark");
+
+		StringBuilder body = new StringBuilder(bodySize);
+		while (body.length() < bodySize)
+			body.append("Lorem ipsum dolor sit amet. ");
+		eMailMessage.setBody(body.substring(0, bodySize));
+
+		if (attachmentSize > 0) {
+			byte[] attachmentContent = new byte[attachmentSize];
+			new Random(42).nextBytes(attachmentContent);
+			eMailMessage.setAttachment(true);
+			eMailMessage.setAttachmentName("report.pdf");
+			eMailMessage.setAttachmentContent(attachmentContent);
+		}
+
+		return eMailMessage;
+	}
+}
@@ -0,0 +1,79 @@
+package benchmark;
+
+import java.util.*;
+import java.util.concurrent.*;
+import server.MessageIdGenerator;
+
+/**
+ * Teste de estresse do gerador de identificadores de mensagem (ver MessageIdGenerator): varias threads
+ * geram identificadores ao mesmo tempo, a partir de um unico gerador, e ao fim confere-se que os
+ * identificadores de cada thread sao estritamente crescentes e que nenhum se repete entre todas elas.
+ * Cada thread grava seus identificadores em um array proprio, pre-alocado, de modo que a medicao inclua
+ * apenas a geracao. A rodada e repetida para descartar o aquecimento da JVM, e o programa termina com
+ * codigo 1 caso encontre alguma colisao.
+ * Sintaxe: java benchmark/MessageIdStress [threads] [ids-per-thread] [rounds]
+ */
+public class MessageIdStress {
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int idsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		boolean collisions = false;
+
+		System.out.println("Threads: " + threads + ", ids per thread: " + idsPerThread);
+
+		for (int round = 1; round <= rounds; round++) {
+			MessageIdGenerator generator = new MessageIdGenerator(1);
+			long[][] ids = new long[threads][idsPerThread];
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> results = new ArrayList<>();
+
+			for (int thread = 0; thread < threads; thread++) {
+				long[] threadIds = ids[thread];
+
+				results.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < threadIds.length; i++)
+						threadIds[i] = generator.nextId();
+					return null;
+				}));
+			}
+
+			long startNanos = System.nanoTime();
+			start.countDown();
+			for (Future<?> result : results)
+				result.get();
+			long elapsed = System.nanoTime() - startNanos;
+			executor.shutdown();
+
+			int notIncreasing = 0;
+			for (long[] threadIds : ids) {
+				for (int i = 1; i < threadIds.length; i++) {
+					if (threadIds[i] <= threadIds[i - 1])
+						notIncreasing++;
+				}
+			}
+
+			long[] all = new long[threads * idsPerThread];
+			for (int thread = 0; thread < threads; thread++)
+				System.arraycopy(ids[thread], 0, all, thread * idsPerThread, idsPerThread);
+			Arrays.sort(all);
+
+			int duplicates = 0;
+			for (int i = 1; i < all.length; i++) {
+				if (all[i] == all[i - 1])
+					duplicates++;
+			}
+
+			long runAheadMillis = MessageIdGenerator.timestamp(all[all.length - 1]) - System.currentTimeMillis();
+			System.out.printf("Round %d: %,d ids in %d ms (%,.0f ids/s), duplicates: %d, not increasing: %d,"
+				+ " run ahead of the clock: %d ms%n", round, all.length, elapsed / 1_000_000,
+				all.length / (elapsed / 1_000_000_000.0), duplicates, notIncreasing, Math.max(0, runAheadMillis));
+
+			collisions |= duplicates > 0 || notIncreasing > 0;
+		}
+
+		System.exit(collisions ? 1 : 0);
+	}
+}
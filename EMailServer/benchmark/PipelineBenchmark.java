@@ -0,0 +1,219 @@
+package benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Comparacao entre o envio de e-mails em lock-step (cada comando aguarda a resposta do anterior) e o envio
+ * em pipeline (todos os comandos sao enviados sem aguardar e as respostas sao associadas pelo identificador
+ * do comando), sobre um enlace com latencia.
+ * O servidor e iniciado em um processo filho (ver SessionLoadTest.startServer) e as conexoes passam por um
+ * proxy local que atrasa cada sentido em metade da latencia informada, simulando o tempo de ida e volta
+ * (RTT) de uma rede remota. Em lock-step o envio de N e-mails custa ao menos N RTTs; em pipeline, cerca de
+ * um RTT mais o tempo de processamento no servidor.
+ * Sintaxe: java benchmark/PipelineBenchmark <port> <thread|virtual|nio> [messages] [rtt-ms]
+ */
+public class PipelineBenchmark {
+	private static final String USER = "pipeline@benchmark";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/PipelineBenchmark <port> <thread|virtual|nio> [messages] [rtt-ms]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int rttMillis = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+
+		Process server = SessionLoadTest.startServer(port, mode, "256m");
+
+		try (LatencyProxy proxy = new LatencyProxy(port, rttMillis / 2)) {
+			SessionLoadTest.waitForServer(port);
+
+			long lockStepNanos = sendLockStep(proxy.getPort(), messages);
+			long pipelinedNanos = sendPipelined(proxy.getPort(), messages);
+
+			System.out.println("Mode: " + mode + ", messages: " + messages + ", RTT: " + rttMillis + " ms");
+			report("lock-step", messages, lockStepNanos);
+			report("pipelined", messages, pipelinedNanos);
+			System.out.printf("Speedup: %.1fx%n", (double) lockStepNanos / pipelinedNanos);
+		}
+		finally {
+			server.destroy();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Envia cada e-mail somente apos receber a resposta do anterior
+	 */
+	private static long sendLockStep(int port, int messages) throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(USER));
+			long start = System.nanoTime();
+
+			for (int i = 0; i < messages; i++) {
+				codec.sendFrame(Frame.SEND_MESSAGE, 2 + i, EMailMessageCodec.encode(buildMessage(i)));
+				checkStatus(codec.readFrame(), 2 + i);
+			}
+
+			long elapsed = System.nanoTime() - start;
+			codec.sendFrame(Frame.LOGOFF, 2 + messages, new byte[0]);
+			return elapsed;
+		}
+	}
+
+	/**
+	 * Envia todos os e-mails de uma vez, por uma thread de escrita, enquanto as respostas sao lidas e
+	 * associadas ao seu comando pelo identificador
+	 */
+	private static long sendPipelined(int port, int messages) throws Exception {
+		try (Socket socket = new Socket("localhost", port)) {
+			FrameCodec codec = new FrameCodec(socket);
+			codec.sendFrame(Frame.LOGIN, 1, FrameCodec.text(USER));
+			Set<Integer> pending = ConcurrentHashMap.newKeySet();
+			long start = System.nanoTime();
+
+			Thread writer = Thread.ofVirtual().start(() -> {
+				try {
+					for (int i = 0; i < messages; i++) {
+						pending.add(2 + i);
+						codec.writeFrame(Frame.SEND_MESSAGE, 2 + i, EMailMessageCodec.encode(buildMessage(i)));
+					}
+					codec.flush();
+				}
+				catch (IOException ex) {
+					System.out.println("Error writing to server: " + ex.getMessage());
+				}
+			});
+
+			for (int i = 0; i < messages; i++) {
+				Frame response = codec.readFrame();
+				checkStatus(response, response.getRequestId());
+
+				if (!pending.remove(response.getRequestId()))
+					throw new IOException("Response to an unknown request: " + response.getRequestId());
+			}
+
+			long elapsed = System.nanoTime() - start;
+			writer.join();
+			codec.sendFrame(Frame.LOGOFF, 2 + messages, new byte[0]);
+			return elapsed;
+		}
+	}
+
+	private static void checkStatus(Frame response, int requestId) throws IOException {
+		if (response == null || response.getType() != Frame.STATUS || response.getRequestId() != requestId
+				|| !response.getText().startsWith("E-mail sent"))
+			throw new IOException("Unexpected response: " + (response == null ? "connection closed" : response.getText()));
+	}
+
+	private static EMailMessage buildMessage(int index) {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee(USER);
+		eMailMessage.setSubject("Pipeline benchmark " + index);
+		eMailMessage.setBody("Pipeline benchmark message " + index);
+		return eMailMessage;
+	}
+
+	private static void report(String label, int messages, long nanos) {
+		System.out.printf("%-10s %8.0f ms %10.0f messages/s%n", label, nanos / 1_000_000.0,
+			messages / (nanos / 1_000_000_000.0));
+	}
+
+	/**
+	 * Proxy TCP local que encaminha as conexoes para o servidor atrasando cada trecho de bytes, em cada
+	 * sentido, pelo atraso informado. Os trechos sao lidos assim que chegam e entregues na ordem, apos o
+	 * atraso, por outra thread, de modo que o atraso nao limita a vazao, como em um enlace real.
+	 */
+	private static class LatencyProxy implements Closeable {
+		private ServerSocket serverSocket;
+		private int targetPort;
+		private long delayNanos;
+
+		LatencyProxy(int targetPort, int delayMillis) throws IOException {
+			this.serverSocket = new ServerSocket(0);
+			this.targetPort = targetPort;
+			this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+
+			Thread.ofVirtual().start(this::accept);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		private void accept() {
+			try {
+				while (true) {
+					Socket client = serverSocket.accept();
+					Socket target = new Socket("localhost", targetPort);
+					client.setTcpNoDelay(true);
+					target.setTcpNoDelay(true);
+
+					pump(client, target);
+					pump(target, client);
+				}
+			}
+			catch (IOException ex) {
+				// proxy encerrado
+			}
+		}
+
+		private void pump(Socket from, Socket to) {
+			BlockingQueue<Object[]> inFlight = new LinkedBlockingQueue<>();
+
+			Thread.ofVirtual().start(() -> {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+
+				try (InputStream in = from.getInputStream()) {
+					while ((read = in.read(buffer)) != -1)
+						inFlight.put(new Object[] { System.nanoTime() + delayNanos, Arrays.copyOf(buffer, read) });
+				}
+				catch (IOException | InterruptedException ex) {
+					// conexao encerrada
+				}
+
+				inFlight.add(new Object[] { System.nanoTime() + delayNanos, null });
+			});
+
+			Thread.ofVirtual().start(() -> {
+				try {
+					OutputStream out = to.getOutputStream();
+
+					while (true) {
+						Object[] chunk = inFlight.take();
+						long wait = (long) chunk[0] - System.nanoTime();
+						if (wait > 0)
+							TimeUnit.NANOSECONDS.sleep(wait);
+
+						if (chunk[1] == null) {
+							to.shutdownOutput();
+							return;
+						}
+
+						out.write((byte[]) chunk[1]);
+					}
+				}
+				catch (IOException | InterruptedException ex) {
+					// conexao encerrada
+				}
+			});
+		}
+
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package benchmark;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Teste de carga das sessoes simultaneas do servidor de e-mail.
+ * O servidor e iniciado em um processo filho, com heap limitado (-Xmx) e no modo de execucao escolhido,
+ * e entao a quantidade pedida de sessoes e aberta: cada uma envia o quadro de login e permanece conectada,
+ * tal qual um cliente ocioso. Com todas as sessoes abertas, uma
+ * amostra delas envia uma mensagem de e-mail, confirmando que o servidor segue respondendo.
+ * Por fim, o heap ocupado pelo servidor apos uma coleta de lixo e o seu numero de threads de plataforma sao
+ * consultados via JMX, antes e depois da abertura das sessoes.
+ * Cada sessao deste lado e apenas um Socket com bytes pre-montados, para que o teste em si nao limite a
+ * quantidade de conexoes.
+ * Sintaxe: java benchmark/SessionLoadTest <port> <thread|virtual|nio> <sessions> [max-heap]
+ */
+public class SessionLoadTest {
+	static final int JMX_PORT_OFFSET = 1;
+	private static final int SAMPLE_SIZE = 100;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Syntax: java benchmark/SessionLoadTest <port> <thread|virtual|nio> <sessions> [max-heap]");
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String mode = args[1];
+		int sessions = Integer.parseInt(args[2]);
+		String maxHeap = args.length > 3 ? args[3] : "512m";
+
+		Process server = startServer(port, mode, maxHeap);
+
+		try (JMXConnector jmx = connectJmx(port + JMX_PORT_OFFSET)) {
+			MBeanServerConnection connection = jmx.getMBeanServerConnection();
+			MemoryMXBean memory = ManagementFactory.newPlatformMXBeanProxy(connection,
+				ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+			ThreadMXBean threads = ManagementFactory.newPlatformMXBeanProxy(connection,
+				ManagementFactory.THREAD_MXBEAN_NAME, ThreadMXBean.class);
+
+			waitForServer(port);
+			long baselineHeap = usedHeapAfterGc(memory);
+			int baselineThreads = threads.getThreadCount();
+
+			byte[] messageFrame = toBytes(FrameCodec.encode(Frame.SEND_MESSAGE, 1, EMailMessageCodec.encode(buildMessage())));
+			List<Socket> sockets = new ArrayList<>(sessions);
+			long start = System.nanoTime();
+
+			for (int i = 0; i < sessions; i++) {
+				try {
+					Socket socket = new Socket("localhost", port);
+					OutputStream outToServer = socket.getOutputStream();
+					outToServer.write(toBytes(FrameCodec.encode(Frame.LOGIN, 0, FrameCodec.text("load" + i + "@loadtest"))));
+					sockets.add(socket);
+				}
+				catch (IOException ex) {
+					if (server.isAlive())
+						throw ex;
+					throw new IOException("Server process exited with code " + server.exitValue() + " after " + i + " sessions");
+				}
+			}
+
+			long connectMillis = (System.nanoTime() - start) / 1_000_000;
+			long[] latencies = sendSample(sockets, messageFrame);
+
+			if (!server.isAlive())
+				throw new IOException("Server process exited with code " + server.exitValue());
+
+			long loadedHeap = usedHeapAfterGc(memory);
+			int loadedThreads = threads.getThreadCount();
+
+			System.out.println("Mode: " + mode + ", max heap: " + maxHeap);
+			System.out.println("Sessions opened: " + sessions + " in " + connectMillis + " ms");
+			System.out.println("Server heap after GC: " + toMegabytes(baselineHeap) + " MB idle, "
+				+ toMegabytes(loadedHeap) + " MB with all sessions ("
+				+ (loadedHeap - baselineHeap) / Math.max(1, sessions) + " bytes/session)");
+			System.out.println("Server platform threads: " + baselineThreads + " idle, " + loadedThreads + " with all sessions");
+			System.out.println("/sendMessage round-trip over " + latencies.length + " sessions: p50 "
+				+ percentile(latencies, 50) + " ms, p99 " + percentile(latencies, 99) + " ms");
+
+			byte[] logoffFrame = toBytes(FrameCodec.encode(Frame.LOGOFF, 2, new byte[0]));
+
+			for (Socket socket : sockets) {
+				socket.getOutputStream().write(logoffFrame);
+				socket.close();
+			}
+		}
+		finally {
+			server.destroy();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Inicia o servidor em um processo filho com o mesmo classpath deste teste, heap limitado e JMX local
+	 * habilitado na porta seguinte a do servidor. Caso o heap se esgote, o servidor termina de imediato
+	 * (ExitOnOutOfMemoryError), o que faz o teste falhar. Opcoes adicionais da JVM (como propriedades -D do
+	 * servidor) podem ser informadas ao final.
+	 */
+	static Process startServer(int port, String mode, String maxHeap, String... jvmOptions) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> command = new ArrayList<>(List.of(java, "-Xmx" + maxHeap, "-XX:+ExitOnOutOfMemoryError",
+			"-Dcom.sun.management.jmxremote.port=" + (port + JMX_PORT_OFFSET),
+			"-Dcom.sun.management.jmxremote.authenticate=false",
+			"-Dcom.sun.management.jmxremote.ssl=false"));
+		command.addAll(List.of(jvmOptions));
+		command.addAll(List.of("-cp", System.getProperty("java.class.path"), "server.EMailServer", String.valueOf(port), mode));
+
+		return new ProcessBuilder(command)
+			.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+			.redirectError(ProcessBuilder.Redirect.INHERIT)
+			.start();
+	}
+
+	static JMXConnector connectJmx(int jmxPort) throws Exception {
+		JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + jmxPort + "/jmxrmi");
+
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return JMXConnectorFactory.connect(url);
+			}
+			catch (IOException ex) {
+				if (attempt == 50)
+					throw ex;
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	/**
+	 * Aguarda ate que o servidor esteja aceitando conexoes (o agente JMX sobe antes do socket do servidor)
+	 */
+	static void waitForServer(int port) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try (Socket probe = new Socket("localhost", port)) {
+				probe.getOutputStream().write(toBytes(FrameCodec.encode(Frame.LOGOFF, 0, new byte[0])));
+				return;
+			}
+			catch (IOException ex) {
+				if (attempt == 50)
+					throw ex;
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	private static EMailMessage buildMessage() {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee("sink@loadtest");
+		eMailMessage.setSubject("Load test");
+		eMailMessage.setBody("Session load test message");
+		return eMailMessage;
+	}
+
+	static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Envia uma mensagem por cada sessao de uma amostra espalhada entre todas as sessoes abertas e mede o
+	 * tempo ate a confirmacao do servidor.
+	 */
+	private static long[] sendSample(List<Socket> sockets, byte[] messageFrame) throws Exception {
+		int sampleSize = Math.min(SAMPLE_SIZE, sockets.size());
+		long[] latencies = new long[sampleSize];
+
+		for (int i = 0; i < sampleSize; i++) {
+			Socket socket = sockets.get(i * (sockets.size() / sampleSize));
+			FrameCodec codec = new FrameCodec(socket);
+
+			long start = System.nanoTime();
+			socket.getOutputStream().write(messageFrame);
+
+			String response = codec.readFrame().getText();
+			latencies[i] = (System.nanoTime() - start) / 1_000_000;
+
+			if (!response.startsWith("E-mail sent"))
+				throw new IOException("Unexpected response: " + response);
+		}
+
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static long usedHeapAfterGc(MemoryMXBean memory) {
+		memory.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	static long percentile(long[] sorted, int percentile) {
+		return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+	}
+
+	static long toMegabytes(long bytes) {
+		return bytes / (1024 * 1024);
+	}
+}
@@ -0,0 +1,76 @@
+package client;
+
+import java.io.*;
+import java.security.*;
+import java.util.HexFormat;
+
+/**
+ * Classe responsavel pelo envio de um anexo em pedacos, compartilhada pelo cliente de console (WriteThread)
+ * e pelo cliente sem terminal (HeadlessClient).
+ * Antes do envio, o hash SHA-256 do anexo e calculado (ver hash) e enviado no objeto de e-mail, para que o
+ * servidor dispense a gravacao de um anexo que ja possua. Depois do objeto, o anexo e lido em pedacos de
+ * Frame.CHUNK_SIZE bytes, reaproveitando sempre o mesmo buffer, e cada pedaco e enviado em um quadro
+ * ATTACHMENT_CHUNK, seguidos de um quadro ATTACHMENT_END (ver writeChunks). Assim o anexo nunca e mantido
+ * inteiro em memoria, qualquer que seja o seu tamanho.
+ */
+public class AttachmentUpload {
+
+	/**
+	 * Escritor dos quadros do anexo, que pode comprimir seu conteudo (ver Compression.compress): retorna se
+	 * o quadro foi comprimido, de modo que os pedacos seguintes de um anexo que nao encolheu sejam enviados
+	 * sem tentar a compressao
+	 */
+	public interface ChunkWriter {
+		boolean write(byte type, int requestId, byte[] payload, int offset, int length, boolean compress) throws IOException;
+	}
+
+	/**
+	 * Calcula o hash SHA-256 do arquivo, em hexadecimal, lendo-o em pedacos no buffer informado
+	 */
+	public static String hash(String fileName, byte[] chunkBuffer) throws IOException {
+		try (InputStream attachment = new FileInputStream(fileName)) {
+			return hash(attachment, chunkBuffer);
+		}
+	}
+
+	/**
+	 * Calcula o hash SHA-256 de um anexo em memoria, em hexadecimal
+	 */
+	public static String hash(byte[] content) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+		}
+		catch (NoSuchAlgorithmException ex) {
+			return null;
+		}
+	}
+
+	private static String hash(InputStream attachment, byte[] chunkBuffer) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			int read;
+
+			while ((read = attachment.read(chunkBuffer)) != -1)
+				digest.update(chunkBuffer, 0, read);
+
+			return HexFormat.of().formatHex(digest.digest());
+		}
+		catch (NoSuchAlgorithmException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Escreve o anexo em quadros ATTACHMENT_CHUNK, lidos no buffer informado, seguidos do quadro
+	 * ATTACHMENT_END. Os pedacos sao comprimidos enquanto compress valer e a compressao compensar. Os quadros
+	 * nao sao descarregados aqui, e sim pelo chamador.
+	 */
+	public static void writeChunks(ChunkWriter writer, int requestId, InputStream attachment, byte[] chunkBuffer, boolean compress) throws IOException {
+		int read;
+
+		while ((read = attachment.readNBytes(chunkBuffer, 0, chunkBuffer.length)) > 0)
+			compress = writer.write(Frame.ATTACHMENT_CHUNK, requestId, chunkBuffer, 0, read, compress);
+
+		writer.write(Frame.ATTACHMENT_END, requestId, new byte[0], 0, 0, false);
+	}
+}
@@ -21,15 +21,58 @@ public class CommandReader {
         this.userInput = userInput;
     }
 
+    /**
+     * Retorna o nome do ultimo comando lido, sem seu argumento
+     */
+    public String getCommand() {
+        return this.userInput.trim().split("\\s+")[0];
+    }
+
+    /**
+     * Retorna o uid informado como argumento do ultimo comando lido, ou 0 caso nao tenha sido informado
+     */
+    public long getUid() {
+        String[] words = this.userInput.trim().split("\\s+");
+
+        if (words.length < 2)
+            return 0;
+
+        return Long.parseLong(words[1]);
+    }
+
+    /**
+     * Retorna o argumento do ultimo comando lido, ou uma String vazia caso nao tenha sido informado
+     */
+    public String getArgument() {
+        String[] words = this.userInput.trim().split("\\s+");
+
+        if (words.length < 2)
+            return "";
+
+        return words[1];
+    }
+
     /**
      * Verifica se o comando passado por parametro esta entre um dos aceitos, retornando true; ou false caso
-     * possua sintaxe diferente
+     * possua sintaxe diferente.
+     * Os comandos /fetchMessage e /fetchAttachment exigem o uid de uma mensagem listada por /listMessages,
+     * que por sua vez aceita opcionalmente o uid a partir do qual listar. O comando /push exige o modo de
+     * aviso de novas mensagens: off, header ou message.
      */
     public boolean isACommand(String command) {
-        if (command.equals("/sendMessage") || command.equals("/receiveMessages") || command.equals("/logoff"))
-            return true;
-        else 
-            return false;
+        String[] words = command.trim().split("\\s+");
+
+        if (words.length == 1)
+            return words[0].equals("/sendMessage") || words[0].equals("/sendBatch") || words[0].equals("/receiveMessages") || words[0].equals("/logoff")
+                || words[0].equals("/listMessages");
+
+        if (words.length == 2 && words[1].matches("\\d{1,18}"))
+            return words[0].equals("/listMessages") || words[0].equals("/fetchMessage") || words[0].equals("/fetchAttachment");
+
+        if (words.length == 2 && words[1].matches("off|header|message"))
+            return words[0].equals("/push");
+
+        return false;
     }
 
     /**
@@ -0,0 +1,162 @@
+package client;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Classe responsavel pela compressao (Deflate, de java.util.zip) do conteudo dos quadros, compartilhada pelo
+ * cliente e pelo servidor.
+ * A compressao e negociada logo apos o login: o cliente envia um quadro COMPRESSION com os modos que aceita
+ * (por enquanto apenas "deflate") e o servidor responde com um quadro COMPRESSION com o modo escolhido
+ * ("deflate" ou "none"). Um servidor anterior a compressao responde com um quadro ERROR, e a conexao segue
+ * sem compressao. Cada lado so passa a comprimir o que envia depois da negociacao, mas sempre aceita quadros
+ * comprimidos. Qualquer dos lados pode recusar a compressao iniciando com -Demail.compression=none.
+ * Um quadro comprimido tem o bit COMPRESSED acrescentado ao seu tipo, e seu conteudo e composto de:
+ * 	length (4 bytes) - tamanho do conteudo original
+ * 	data - conteudo original comprimido pelo Deflate, sem cabecalho zlib
+ * Sao comprimidos apenas os quadros que carregam objetos de e-mail (SEND_MESSAGE, SEND_BATCH e MESSAGE) e
+ * os pedacos de anexo (ATTACHMENT_CHUNK), cada pedaco de forma independente dos demais, e somente quando o
+ * conteudo tem ao menos THRESHOLD bytes (-Demail.compressionThreshold, por padrao 1024). Anexos cujo tipo
+ * ja e comprimido (ver COMPRESSED_EXTENSIONS) nao sao comprimidos, e um conteudo que nao encolha ao menos
+ * 1/8 e enviado sem compressao, assim como os pedacos seguintes do mesmo anexo, de modo que o custo de CPU
+ * nao se repita sem ganho.
+ * O nivel de compressao pode ser escolhido por -Demail.compressionLevel (de 1, mais rapido, a 9, menor).
+ * Cada instancia mantem seu proprio Deflater e Inflater, criados no primeiro uso e reaproveitados, e so
+ * pode ser usada por uma thread de cada vez (por exemplo, a thread de escrita do cliente ou a sessao do
+ * servidor); end libera a memoria nativa de ambos.
+ * Como atributos, possui:
+ * 	Deflater deflater - compressor do conteudo enviado
+ * 	Inflater inflater - descompressor do conteudo recebido
+ */
+public class Compression {
+	public static final String DEFLATE = "deflate";
+	public static final String NONE = "none";
+	public static final String NEGOTIATION = "Compression negotiation";
+	public static final String MODE = System.getProperty("email.compression", DEFLATE);
+	public static final int THRESHOLD = Integer.getInteger("email.compressionThreshold", 1024);
+	public static final int LEVEL = Integer.getInteger("email.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst",
+		"jar", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "ogg", "pdf", "docx", "xlsx", "pptx");
+	private static final int MAX_RATIO = 1032;
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	/**
+	 * Escolhe, entre os modos oferecidos pelo cliente (separados por virgula), o modo de compressao da
+	 * conexao
+	 */
+	public static String choose(String offered) {
+		if (MODE.equals(DEFLATE) && Arrays.asList(offered.split(",")).contains(DEFLATE))
+			return DEFLATE;
+
+		return NONE;
+	}
+
+	/**
+	 * Informa se vale a pena comprimir um anexo, pela extensao de seu nome: arquivos compactados, imagens,
+	 * audio, video e documentos que ja sao arquivos zip nao encolhem
+	 */
+	public static boolean isCompressible(String fileName) {
+		if (fileName == null)
+			return true;
+
+		int extension = fileName.lastIndexOf('.');
+		return extension < 0 || !COMPRESSED_EXTENSIONS.contains(fileName.substring(extension + 1).toLowerCase());
+	}
+
+	public static boolean isCompressed(Frame frame) {
+		return (frame.getType() & Frame.COMPRESSED) != 0;
+	}
+
+	/**
+	 * Comprime o trecho indicado do array como conteudo de um quadro comprimido. Retorna null caso o trecho
+	 * seja menor que THRESHOLD ou nao encolha ao menos 1/8, devendo entao ser enviado como esta.
+	 */
+	public byte[] compress(byte[] payload, int offset, int length) {
+		if (length < THRESHOLD)
+			return null;
+
+		if (deflater == null)
+			deflater = new Deflater(LEVEL, true);
+
+		byte[] compressed = new byte[Integer.BYTES + length - length / 8];
+		ByteBuffer.wrap(compressed).putInt(length);
+
+		deflater.reset();
+		deflater.setInput(payload, offset, length);
+		deflater.finish();
+
+		int size = Integer.BYTES;
+		while (!deflater.finished() && size < compressed.length)
+			size += deflater.deflate(compressed, size, compressed.length - size);
+
+		if (!deflater.finished())
+			return null;
+
+		return Arrays.copyOf(compressed, size);
+	}
+
+	/**
+	 * Retorna o quadro com o conteudo original, caso tenha chegado comprimido, ou o proprio quadro (ou null,
+	 * no fim da conexao), caso contrario. O tamanho original anunciado e limitado, como o de um objeto de
+	 * e-mail remontado de suas partes (ver classe MessageParts), a Frame.MAX_MESSAGE_SIZE.
+	 */
+	public Frame decompress(Frame frame) throws ProtocolException {
+		if (frame == null || !isCompressed(frame))
+			return frame;
+
+		byte[] payload = frame.getPayload();
+		if (payload.length < Integer.BYTES)
+			throw new ProtocolException("Truncated compressed frame");
+
+		int length = ByteBuffer.wrap(payload).getInt();
+		if (length < 0 || length > Frame.MAX_MESSAGE_SIZE || length > (long) (payload.length - Integer.BYTES) * MAX_RATIO + 64)
+			throw new ProtocolException("Invalid compressed frame length: " + length);
+
+		if (inflater == null)
+			inflater = new Inflater(true);
+
+		byte[] original = new byte[length];
+		inflater.reset();
+		inflater.setInput(payload, Integer.BYTES, payload.length - Integer.BYTES);
+
+		try {
+			int size = 0;
+			while (size < length) {
+				int inflated = inflater.inflate(original, size, length - size);
+
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				size += inflated;
+			}
+
+			if (size == length && !inflater.finished() && inflater.inflate(new byte[1]) > 0)
+				size++;
+
+			if (size != length || !inflater.finished())
+				throw new ProtocolException("Corrupted compressed frame");
+		}
+		catch (DataFormatException ex) {
+			throw new ProtocolException("Corrupted compressed frame: " + ex.getMessage());
+		}
+
+		return new Frame((byte) (frame.getType() & ~Frame.COMPRESSED), frame.getRequestId(), original);
+	}
+
+	/**
+	 * Libera a memoria nativa do compressor e do descompressor
+	 */
+	public void end() {
+		if (deflater != null)
+			deflater.end();
+		if (inflater != null)
+			inflater.end();
+
+		deflater = null;
+		inflater = null;
+	}
+}
@@ -11,11 +11,14 @@ import java.io.*;
  * A classe opera orquestrando duas threads, uma de leitura e uma de escrita, garantindo mais responsividade e 
  * melhorando a organizacao nas trocas de dados com o servidor. A thread de leitura le os dados enviados do 
  * servidor para o cliente e a de escrita obtem os dados por parte do cliente para envia-los ao servidor.
+ * O modo de compressao negociado com o servidor (ver classe Compression) e recebido pela thread de leitura
+ * e consultado pela de escrita, sendo "none" ate o fim da negociacao.
  */
 public class EMailClient {
 	private String hostname;
 	private int port;
 	private String userEmail;
+	private volatile String compression = Compression.NONE;
 	private final String serverRootPath = "C:\\JavaEMailClient";
 	private final String userDirectoryPath = serverRootPath + "\\Users";
 	private final String fileDirectoryPath = serverRootPath + "\\Files";
@@ -41,6 +44,14 @@ public class EMailClient {
 		this.userEmail = userEmail;
 	}
 
+	public String getCompression() {
+		return this.compression;
+	}
+
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+
 	/**
 	 * Inicializa a estrutura de diretorios do cliente para recepcionar os e-mails e arquivos enviados pelo 
 	 * servidor, sendo criados caso nao existam ainda ou realizando bypass para prevenir erros em tempo de 
@@ -74,9 +85,45 @@ public class EMailClient {
 			userEmailDirectory.mkdirs();
 	}
 
+	/**
+	 * Le o cursor de sincronizacao do usuario: o uid da ultima mensagem ja baixada, gravado no arquivo
+	 * sync.uid do diretorio do usuario ao fim de cada download (ver ReadThread). Retorna 0 caso o usuario
+	 * ainda nao tenha baixado nenhuma mensagem nesta maquina, o que provoca o download de todas elas.
+	 */
+	public long loadSyncUid() {
+		File syncFile = new File(userDirectoryPath + "\\" + userEmail + "\\sync.uid");
+
+		if (!syncFile.exists())
+			return 0;
+
+		try (BufferedReader fileReader = new BufferedReader( new FileReader(syncFile) )) {
+			return Long.parseLong(fileReader.readLine().trim());
+		}
+		catch (IOException | RuntimeException e) {
+			System.out.println("Error reading the file: " + syncFile + "\n" + e.toString());
+			return 0;
+		}
+	}
+
+	/**
+	 * Grava o cursor de sincronizacao do usuario, para que o proximo download, mesmo em outra sessao,
+	 * transmita somente as mensagens recebidas depois deste
+	 */
+	public void saveSyncUid(long uid) {
+		File syncFile = new File(userDirectoryPath + "\\" + userEmail + "\\sync.uid");
+
+		try (BufferedWriter fileStream = new BufferedWriter( new FileWriter(syncFile) )) {
+			fileStream.write(String.valueOf(uid));
+		}
+		catch (IOException e) {
+			System.out.println("Error recording the file: " + syncFile + "\n" + e.toString());
+		}
+	}
+
 	/**
 	 * Realiza a conexao com o socket do servidor, exibe as opcoes disponiveis para o usuario e instancia as
-	 * threads de leitura e escrita.
+	 * threads de leitura e escrita, que compartilham o mesmo codec de quadros da conexao e o registro dos
+	 * comandos em andamento (ver classe PendingRequests).
 	 */
 	public void execute() {
 		try {
@@ -86,8 +133,11 @@ public class EMailClient {
 
 			showOptions();
 
-			new WriteThread(socket, this).start();
-			new ReadThread(socket, this).start();
+			FrameCodec codec = new FrameCodec(socket);
+			PendingRequests pendingRequests = new PendingRequests();
+
+			new WriteThread(socket, codec, pendingRequests, this).start();
+			new ReadThread(socket, codec, pendingRequests, this).start();
 			
 		} catch (UnknownHostException ex) {
 			System.out.println("Server not found: " + ex.getMessage());
@@ -104,7 +154,12 @@ public class EMailClient {
 		System.out.println("*** First you need to login using your e-mail address                       ***");
 		System.out.println("*** Then you can use the commands listed below:                             ***");
 		System.out.println("*** \t/sendMessage     - you'll be able to type a text message.           ***");
-		System.out.println("*** \t/receiveMessages - you'll be able to download all your e-mails.     ***");
+		System.out.println("*** \t/sendBatch       - you'll type several messages, sent at once.      ***");
+		System.out.println("*** \t/receiveMessages - you'll be able to download your new e-mails.     ***");
+		System.out.println("*** \t/listMessages    - you'll list the e-mails in your mailbox.         ***");
+		System.out.println("*** \t/fetchMessage n  - you'll download only the e-mail of uid n.        ***");
+		System.out.println("*** \t/fetchAttachment n - you'll download only its attachment.           ***");
+		System.out.println("*** \t/push mode       - new e-mail alerts: off, header or message.       ***");
 		System.out.println("*** \t/logoff          - you'll log out and terminate the client program. ***");
 		System.out.println("*** ----------------------------------------------------------------------- ***");
 	}
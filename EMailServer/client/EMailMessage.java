@@ -11,15 +11,25 @@ import java.io.Serializable;
  *  attachment - booleana que determina se este objeto tambem carrega um anexo ou nao 
  *  attachmentName - nome do anexo sendo o path para instanciacao das streams de leitura do arquivo anexo
  *  attachmentContent - buffer de bytes que comporta o conteudo propriamente dito do anexo, caso exista
+ *  attachmentHash - hash SHA-256 (hexadecimal) do conteudo do anexo, pelo qual o servidor o identifica em seu
+ *   armazenamento de anexos, ou null caso desconhecido
+ *  messageId - identificador unico da mensagem, atribuido pelo servidor ao aceita-la e informado no download,
+ *   ou 0 caso desconhecido
  * Os comportamentos definidos pela classe se restringem a getters e setters dos atributos
+ * O serialVersionUID fixado e o calculado para a versao original da classe, anterior a attachmentHash e a
+ * messageId, de modo que objetos serializados por clientes antigos continuem sendo aceitos
  */
 public class EMailMessage implements Serializable {
+    private static final long serialVersionUID = -3456658100467098757L;
+
     private String addressee;
     private String subject;
     private String body;
     private boolean attachment;
     private String attachmentName;
     private byte[] attachmentContent;
+    private String attachmentHash;
+    private long messageId;
 
     public EMailMessage() { 
         this.addressee = "";
@@ -28,6 +38,7 @@ public class EMailMessage implements Serializable {
         this.attachment = false;
         this.attachmentName = "";
         this.attachmentContent = null;
+        this.attachmentHash = null;
     }
     
     public String getAddressee() {
@@ -54,6 +65,14 @@ public class EMailMessage implements Serializable {
         return this.attachmentContent;
     }
 
+    public String getAttachmentHash() {
+        return this.attachmentHash;
+    }
+
+    public long getMessageId() {
+        return this.messageId;
+    }
+
     public void setAddressee(String addressee) {
         this.addressee = addressee;
     }
@@ -77,4 +96,12 @@ public class EMailMessage implements Serializable {
     public void setAttachmentContent(byte[] content) { 
         this.attachmentContent = content;
     }
-}
\ No newline at end of file
+
+    public void setAttachmentHash(String attachmentHash) {
+        this.attachmentHash = attachmentHash;
+    }
+
+    public void setMessageId(long messageId) {
+        this.messageId = messageId;
+    }
+}
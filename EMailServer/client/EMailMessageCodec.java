@@ -0,0 +1,426 @@
+package client;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classe responsavel por codificar um objeto de e-mail (ver classe EMailMessage) no conteudo dos quadros
+ * MESSAGE e SEND_MESSAGE, e por remonta-lo a partir desse conteudo.
+ * O formato compacto, escrito a mao, evita os descritores de classe, a reflexao e a tabela de handles da
+ * serializacao Java:
+ * 	version (1 byte) - versao do formato
+ * 	flags (1 byte) - bit 0: possui anexo; bit 1: carrega o conteudo do anexo
+ * 	addressee, subject, body, attachmentName - cada um como varint (tamanho + 1, sendo 0 o valor null)
+ * 		seguido dos bytes do texto em UTF-8
+ * 	attachmentContent - varint com o tamanho seguido dos bytes brutos do anexo (somente com o bit 1)
+ * 	extension - varint com o tamanho seguido de bytes reservados para campos futuros; versoes mais novas
+ * 		do formato acrescentam seus campos nesta secao, que decodificadores antigos apenas pulam. Cada campo
+ * 		e escrito como varint com sua etiqueta seguido do texto no mesmo formato dos demais, e etiquetas
+ * 		desconhecidas sao ignoradas:
+ * 		1 - attachmentHash
+ * 		2 - messageId, em hexadecimal (somente quando diferente de 0)
+ * O cabecalho de uma mensagem listada (ver classe MessageHeader), conteudo do quadro MESSAGE_HEADER, e
+ * codificado por encodeHeader em um formato a parte, sempre compacto:
+ * 	version (1 byte) - versao do formato
+ * 	flags (1 byte) - bit 0: possui anexo
+ * 	uid (8 bytes) e size (8 bytes)
+ * 	sender, subject - no mesmo formato dos textos do objeto de e-mail
+ * Um lote de e-mails, conteudo do quadro SEND_BATCH, e codificado por encodeBatch como um varint com a
+ * quantidade de e-mails seguido de cada objeto codificado por encode, precedido de seu tamanho em varint; a
+ * resposta, conteudo do quadro BATCH_STATUS, e codificada por encodeBatchStatus como um varint com a
+ * quantidade seguido de um texto por e-mail, nulo para os gravados com sucesso.
+ * A serializacao Java permanece disponivel como alternativa: ao iniciar o cliente ou o servidor com
+ * -Demail.messageCodec=serialization, os objetos passam a ser enviados serializados. A decodificacao aceita
+ * ambos os formatos, identificando a serializacao Java pelo seu numero magico (0xACED); por vir da rede,
+ * o conteudo serializado so pode conter um EMailMessage (ver deserialize).
+ * Todo tamanho lido do conteudo e conferido contra os bytes restantes antes de qualquer alocacao.
+ */
+public class EMailMessageCodec {
+	public static final byte VERSION = 1;
+
+	private static final byte FLAG_ATTACHMENT = 1;
+	private static final byte FLAG_ATTACHMENT_CONTENT = 2;
+	private static final int TAG_ATTACHMENT_HASH = 1;
+	private static final int TAG_MESSAGE_ID = 2;
+	private static final boolean USE_SERIALIZATION = "serialization".equals(System.getProperty("email.messageCodec"));
+	private static final ObjectInputFilter SERIALIZATION_FILTER =
+		ObjectInputFilter.Config.createFilter("client.EMailMessage;[B;maxdepth=2;maxrefs=16;!*");
+
+	/**
+	 * Codifica o objeto de e-mail no formato configurado para este processo
+	 */
+	public static byte[] encode(EMailMessage eMailMessage) throws IOException {
+		if (USE_SERIALIZATION)
+			return serialize(eMailMessage);
+
+		return encodeCompact(eMailMessage);
+	}
+
+	/**
+	 * Remonta o objeto de e-mail, qualquer que seja o formato em que foi codificado
+	 */
+	public static EMailMessage decode(byte[] payload) throws IOException, ClassNotFoundException {
+		if (payload.length >= 2 && payload[0] == (byte) 0xAC && payload[1] == (byte) 0xED)
+			return deserialize(payload);
+
+		return decodeCompact(payload);
+	}
+
+	public static byte[] encodeCompact(EMailMessage eMailMessage) {
+		byte[] addressee = toBytes(eMailMessage.getAddressee());
+		byte[] subject = toBytes(eMailMessage.getSubject());
+		byte[] body = toBytes(eMailMessage.getBody());
+		byte[] attachmentName = toBytes(eMailMessage.getAttachmentName());
+		byte[] attachmentContent = eMailMessage.getAttachmentContent();
+		byte[] attachmentHash = toBytes(eMailMessage.getAttachmentHash());
+		byte[] messageId = eMailMessage.getMessageId() == 0 ? null : toBytes(Long.toHexString(eMailMessage.getMessageId()));
+
+		byte flags = 0;
+		if (eMailMessage.hasAttachment())
+			flags |= FLAG_ATTACHMENT;
+		if (attachmentContent != null)
+			flags |= FLAG_ATTACHMENT_CONTENT;
+
+		int extensionSize = (attachmentHash == null ? 0 : varintSize(TAG_ATTACHMENT_HASH) + stringSize(attachmentHash))
+			+ (messageId == null ? 0 : varintSize(TAG_MESSAGE_ID) + stringSize(messageId));
+		int size = 2 + stringSize(addressee) + stringSize(subject) + stringSize(body) + stringSize(attachmentName)
+			+ varintSize(extensionSize) + extensionSize;
+		if (attachmentContent != null)
+			size += varintSize(attachmentContent.length) + attachmentContent.length;
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put(VERSION).put(flags);
+		putString(buffer, addressee);
+		putString(buffer, subject);
+		putString(buffer, body);
+		putString(buffer, attachmentName);
+
+		if (attachmentContent != null) {
+			putVarint(buffer, attachmentContent.length);
+			buffer.put(attachmentContent);
+		}
+
+		putVarint(buffer, extensionSize);
+		if (attachmentHash != null) {
+			putVarint(buffer, TAG_ATTACHMENT_HASH);
+			putString(buffer, attachmentHash);
+		}
+		if (messageId != null) {
+			putVarint(buffer, TAG_MESSAGE_ID);
+			putString(buffer, messageId);
+		}
+
+		return buffer.array();
+	}
+
+	public static EMailMessage decodeCompact(byte[] payload) throws ProtocolException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+		try {
+			byte version = buffer.get();
+			if (version < VERSION)
+				throw new ProtocolException("Unsupported message codec version: " + version);
+
+			byte flags = buffer.get();
+			EMailMessage eMailMessage = new EMailMessage();
+			eMailMessage.setAddressee(getString(buffer));
+			eMailMessage.setSubject(getString(buffer));
+			eMailMessage.setBody(getString(buffer));
+			eMailMessage.setAttachmentName(getString(buffer));
+			eMailMessage.setAttachment((flags & FLAG_ATTACHMENT) != 0);
+
+			if ((flags & FLAG_ATTACHMENT_CONTENT) != 0)
+				eMailMessage.setAttachmentContent(getBytes(buffer));
+
+			int extensionSize = getVarint(buffer);
+			ByteBuffer extension = buffer.slice(buffer.position(), extensionSize);
+			buffer.position(buffer.position() + extensionSize);
+			decodeExtension(extension, eMailMessage);
+
+			return eMailMessage;
+		}
+		catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+			throw new ProtocolException("Truncated or corrupted e-mail message");
+		}
+	}
+
+	/**
+	 * Le os campos da secao de extensao. Como todo campo tem o formato de texto, uma etiqueta desconhecida
+	 * (de uma versao mais nova do formato) e apenas pulada.
+	 */
+	private static void decodeExtension(ByteBuffer extension, EMailMessage eMailMessage) throws ProtocolException {
+		while (extension.hasRemaining()) {
+			int tag = getVarint(extension);
+			String value = getString(extension);
+
+			if (tag == TAG_ATTACHMENT_HASH)
+				eMailMessage.setAttachmentHash(value);
+			else if (tag == TAG_MESSAGE_ID && value != null)
+				eMailMessage.setMessageId(parseMessageId(value));
+		}
+	}
+
+	private static long parseMessageId(String value) throws ProtocolException {
+		try {
+			return Long.parseUnsignedLong(value, 16);
+		}
+		catch (NumberFormatException ex) {
+			throw new ProtocolException("Invalid message id: " + value);
+		}
+	}
+
+	public static byte[] encodeHeader(MessageHeader messageHeader) {
+		byte[] sender = toBytes(messageHeader.getSender());
+		byte[] subject = toBytes(messageHeader.getSubject());
+
+		ByteBuffer buffer = ByteBuffer.allocate(2 + 2 * Long.BYTES + stringSize(sender) + stringSize(subject));
+		buffer.put(VERSION).put(messageHeader.hasAttachment() ? FLAG_ATTACHMENT : 0);
+		buffer.putLong(messageHeader.getUid()).putLong(messageHeader.getSize());
+		putString(buffer, sender);
+		putString(buffer, subject);
+
+		return buffer.array();
+	}
+
+	public static MessageHeader decodeHeader(byte[] payload) throws ProtocolException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+		try {
+			byte version = buffer.get();
+			if (version < VERSION)
+				throw new ProtocolException("Unsupported message codec version: " + version);
+
+			byte flags = buffer.get();
+			MessageHeader messageHeader = new MessageHeader();
+			messageHeader.setAttachment((flags & FLAG_ATTACHMENT) != 0);
+			messageHeader.setUid(buffer.getLong());
+			messageHeader.setSize(buffer.getLong());
+			messageHeader.setSender(getString(buffer));
+			messageHeader.setSubject(getString(buffer));
+
+			return messageHeader;
+		}
+		catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+			throw new ProtocolException("Truncated or corrupted message header");
+		}
+	}
+
+	/**
+	 * Codifica um lote de e-mails para o quadro SEND_BATCH: a quantidade de e-mails, seguida, para cada um,
+	 * do tamanho e do conteudo codificado por encode. Um lote que o servidor recusaria (com mais de
+	 * Frame.MAX_BATCH_SIZE e-mails, um anexo acima de Frame.MAX_INLINE_ATTACHMENT bytes ou mais que
+	 * Frame.MAX_FRAME_SIZE bytes ao todo) resulta em ProtocolException, sem que nada seja enviado.
+	 */
+	public static byte[] encodeBatch(List<EMailMessage> eMailMessages) throws IOException {
+		if (eMailMessages.size() > Frame.MAX_BATCH_SIZE)
+			throw new ProtocolException("Too many e-mails in a batch: " + eMailMessages.size() + " (limit: " + Frame.MAX_BATCH_SIZE + ")");
+
+		List<byte[]> encoded = new ArrayList<byte[]>(eMailMessages.size());
+		int size = varintSize(eMailMessages.size());
+
+		for (EMailMessage eMailMessage : eMailMessages) {
+			checkInlineAttachment(eMailMessage);
+			byte[] message = encode(eMailMessage);
+			encoded.add(message);
+			size += varintSize(message.length) + message.length;
+		}
+
+		if (size > Frame.MAX_FRAME_SIZE)
+			throw new ProtocolException("Batch too large: " + size + " bytes (limit: " + Frame.MAX_FRAME_SIZE + ")");
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		putVarint(buffer, encoded.size());
+
+		for (byte[] message : encoded) {
+			putVarint(buffer, message.length);
+			buffer.put(message);
+		}
+
+		return buffer.array();
+	}
+
+	/**
+	 * Separa o conteudo de um quadro SEND_BATCH nos e-mails codificados que o compoem, a serem decodificados
+	 * um a um por decode, de modo que um e-mail invalido nao impeca a leitura dos demais
+	 */
+	public static List<byte[]> decodeBatch(byte[] payload) throws ProtocolException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+		try {
+			int count = getVarint(buffer);
+			if (count > buffer.remaining())
+				throw new ProtocolException("Invalid batch size: " + count);
+
+			List<byte[]> messages = new ArrayList<byte[]>(count);
+
+			for (int i = 0; i < count; i++)
+				messages.add(getBytes(buffer));
+
+			return messages;
+		}
+		catch (BufferUnderflowException ex) {
+			throw new ProtocolException("Truncated or corrupted message batch");
+		}
+	}
+
+	/**
+	 * Recusa um anexo em linha maior que Frame.MAX_INLINE_ATTACHMENT, que deve ser enviado em pedacos
+	 */
+	public static void checkInlineAttachment(EMailMessage eMailMessage) throws ProtocolException {
+		byte[] attachmentContent = eMailMessage.getAttachmentContent();
+
+		if (attachmentContent != null && attachmentContent.length > Frame.MAX_INLINE_ATTACHMENT)
+			throw new ProtocolException("Attachment too large to be sent inline: " + attachmentContent.length
+				+ " bytes (limit: " + Frame.MAX_INLINE_ATTACHMENT + ")");
+	}
+
+	/**
+	 * Codifica a resposta a um quadro SEND_BATCH: a quantidade de e-mails do lote, seguida, para cada um, da
+	 * mensagem de erro de sua gravacao, ou de uma string nula para os e-mails gravados com sucesso
+	 */
+	public static byte[] encodeBatchStatus(List<String> errors) {
+		List<byte[]> encoded = new ArrayList<byte[]>(errors.size());
+		int size = varintSize(errors.size());
+
+		for (String error : errors) {
+			byte[] text = toBytes(error);
+			encoded.add(text);
+			size += stringSize(text);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		putVarint(buffer, encoded.size());
+
+		for (byte[] text : encoded)
+			putString(buffer, text);
+
+		return buffer.array();
+	}
+
+	public static List<String> decodeBatchStatus(byte[] payload) throws ProtocolException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+		try {
+			int count = getVarint(buffer);
+			if (count > buffer.remaining())
+				throw new ProtocolException("Invalid batch size: " + count);
+
+			List<String> errors = new ArrayList<String>(count);
+
+			for (int i = 0; i < count; i++)
+				errors.add(getString(buffer));
+
+			return errors;
+		}
+		catch (BufferUnderflowException ex) {
+			throw new ProtocolException("Truncated or corrupted batch status");
+		}
+	}
+
+	public static byte[] serialize(EMailMessage eMailMessage) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+		objectOut.writeObject(eMailMessage);
+		objectOut.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Remonta um objeto de e-mail serializado. Como o conteudo vem da rede, o filtro SERIALIZATION_FILTER
+	 * recusa qualquer classe alem de EMailMessage e de seus campos antes que seja instanciada, e um objeto
+	 * de outro tipo resulta em InvalidClassException.
+	 */
+	public static EMailMessage deserialize(byte[] payload) throws IOException, ClassNotFoundException {
+		ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(payload));
+		objectIn.setObjectInputFilter(SERIALIZATION_FILTER);
+
+		if (objectIn.readObject() instanceof EMailMessage eMailMessage)
+			return eMailMessage;
+
+		throw new InvalidClassException("Serialized object is not an e-mail message");
+	}
+
+	private static byte[] toBytes(String text) {
+		return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int stringSize(byte[] text) {
+		return text == null ? varintSize(0) : varintSize(text.length + 1) + text.length;
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] text) {
+		if (text == null)
+			putVarint(buffer, 0);
+		else {
+			putVarint(buffer, text.length + 1);
+			buffer.put(text);
+		}
+	}
+
+	/**
+	 * Le um varint com o tamanho seguido de tantos bytes, conferindo o tamanho contra o que resta no buffer
+	 * antes de alocar o array
+	 */
+	private static byte[] getBytes(ByteBuffer buffer) throws ProtocolException {
+		int length = getVarint(buffer);
+
+		if (length > buffer.remaining())
+			throw new BufferUnderflowException();
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static String getString(ByteBuffer buffer) throws ProtocolException {
+		int length = getVarint(buffer);
+
+		if (length == 0)
+			return null;
+		if (length - 1 > buffer.remaining())
+			throw new BufferUnderflowException();
+
+		String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length - 1, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length - 1);
+		return text;
+	}
+
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int getVarint(ByteBuffer buffer) throws ProtocolException {
+		int value = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte next = buffer.get();
+			value |= (next & 0x7F) << shift;
+
+			if ((next & 0x80) == 0) {
+				if (value < 0)
+					throw new ProtocolException("Invalid varint length: " + value);
+				return value;
+			}
+		}
+
+		throw new ProtocolException("Varint too long");
+	}
+}
@@ -0,0 +1,129 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classe entidade, responsavel por representar um quadro (frame) do protocolo de comunicacao entre clientes
+ * e servidor. Todo dado trafegado pelo socket, em ambos os sentidos, e um quadro com o seguinte formato:
+ * 	version (1 byte) - versao do protocolo, permitindo evoluir o formato sem quebrar clientes antigos
+ * 	type (1 byte) - tipo do quadro (ver constantes abaixo)
+ * 	requestId (4 bytes) - identificador do comando que originou o quadro; as respostas do servidor repetem
+ * 		o identificador do comando a que respondem
+ * 	length (4 bytes) - tamanho do conteudo em bytes
+ * 	payload (length bytes) - conteudo do quadro, cujo significado depende do tipo
+ * Um comando que falha e respondido com um quadro ERROR com a descricao do erro; o quadro STATUS apenas
+ * confirma um comando bem sucedido, como o envio de um e-mail ja gravado pelo servidor.
+ * Anexos nao viajam dentro do objeto de e-mail: logo apos o quadro SEND_MESSAGE (ou MESSAGE, no download)
+ * de um e-mail com anexo, seu conteudo e transmitido em quadros ATTACHMENT_CHUNK de no maximo CHUNK_SIZE
+ * bytes, encerrados por um quadro ATTACHMENT_END, todos com o mesmo identificador do comando. Um anexo de
+ * ate MAX_INLINE_ATTACHMENT bytes tambem e aceito em linha, dentro do objeto de e-mail; acima disso, o
+ * envio em pedacos e obrigatorio.
+ * O download e incremental: o quadro RECEIVE_MESSAGES carrega o uid da ultima mensagem ja baixada pelo
+ * cliente (ou nenhum conteudo, equivalente a 0), o servidor transmite apenas as mensagens de uid maior e o
+ * quadro END_OF_MESSAGES carrega o novo uid a ser usado no proximo download.
+ * A caixa postal tambem pode ser consultada sem baixar as mensagens: o quadro LIST_MESSAGES (com o mesmo
+ * cursor opcional) e respondido com um quadro MESSAGE_HEADER por mensagem (ver classe MessageHeader),
+ * seguidos de END_OF_LIST com o uid da ultima mensagem listada. Os quadros FETCH_MESSAGE e FETCH_ATTACHMENT
+ * carregam o uid de uma unica mensagem e sao respondidos como um download dela, sem e com o anexo, mas
+ * encerrado por um END_OF_MESSAGES sem conteudo, que nao altera o cursor do cliente.
+ * Varios e-mails podem ser enviados em um unico quadro SEND_BATCH, que carrega os objetos de e-mail (com
+ * os anexos em linha, portanto de no maximo MAX_INLINE_ATTACHMENT bytes cada) e e respondido com um unico
+ * quadro BATCH_STATUS, com a situacao de cada e-mail do lote na ordem em que foram enviados (ver
+ * EMailMessageCodec.encodeBatch e encodeBatchStatus). Um lote tem no maximo MAX_BATCH_SIZE e-mails.
+ * Quando uma mensagem chega a caixa postal de um usuario conectado, o servidor envia a cada sessao sua, sem
+ * que um comando tenha sido enviado, um quadro NEW_MAIL com o cabecalho da mensagem (como MESSAGE_HEADER)
+ * e identificador 0, seguido, caso a sessao tenha escolhido receber a propria mensagem, de um quadro
+ * MESSAGE tambem de identificador 0, sem o anexo. O quadro PUSH_MODE carrega o modo escolhido pela sessao
+ * ("off", "header" ou "message"; por padrao, "header") e e respondido com um quadro STATUS.
+ * Logo apos o login, o cliente pode negociar a compressao do conteudo dos quadros por um quadro COMPRESSION,
+ * respondido pelo servidor com um quadro COMPRESSION com o modo escolhido. A partir dai, os quadros de
+ * objetos de e-mail e de pedacos de anexo podem chegar com o bit COMPRESSED acrescentado ao tipo, e seu
+ * conteudo comprimido (ver classe Compression).
+ * Nenhum quadro pode ter mais que MAX_FRAME_SIZE bytes de conteudo (quatro pedacos de anexo mais a
+ * margem dos textos do e-mail), ja que o conteudo e lido inteiro em memoria: um quadro maior encerra a
+ * conexao, sem que nada seja alocado.
+ * Um objeto de e-mail maior que isso, por causa do tamanho do corpo, e enviado em quadros MESSAGE_PART de
+ * CHUNK_SIZE bytes, todos com o identificador do comando, seguidos do quadro SEND_MESSAGE ou MESSAGE com o
+ * restante, e remontado por quem o recebe, ate MAX_MESSAGE_SIZE bytes (ver classe MessageParts).
+ * A leitura e a escrita dos quadros sao feitas pela classe FrameCodec.
+ */
+public class Frame {
+	public static final byte VERSION = 1;
+	public static final int HEADER_SIZE = 10;
+	public static final int CHUNK_SIZE = 64 * 1024;
+	public static final int MAX_FRAME_SIZE = 4 * CHUNK_SIZE + 64 * 1024;
+	public static final int MAX_MESSAGE_SIZE = 256 * CHUNK_SIZE;
+	public static final int MAX_INLINE_ATTACHMENT = CHUNK_SIZE;
+	public static final int MAX_BATCH_SIZE = 1000;
+
+	// Quadros enviados pelo cliente
+	public static final byte LOGIN = 1;
+	public static final byte SEND_MESSAGE = 2;
+	public static final byte RECEIVE_MESSAGES = 3;
+	public static final byte LOGOFF = 4;
+	public static final byte LIST_MESSAGES = 5;
+	public static final byte FETCH_MESSAGE = 6;
+	public static final byte FETCH_ATTACHMENT = 7;
+	public static final byte SEND_BATCH = 8;
+	public static final byte PUSH_MODE = 9;
+
+	// Quadros enviados pelo servidor
+	public static final byte STATUS = 16;
+	public static final byte MESSAGE = 17;
+	public static final byte END_OF_MESSAGES = 18;
+	public static final byte ERROR = 19;
+	public static final byte MESSAGE_HEADER = 20;
+	public static final byte END_OF_LIST = 21;
+	public static final byte BATCH_STATUS = 22;
+	public static final byte NEW_MAIL = 23;
+
+	// Quadros enviados por ambos os lados
+	public static final byte ATTACHMENT_CHUNK = 32;
+	public static final byte ATTACHMENT_END = 33;
+	public static final byte COMPRESSION = 34;
+	public static final byte MESSAGE_PART = 35;
+
+	// Bit acrescentado ao tipo dos quadros cujo conteudo esta comprimido (ver classe Compression)
+	public static final byte COMPRESSED = 0x40;
+
+	private byte type;
+	private int requestId;
+	private byte[] payload;
+
+	public Frame(byte type, int requestId, byte[] payload) {
+		this.type = type;
+		this.requestId = requestId;
+		this.payload = payload;
+	}
+
+	public byte getType() {
+		return this.type;
+	}
+
+	public int getRequestId() {
+		return this.requestId;
+	}
+
+	public byte[] getPayload() {
+		return this.payload;
+	}
+
+	/**
+	 * Decodifica o conteudo do quadro como texto UTF-8 (login, respostas e mensagens de erro)
+	 */
+	public String getText() {
+		return new String(this.payload, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decodifica o conteudo do quadro como uid de mensagem (ver FrameCodec.uid). Um quadro sem conteudo,
+	 * como o RECEIVE_MESSAGES de clientes anteriores ao download incremental, equivale ao uid 0.
+	 */
+	public long getUid() {
+		if (this.payload.length < Long.BYTES)
+			return 0;
+
+		return ByteBuffer.wrap(this.payload).getLong();
+	}
+}
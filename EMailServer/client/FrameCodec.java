@@ -0,0 +1,186 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classe responsavel por ler e escrever os quadros do protocolo (ver classe Frame) sobre as streams de um
+ * socket, sendo compartilhada pelo cliente (ReadThread e WriteThread) e pelo servidor (UserThread e, por
+ * meio dos metodos estaticos que operam sobre ByteBuffer, NioSession).
+ * Substitui a combinacao de BufferedReader, DataOutputStream e ObjectInputStream/ObjectOutputStream sobre o
+ * mesmo socket: ha apenas um buffer de entrada e um de saida por conexao, e cada quadro e lido com uma
+ * unica analise do cabecalho e escrito com uma unica escrita bufferizada.
+ * Como atributos, possui:
+ * 	InputStream inFromSocket - stream bufferizada de entrada do socket
+ * 	OutputStream outToSocket - stream bufferizada de saida do socket
+ * 	byte[] readHeader / writeHeader - buffers reaproveitados para o cabecalho dos quadros
+ */
+public class FrameCodec {
+	private static final int BUFFER_SIZE = 8192;
+
+	private InputStream inFromSocket;
+	private OutputStream outToSocket;
+	private byte[] readHeader = new byte[Frame.HEADER_SIZE];
+	private byte[] writeHeader = new byte[Frame.HEADER_SIZE];
+
+	public FrameCodec(Socket socket) throws IOException {
+		this(socket.getInputStream(), socket.getOutputStream());
+	}
+
+	public FrameCodec(InputStream inFromSocket, OutputStream outToSocket) {
+		this.inFromSocket = new BufferedInputStream(inFromSocket, BUFFER_SIZE);
+		this.outToSocket = new BufferedOutputStream(outToSocket, BUFFER_SIZE);
+	}
+
+	/**
+	 * Le o proximo quadro da conexao. Retorna null caso a conexao tenha sido encerrada entre dois quadros;
+	 * um encerramento no meio de um quadro resulta em EOFException.
+	 */
+	public Frame readFrame() throws IOException {
+		int read = inFromSocket.readNBytes(readHeader, 0, Frame.HEADER_SIZE);
+
+		if (read == 0)
+			return null;
+		if (read < Frame.HEADER_SIZE)
+			throw new EOFException("Connection closed in the middle of a frame header");
+
+		int length = checkHeader(readHeader[0], getInt(readHeader, 6));
+		byte[] payload = inFromSocket.readNBytes(length);
+
+		if (payload.length < length)
+			throw new EOFException("Connection closed in the middle of a frame payload");
+
+		return new Frame(readHeader[1], getInt(readHeader, 2), payload);
+	}
+
+	/**
+	 * Escreve um quadro no buffer de saida, sem descarrega-lo no socket (ver flush)
+	 */
+	public void writeFrame(byte type, int requestId, byte[] payload) throws IOException {
+		writeFrame(type, requestId, payload, 0, payload.length);
+	}
+
+	/**
+	 * Escreve como conteudo do quadro apenas o trecho indicado do array, permitindo que o mesmo buffer seja
+	 * reaproveitado na transmissao de cada pedaco de um anexo
+	 */
+	public void writeFrame(byte type, int requestId, byte[] payload, int offset, int length) throws IOException {
+		writeHeader(type, requestId, length);
+		outToSocket.write(payload, offset, length);
+	}
+
+	/**
+	 * Escreve no buffer de saida apenas o cabecalho de um quadro, cujo conteudo de length bytes e escrito
+	 * no socket pelo chamador apos o flush (como na transmissao de anexos por FileChannel.transferTo)
+	 */
+	public void writeHeader(byte type, int requestId, int length) throws IOException {
+		writeHeader[0] = Frame.VERSION;
+		writeHeader[1] = type;
+		putInt(writeHeader, 2, requestId);
+		putInt(writeHeader, 6, length);
+
+		outToSocket.write(writeHeader);
+	}
+
+	/**
+	 * Escreve um quadro e descarrega imediatamente o buffer de saida no socket
+	 */
+	public void sendFrame(byte type, int requestId, byte[] payload) throws IOException {
+		writeFrame(type, requestId, payload);
+		flush();
+	}
+
+	public void flush() throws IOException {
+		outToSocket.flush();
+	}
+
+	/**
+	 * Monta um quadro completo em um ByteBuffer pronto para ser escrito em um canal nao bloqueante
+	 */
+	public static ByteBuffer encode(byte type, int requestId, byte[] payload) {
+		return encode(type, requestId, payload, 0, payload.length);
+	}
+
+	public static ByteBuffer encode(byte type, int requestId, byte[] payload, int offset, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_SIZE + length);
+		buffer.put(Frame.VERSION).put(type).putInt(requestId).putInt(length).put(payload, offset, length);
+		return buffer.flip();
+	}
+
+	/**
+	 * Extrai o proximo quadro de um buffer em modo de leitura, avancando sua posicao. Retorna null, sem
+	 * alterar o buffer, caso o quadro ainda nao tenha chegado por inteiro.
+	 */
+	public static Frame decode(ByteBuffer buffer) throws ProtocolException {
+		if (buffer.remaining() < Frame.HEADER_SIZE)
+			return null;
+
+		int start = buffer.position();
+		int length = checkHeader(buffer.get(start), buffer.getInt(start + 6));
+
+		if (buffer.remaining() < Frame.HEADER_SIZE + length)
+			return null;
+
+		byte type = buffer.get(start + 1);
+		int requestId = buffer.getInt(start + 2);
+		byte[] payload = new byte[length];
+		buffer.position(start + Frame.HEADER_SIZE);
+		buffer.get(payload);
+
+		return new Frame(type, requestId, payload);
+	}
+
+	/**
+	 * Retorna a quantidade de bytes que o proximo quadro do buffer ocupa por inteiro, ou -1 caso nem o
+	 * cabecalho tenha chegado ainda. Permite ao motor NIO dimensionar seu buffer de entrada.
+	 */
+	public static int frameSize(ByteBuffer buffer) throws ProtocolException {
+		if (buffer.remaining() < Frame.HEADER_SIZE)
+			return -1;
+
+		int start = buffer.position();
+		return Frame.HEADER_SIZE + checkHeader(buffer.get(start), buffer.getInt(start + 6));
+	}
+
+	/**
+	 * Codifica um texto como conteudo de quadro (UTF-8)
+	 */
+	public static byte[] text(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Codifica um uid de mensagem como conteudo de quadro (8 bytes, big-endian), usado pelo cursor de
+	 * sincronizacao dos quadros RECEIVE_MESSAGES e END_OF_MESSAGES
+	 */
+	public static byte[] uid(long uid) {
+		return ByteBuffer.allocate(Long.BYTES).putLong(uid).array();
+	}
+
+	/**
+	 * Confere o cabecalho antes que qualquer buffer seja alocado para o conteudo, recusando tamanhos acima de
+	 * Frame.MAX_FRAME_SIZE
+	 */
+	private static int checkHeader(byte version, int length) throws ProtocolException {
+		if (version != Frame.VERSION)
+			throw new ProtocolException("Unsupported protocol version: " + version);
+		if (length < 0 || length > Frame.MAX_FRAME_SIZE)
+			throw new ProtocolException("Invalid frame length: " + length);
+
+		return length;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+			| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
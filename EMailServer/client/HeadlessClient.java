@@ -0,0 +1,360 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Cliente de e-mail sem terminal, para programas e scripts (como o gerador de carga benchmark/LoadGenerator),
+ * que fala o mesmo protocolo de quadros do cliente de console (ver classe Frame) sem ler nada do usuario
+ * nem gravar nada em disco.
+ * Cada comando (login, send, sendBatch, receive, list, setPushMode e logoff) e enviado imediatamente e
+ * retorna um CompletableFuture, concluido quando chega a sua resposta, ou concluido com uma IOException
+ * quando o servidor responde com um erro ou a conexao e encerrada. Como no cliente de console, varios
+ * comandos podem estar em andamento ao mesmo tempo, e cada resposta e associada ao seu comando pelo
+ * identificador repetido pelo servidor.
+ * As respostas sao lidas por uma thread virtual por conexao (ver readFrames), de modo que milhares de
+ * clientes caibam em um mesmo processo. A escrita e serializada por um ReentrantLock, para que os quadros
+ * de um upload em pedacos nunca se misturem aos de outro comando enviado por outra thread.
+ * Os e-mails baixados por receive trazem o conteudo do anexo em memoria (attachmentContent).
+ * Como atributos, possui:
+ * 	Socket socket - instancia do socket de conexao entre o cliente e o servidor
+ * 	FrameCodec codec - leitor e escritor dos quadros da conexao
+ * 	ReentrantLock writeLock - trava que serializa a escrita dos quadros
+ * 	AtomicInteger nextRequestId - identificador do proximo comando enviado
+ * 	Map<Integer, Request> pending - comandos que aguardam resposta, por identificador
+ * 	long syncUid - uid da ultima mensagem baixada, a partir do qual receive() baixa as novas
+ * 	Consumer<MessageHeader> newMailListener - chamado, na thread de leitura, a cada aviso de nova mensagem
+ * 	MessageParts messageParts - partes recebidas de um e-mail maior que um quadro (ver classe MessageParts)
+ */
+public class HeadlessClient implements Closeable {
+	private Socket socket;
+	private FrameCodec codec;
+	private ReentrantLock writeLock = new ReentrantLock();
+	private AtomicInteger nextRequestId = new AtomicInteger(1);
+	private Map<Integer, Request> pending = new ConcurrentHashMap<>();
+	private volatile long syncUid;
+	private volatile Consumer<MessageHeader> newMailListener;
+	private MessageParts messageParts = new MessageParts();
+
+	private HeadlessClient(Socket socket) throws IOException {
+		this.socket = socket;
+		this.codec = new FrameCodec(socket);
+	}
+
+	/**
+	 * Conecta ao servidor e inicia a thread de leitura das respostas
+	 */
+	public static HeadlessClient connect(String hostname, int port) throws IOException {
+		Socket socket = new Socket(hostname, port);
+		socket.setTcpNoDelay(true);
+
+		HeadlessClient client = new HeadlessClient(socket);
+		Thread.ofVirtual().name("headless-client-" + socket.getLocalPort()).start(client::readFrames);
+		return client;
+	}
+
+	public long getSyncUid() {
+		return this.syncUid;
+	}
+
+	public void setNewMailListener(Consumer<MessageHeader> newMailListener) {
+		this.newMailListener = newMailListener;
+	}
+
+	/**
+	 * Faz login com o e-mail informado. O quadro LOGIN nao tem resposta propria: o quadro PUSH_MODE enviado
+	 * em seguida, com o modo de aviso de novas mensagens escolhido ("off", "header" ou "message"), confirma
+	 * que o servidor ja processou o login. Ambos levam o identificador do comando, de modo que o quadro
+	 * ERROR de um login recusado (um e-mail longo demais, por exemplo) conclua o comando com o seu erro.
+	 */
+	public CompletableFuture<Void> login(String userEmail, String pushMode) {
+		Request request = register();
+
+		writeLock.lock();
+		try {
+			codec.writeFrame(Frame.LOGIN, request.requestId, FrameCodec.text(userEmail));
+			codec.sendFrame(Frame.PUSH_MODE, request.requestId, FrameCodec.text(pushMode));
+		}
+		catch (IOException ex) {
+			fail(request, ex);
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return request.result();
+	}
+
+	public CompletableFuture<Void> login(String userEmail) {
+		return login(userEmail, "header");
+	}
+
+	public CompletableFuture<Void> setPushMode(String pushMode) {
+		return sendCommand(Frame.PUSH_MODE, FrameCodec.text(pushMode));
+	}
+
+	/**
+	 * Envia um e-mail, concluido quando o servidor o grava. Caso o e-mail possua anexo, este e transmitido
+	 * em pedacos, como no cliente de console: a partir do conteudo em memoria, caso o objeto o carregue, ou
+	 * do arquivo attachmentName, caso contrario. O objeto informado nao e alterado.
+	 * Um objeto maior que um quadro, por causa do corpo, e enviado em partes (ver classe MessageParts); acima
+	 * de Frame.MAX_MESSAGE_SIZE, o envio falha sem que nada seja enviado.
+	 */
+	public CompletableFuture<Void> send(EMailMessage eMailMessage) {
+		Request request = register();
+
+		writeLock.lock();
+		try {
+			if (!eMailMessage.hasAttachment()) {
+				byte[] payload = EMailMessageCodec.encode(eMailMessage);
+				MessageParts.write(codec::writeFrame, Frame.SEND_MESSAGE, request.requestId, payload, 0, payload.length);
+				codec.flush();
+			}
+
+			else if (eMailMessage.getAttachmentContent() != null) {
+				byte[] content = eMailMessage.getAttachmentContent();
+				uploadAttachment(request.requestId, eMailMessage, AttachmentUpload.hash(content), new ByteArrayInputStream(content));
+			}
+
+			else {
+				String hash = AttachmentUpload.hash(eMailMessage.getAttachmentName(), new byte[Frame.CHUNK_SIZE]);
+
+				try (InputStream attachment = new FileInputStream(eMailMessage.getAttachmentName())) {
+					uploadAttachment(request.requestId, eMailMessage, hash, attachment);
+				}
+			}
+		}
+		catch (IOException ex) {
+			fail(request, ex);
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return request.result();
+	}
+
+	/**
+	 * Envia varios e-mails em um unico quadro SEND_BATCH, com os anexos em linha. Retorna, na mesma ordem,
+	 * o erro de cada e-mail, ou null para os gravados com sucesso. Um lote acima dos limites do servidor
+	 * (ver EMailMessageCodec.encodeBatch) falha sem ser enviado.
+	 */
+	public CompletableFuture<List<String>> sendBatch(List<EMailMessage> eMailMessages) {
+		try {
+			return sendCommand(Frame.SEND_BATCH, EMailMessageCodec.encodeBatch(eMailMessages));
+		}
+		catch (IOException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+	}
+
+	/**
+	 * Baixa as mensagens recebidas apos a ultima ja baixada por esta conexao (ver getSyncUid)
+	 */
+	public CompletableFuture<List<EMailMessage>> receive() {
+		return receive(syncUid);
+	}
+
+	/**
+	 * Baixa as mensagens recebidas apos o uid informado, com seus anexos
+	 */
+	public CompletableFuture<List<EMailMessage>> receive(long sinceUid) {
+		return sendCommand(Frame.RECEIVE_MESSAGES, FrameCodec.uid(sinceUid));
+	}
+
+	/**
+	 * Lista os cabecalhos das mensagens recebidas apos o uid informado, sem baixa-las
+	 */
+	public CompletableFuture<List<MessageHeader>> list(long sinceUid) {
+		return sendCommand(Frame.LIST_MESSAGES, FrameCodec.uid(sinceUid));
+	}
+
+	/**
+	 * Encerra a sessao no servidor; a conexao e fechada assim que a resposta chega
+	 */
+	public CompletableFuture<Void> logoff() {
+		return sendCommand(Frame.LOGOFF, new byte[0]);
+	}
+
+	/**
+	 * Fecha a conexao imediatamente, concluindo com erro os comandos ainda em andamento
+	 */
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	private <T> CompletableFuture<T> sendCommand(byte type, byte[] payload) {
+		Request request = register();
+
+		writeLock.lock();
+		try {
+			codec.sendFrame(type, request.requestId, payload);
+		}
+		catch (IOException ex) {
+			fail(request, ex);
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return request.result();
+	}
+
+	private Request register() {
+		Request request = new Request(nextRequestId.getAndIncrement());
+		pending.put(request.requestId, request);
+		return request;
+	}
+
+	private void fail(Request request, Exception ex) {
+		pending.remove(request.requestId);
+		request.future.completeExceptionally(ex);
+	}
+
+	/**
+	 * Envia o objeto de e-mail sem o conteudo do anexo, com o hash deste, seguido do anexo em pedacos, sem
+	 * compressao (ver classe AttachmentUpload)
+	 */
+	private void uploadAttachment(int requestId, EMailMessage eMailMessage, String hash, InputStream attachment) throws IOException {
+		EMailMessage header = new EMailMessage();
+		header.setAddressee(eMailMessage.getAddressee());
+		header.setSubject(eMailMessage.getSubject());
+		header.setBody(eMailMessage.getBody());
+		header.setAttachment(true);
+		header.setAttachmentName(eMailMessage.getAttachmentName());
+		header.setAttachmentContent(null);
+		header.setAttachmentHash(hash);
+
+		byte[] payload = EMailMessageCodec.encode(header);
+
+		MessageParts.write(codec::writeFrame, Frame.SEND_MESSAGE, requestId, payload, 0, payload.length);
+		AttachmentUpload.writeChunks((type, id, chunk, offset, length, compress) -> {
+			codec.writeFrame(type, id, chunk, offset, length);
+			return false;
+		}, requestId, attachment, new byte[Frame.CHUNK_SIZE], false);
+		codec.flush();
+	}
+
+	/**
+	 * Logica principal da thread de leitura: cada quadro, remontado caso tenha chegado em partes, e entregue
+	 * ao comando de mesmo identificador (ver handleFrame), e os quadros enviados pelo servidor sem um comando (identificador 0) sao avisos de novas
+	 * mensagens, repassados ao newMailListener. Ao fim da conexao, por logoff, close ou erro, o socket e
+	 * fechado e os comandos ainda em andamento sao concluidos com erro.
+	 */
+	private void readFrames() {
+		IOException error = new EOFException("Connection closed");
+
+		try {
+			Frame frame;
+
+			while ((frame = codec.readFrame()) != null) {
+				frame = messageParts.add(frame);
+
+				if (frame == null)
+					continue;
+
+				if (frame.getRequestId() == 0) {
+					Consumer<MessageHeader> listener = newMailListener;
+
+					if (frame.getType() == Frame.NEW_MAIL && listener != null)
+						listener.accept(EMailMessageCodec.decodeHeader(frame.getPayload()));
+					continue;
+				}
+
+				Request request = pending.get(frame.getRequestId());
+
+				if (request != null)
+					handleFrame(request, frame);
+
+				if (frame.getType() == Frame.LOGOFF)
+					break;
+			}
+		}
+		catch (IOException ex) {
+			error = ex;
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException ex) {
+			}
+
+			for (Request request : pending.values())
+				fail(request, error);
+		}
+	}
+
+	/**
+	 * Trata um quadro de resposta conforme seu tipo: os quadros MESSAGE, ATTACHMENT_CHUNK, ATTACHMENT_END e
+	 * MESSAGE_HEADER sao acumulados no comando, e os demais o concluem. Um quadro ERROR, como o de um e-mail
+	 * que o servidor nao consegue gravar, conclui o comando com falha.
+	 */
+	private void handleFrame(Request request, Frame frame) throws IOException {
+		try {
+			switch (frame.getType()) {
+				case Frame.MESSAGE -> {
+					EMailMessage eMailMessage = EMailMessageCodec.decode(frame.getPayload());
+					request.messages.add(eMailMessage);
+					request.attachment = eMailMessage.hasAttachment() && eMailMessage.getAttachmentContent() == null
+						? new ByteArrayOutputStream() : null;
+				}
+				case Frame.ATTACHMENT_CHUNK -> {
+					if (request.attachment != null)
+						request.attachment.write(frame.getPayload());
+				}
+				case Frame.ATTACHMENT_END -> {
+					if (request.attachment != null)
+						request.messages.get(request.messages.size() - 1).setAttachmentContent(request.attachment.toByteArray());
+					request.attachment = null;
+				}
+				case Frame.MESSAGE_HEADER -> request.headers.add(EMailMessageCodec.decodeHeader(frame.getPayload()));
+				case Frame.END_OF_MESSAGES -> {
+					if (frame.getPayload().length > 0)
+						syncUid = Math.max(syncUid, frame.getUid());
+					complete(request, request.messages);
+				}
+				case Frame.END_OF_LIST -> complete(request, request.headers);
+				case Frame.BATCH_STATUS -> complete(request, EMailMessageCodec.decodeBatchStatus(frame.getPayload()));
+				case Frame.STATUS -> complete(request, null);
+				case Frame.ERROR -> fail(request, new IOException(frame.getText()));
+				case Frame.LOGOFF -> complete(request, null);
+				default -> fail(request, new ProtocolException("Unexpected frame type: " + frame.getType()));
+			}
+		}
+		catch (ClassNotFoundException ex) {
+			fail(request, new IOException("Object class not found: " + ex.getMessage()));
+		}
+	}
+
+	private void complete(Request request, Object result) {
+		pending.remove(request.requestId);
+		request.future.complete(result);
+	}
+
+	/**
+	 * Comando em andamento: o identificador, o resultado a ser concluido e o que ja foi recebido de um
+	 * download ou listagem
+	 */
+	private static class Request {
+		private int requestId;
+		private CompletableFuture<Object> future = new CompletableFuture<>();
+		private List<EMailMessage> messages = new ArrayList<>();
+		private List<MessageHeader> headers = new ArrayList<>();
+		private ByteArrayOutputStream attachment;
+
+		Request(int requestId) {
+			this.requestId = requestId;
+		}
+
+		@SuppressWarnings("unchecked")
+		<T> CompletableFuture<T> result() {
+			return (CompletableFuture<T>) (CompletableFuture<?>) future;
+		}
+	}
+}
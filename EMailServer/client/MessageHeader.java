@@ -0,0 +1,64 @@
+package client;
+
+/**
+ * Classe entidade, responsavel por representar o cabecalho de uma mensagem da caixa postal do usuario, tal
+ * como listado pelo servidor em resposta ao quadro LIST_MESSAGES, sem o corpo nem o anexo da mensagem:
+ *  uid - identificador da mensagem na caixa postal, informado nos quadros FETCH_MESSAGE e FETCH_ATTACHMENT
+ *  sender - remetente da mensagem
+ *  subject - assunto do e-mail
+ *  size - tamanho da mensagem em bytes, anexo incluso
+ *  attachment - booleana que determina se a mensagem possui anexo ou nao
+ * Os comportamentos definidos pela classe se restringem a getters e setters dos atributos
+ */
+public class MessageHeader {
+	private long uid;
+	private String sender;
+	private String subject;
+	private long size;
+	private boolean attachment;
+
+	public MessageHeader() {
+		this.sender = "";
+		this.subject = "";
+	}
+
+	public long getUid() {
+		return this.uid;
+	}
+
+	public String getSender() {
+		return this.sender;
+	}
+
+	public String getSubject() {
+		return this.subject;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public boolean hasAttachment() {
+		return this.attachment;
+	}
+
+	public void setUid(long uid) {
+		this.uid = uid;
+	}
+
+	public void setSender(String sender) {
+		this.sender = sender;
+	}
+
+	public void setSubject(String subject) {
+		this.subject = subject;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public void setAttachment(boolean attachment) {
+		this.attachment = attachment;
+	}
+}
@@ -0,0 +1,107 @@
+package client;
+
+import java.io.*;
+import java.net.ProtocolException;
+
+/**
+ * Classe responsavel por dividir em partes o conteudo de um quadro de objeto de e-mail (SEND_MESSAGE ou
+ * MESSAGE) maior que Frame.MAX_FRAME_SIZE, e por remonta-lo do lado de quem o recebe, de modo que o tamanho
+ * do corpo do e-mail nao fique limitado ao de um quadro.
+ * O conteudo, ja comprimido caso a compressao tenha sido negociada, e enviado em quadros MESSAGE_PART de
+ * Frame.CHUNK_SIZE bytes com o identificador do comando, seguidos do quadro do proprio tipo com o restante
+ * (ver write). Quem recebe acumula as partes e, ao chegar o quadro final, obtem um unico quadro com todo o
+ * conteudo, como se tivesse chegado inteiro (ver add).
+ * O conteudo remontado e limitado a Frame.MAX_MESSAGE_SIZE bytes: acima disso, as partes seguintes sao
+ * descartadas e o quadro final resulta em ProtocolException, para que a resposta seja um erro do comando,
+ * sem encerrar a conexao.
+ * Como atributos, possui:
+ * 	int requestId - identificador do comando cujas partes estao sendo recebidas
+ * 	ByteArrayOutputStream parts - partes ja recebidas, ou null caso nenhuma esteja sendo acumulada
+ * 	boolean discarding - se as partes do comando excederam o limite e estao sendo descartadas
+ */
+public class MessageParts {
+	private int requestId;
+	private ByteArrayOutputStream parts;
+	private boolean discarding;
+
+	/**
+	 * Escritor de quadros sobre o qual as partes sao escritas (FrameCodec no cliente, a saida da sessao no
+	 * servidor)
+	 */
+	public interface FrameWriter {
+		void writeFrame(byte type, int requestId, byte[] payload, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Escreve o conteudo em um unico quadro do tipo informado ou, caso exceda Frame.MAX_FRAME_SIZE, em
+	 * quadros MESSAGE_PART seguidos do quadro final. Um conteudo acima de Frame.MAX_MESSAGE_SIZE e recusado
+	 * antes que qualquer quadro seja escrito.
+	 */
+	public static void write(FrameWriter writer, byte type, int requestId, byte[] payload, int offset, int length) throws IOException {
+		checkSize(length);
+
+		if (length > Frame.MAX_FRAME_SIZE) {
+			int end = offset + length;
+
+			while (end - offset > Frame.CHUNK_SIZE) {
+				writer.writeFrame(Frame.MESSAGE_PART, requestId, payload, offset, Frame.CHUNK_SIZE);
+				offset += Frame.CHUNK_SIZE;
+			}
+
+			length = end - offset;
+		}
+
+		writer.writeFrame(type, requestId, payload, offset, length);
+	}
+
+	/**
+	 * Recusa um objeto de e-mail cujo conteudo codificado exceda Frame.MAX_MESSAGE_SIZE
+	 */
+	public static void checkSize(int length) throws ProtocolException {
+		if (length > Frame.MAX_MESSAGE_SIZE)
+			throw new ProtocolException("E-mail too large: " + length + " bytes (limit: " + Frame.MAX_MESSAGE_SIZE + ")");
+	}
+
+	/**
+	 * Trata um quadro recebido: um quadro MESSAGE_PART e acumulado e resulta em null; o quadro seguinte do
+	 * mesmo comando resulta no quadro remontado, com o tipo deste e todo o conteudo; os demais quadros sao
+	 * retornados sem alteracao. Uma parte de outro comando descarta as partes acumuladas ate entao.
+	 */
+	public Frame add(Frame frame) throws ProtocolException {
+		if (frame == null)
+			return null;
+
+		if (frame.getType() == Frame.MESSAGE_PART) {
+			if ((parts == null && !discarding) || frame.getRequestId() != requestId) {
+				requestId = frame.getRequestId();
+				parts = new ByteArrayOutputStream();
+				discarding = false;
+			}
+
+			if (!discarding && parts.size() + frame.getPayload().length > Frame.MAX_MESSAGE_SIZE) {
+				parts = null;
+				discarding = true;
+			}
+
+			if (!discarding)
+				parts.writeBytes(frame.getPayload());
+
+			return null;
+		}
+
+		if ((parts == null && !discarding) || frame.getRequestId() != requestId)
+			return frame;
+
+		ByteArrayOutputStream received = parts;
+		parts = null;
+
+		if (discarding) {
+			discarding = false;
+			throw new ProtocolException("E-mail too large (limit: " + Frame.MAX_MESSAGE_SIZE + " bytes)");
+		}
+
+		checkSize(received.size() + frame.getPayload().length);
+		received.writeBytes(frame.getPayload());
+		return new Frame(frame.getType(), requestId, received.toByteArray());
+	}
+}
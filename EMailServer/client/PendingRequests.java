@@ -0,0 +1,58 @@
+package client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classe responsavel por numerar os comandos enviados ao servidor e por manter aqueles que ainda aguardam
+ * resposta, compartilhada pela thread de escrita, que registra cada comando, e pela de leitura, que o
+ * conclui ao receber sua resposta.
+ * Como o servidor repete em suas respostas o identificador do comando a que respondem, o cliente nao precisa
+ * aguardar a resposta de um comando para enviar o seguinte: varios comandos podem estar em andamento ao
+ * mesmo tempo e cada resposta e associada ao seu comando pelo identificador, na ordem em que chegar.
+ * Como atributos, possui:
+ * 	AtomicInteger nextRequestId - identificador do proximo comando enviado
+ * 	Map<Integer, String> pending - descricao de cada comando em andamento, por identificador
+ */
+public class PendingRequests {
+	private AtomicInteger nextRequestId = new AtomicInteger(1);
+	private Map<Integer, String> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Retorna o identificador de um comando que nao possui resposta (como o LOGIN)
+	 */
+	public int nextRequestId() {
+		return nextRequestId.getAndIncrement();
+	}
+
+	/**
+	 * Registra um comando que aguarda resposta e retorna seu identificador
+	 */
+	public int register(String description) {
+		int requestId = nextRequestId.getAndIncrement();
+		pending.put(requestId, description);
+		return requestId;
+	}
+
+	/**
+	 * Retorna a descricao do comando em andamento com o identificador informado, ou null caso nao exista
+	 */
+	public String get(int requestId) {
+		return pending.get(requestId);
+	}
+
+	/**
+	 * Conclui o comando com o identificador informado, retornando sua descricao, ou null caso nao exista
+	 */
+	public String complete(int requestId) {
+		return pending.remove(requestId);
+	}
+
+	/**
+	 * Retorna a quantidade de comandos que ainda aguardam resposta
+	 */
+	public int size() {
+		return pending.size();
+	}
+}
@@ -2,79 +2,113 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.List;
 
 /**
  * Classe responsavel por estabelecer o tratamento de dados que o servidor envia para o usuario cliente.
  * Como atributos, possui:
- * 	BufferedReader reader - stream de leitura que recebe dados em formato de texto (String)
  * 	Socket socket - instancia do socket de conexao entre o cliente e o servidor
  * 	EMailClient client - instancia que referencia a sua propria classe de cliente
+ * 	FrameCodec codec - leitor e escritor dos quadros do protocolo, compartilhado com a thread de escrita
+ * 		(ver classe FrameCodec para uma descricao mais detalhada)
+ * 	PendingRequests pendingRequests - registro dos comandos enviados pela thread de escrita que aguardam
+ * 		resposta, concluidos por esta thread pelo identificador repetido em cada resposta
  * 	EMailMessage eMailMessage - objeto que instancia uma mensagem de e-mail (ver classe EMailMessage para uma 
  * 		descricao mais detalhada)
- * 	InputStream inFromServer - stream generica que se conecta ao socket para obtencao dos dados de entrada
- * 	ObjectInputStream objectInFromServer - stream de entrada que remonta objetos trafegados por meio da
- * 		strema generica de entrada
+ * 	int downloadedMessages - quantidade de e-mails baixados no download em andamento
+ * 	int listedMessages - quantidade de cabecalhos recebidos na listagem em andamento
+ * 	String attachmentName - nome do anexo do ultimo e-mail baixado, cujo arquivo local so e criado ao
+ * 		chegar o primeiro pedaco (um e-mail baixado por /fetchMessage nao traz o anexo)
+ * 	OutputStream attachmentStream - arquivo local do anexo sendo recebido em pedacos, caso exista
+ * 	Compression compression - descompressor dos quadros recebidos comprimidos (ver classe Compression)
+ * 	MessageParts messageParts - partes recebidas de um e-mail maior que um quadro (ver classe MessageParts)
  */
 public class ReadThread extends Thread {
-	private BufferedReader reader;
-	private DataInputStream dataReader;
 	private Socket socket;
 	private EMailClient client;
+	private FrameCodec codec;
+	private PendingRequests pendingRequests;
 	private EMailMessage eMailMessage;
-	private InputStream inFromServer;
-	private ObjectInputStream objectInFromServer;
+	private int downloadedMessages;
+	private int listedMessages;
+	private String attachmentName;
+	private OutputStream attachmentStream;
+	private Compression compression = new Compression();
+	private MessageParts messageParts = new MessageParts();
 
 	/**
-	 * Construtor recebe o socket de conexao e a instancia da classe cliente a que esta thread referencia.
-	 * Por meio do socket instancia as streams de transmissao de dados do servidor para o cliente
+	 * Construtor recebe o socket de conexao, o codec de quadros da conexao, o registro dos comandos em
+	 * andamento e a instancia da classe cliente a que esta thread referencia
 	 */
-	public ReadThread(Socket socket, EMailClient client) {
+	public ReadThread(Socket socket, FrameCodec codec, PendingRequests pendingRequests, EMailClient client) {
 		this.socket = socket;
+		this.codec = codec;
+		this.pendingRequests = pendingRequests;
 		this.client = client;
+	}
 
+	/**
+	 * Trata um quadro MESSAGE do download de e-mails: o objeto de e-mail e remontado e gravado na maquina
+	 * local do usuario. O servidor envia um quadro por e-mail e sinaliza o fim da transmissao com um quadro
+	 * END_OF_MESSAGES. Caso o e-mail possua anexo, os quadros ATTACHMENT_CHUNK seguintes, caso
+	 * existam, sao gravados no arquivo local a medida que chegam (ver saveAttachmentChunk).
+	 */
+	private void downloadMessage(Frame frame) throws IOException {
 		try {
-			inFromServer = socket.getInputStream();
-			reader = new BufferedReader( new InputStreamReader(inFromServer) );
-			dataReader = new DataInputStream(inFromServer);
-			objectInFromServer = new ObjectInputStream(inFromServer);
-		} 
-		catch (IOException ex) {
-			System.out.println("Error getting input stream: " + ex.getMessage());
-			ex.printStackTrace();
+			eMailMessage = EMailMessageCodec.decode(frame.getPayload());
+
+			saveMessage( buildMessageBuffer(eMailMessage), eMailMessage.getMessageId() );
+
+			if (eMailMessage.hasAttachment() && eMailMessage.getAttachmentContent() != null)
+				saveAttachment( eMailMessage.getAttachmentName(), eMailMessage.getMessageId(), eMailMessage.getAttachmentContent() );
+			else if (eMailMessage.hasAttachment())
+				attachmentName = eMailMessage.getAttachmentName();
+
+			downloadedMessages++;
+		}
+		catch (ClassNotFoundException exception) {
+			System.out.println("Object class not found: " + exception.getMessage());
 		}
 	}
 
 	/**
-	 * Executa um laco que alterna entre o recebimento de um objeto de e-mail e uma mensagem de texto do servidor.
-	 * Esse comportamento foi estabelecido para que a thread interprete o momento de parada dessa transmissao, 
-	 * portanto, a cada objeto de e-mail enviado, o servidor envia ou a repeticao do comando /receiveMessages - 
-	 * para que a thread permaneca no laco recebendo mais e-mails - ou envia /stopMessageReceiving - provocando 
-	 * a parada do laco e consequente termino no download dos e-mails
+	 * Trata um quadro MESSAGE_HEADER da listagem da caixa postal, imprimindo no terminal o uid, o
+	 * remetente, o assunto e o tamanho da mensagem, sem que seu corpo ou anexo sejam baixados. O uid
+	 * impresso e o informado aos comandos /fetchMessage e /fetchAttachment.
 	 */
-	private void downloadMessages(String response) throws IOException {
-		while (!response.equals("/stopMessageReceiving")) {
-			try {
-				eMailMessage = (EMailMessage) objectInFromServer.readObject();
+	private void listMessage(Frame frame) throws IOException {
+		MessageHeader messageHeader = EMailMessageCodec.decodeHeader(frame.getPayload());
 
-				saveMessage( buildMessageBuffer(eMailMessage) );
+		System.out.println("[" + messageHeader.getUid() + "] " + messageHeader.getSender() + " - " + messageHeader.getSubject()
+			+ " (" + messageHeader.getSize() + " bytes" + (messageHeader.hasAttachment() ? ", with attachment)" : ")"));
 
-				if (eMailMessage.hasAttachment())
-					saveAttachment( eMailMessage.getAttachmentName(), eMailMessage.getAttachmentContent() );
+		listedMessages++;
+	}
 
-				// response = reader.readLine();
-				response = dataReader.readUTF();
+	/**
+	 * Trata os quadros enviados pelo servidor sem que um comando tenha sido enviado (identificador 0), quando
+	 * uma mensagem chega a caixa postal do usuario: o quadro NEW_MAIL, cujo cabecalho e impresso no
+	 * terminal, e o quadro MESSAGE com a propria mensagem, caso o usuario a tenha pedido por /push message,
+	 * que e gravada na maquina local como no download, sem alterar a contagem de um download em andamento.
+	 * O anexo nao acompanha a mensagem e pode ser baixado por /fetchAttachment com o uid impresso.
+	 */
+	private void receivePushedMessage(Frame frame) throws IOException {
+		if (frame.getType() == Frame.NEW_MAIL) {
+			MessageHeader messageHeader = EMailMessageCodec.decodeHeader(frame.getPayload());
 
-				if (response.startsWith("Error")) {
-					System.out.println(response);
-					return;
-				}
-			}
-			catch (ClassNotFoundException exception) {
-				System.out.println("Object class not found: " + exception.getMessage());
-			}
+			System.out.println("New e-mail [" + messageHeader.getUid() + "] from " + messageHeader.getSender() + " - "
+				+ messageHeader.getSubject() + (messageHeader.hasAttachment() ? " (with attachment)" : ""));
+			return;
 		}
 
-		System.out.println("E-mail(s) downloaded succesfully!");
+		try {
+			EMailMessage pushedMessage = EMailMessageCodec.decode(frame.getPayload());
+			saveMessage( buildMessageBuffer(pushedMessage), pushedMessage.getMessageId() );
+			System.out.println("E-mail saved: " + pushedMessage.getSubject());
+		}
+		catch (ClassNotFoundException exception) {
+			System.out.println("Object class not found: " + exception.getMessage());
+		}
 	}
 
 	/**
@@ -86,7 +120,7 @@ public class ReadThread extends Thread {
 	 * Indice 3 e o quarto atributo - attachment (flag se possui anexo ou nao)
 	 * Indice 4 e o quinto atributo - attachmentName (nome do anexo)
 	 */
-	private String[] buildMessageBuffer(EMailMessage eMailMessage) {
+	static String[] buildMessageBuffer(EMailMessage eMailMessage) {
 		String[] buffer = new String[5];
 
 		buffer[0] = eMailMessage.getAddressee();
@@ -102,13 +136,15 @@ public class ReadThread extends Thread {
 	 * Recebe o buffer contruido a partir do objeto de e-mail para entao salvar sua mensagem na maquina local
 	 * do usuario.
 	 * A nomenclatura utilizada foi received-subject, localizado no indice 1 do buffer, simulando o 
-	 * comportamento dos serviços de e-mail convencionais.
+	 * comportamento dos serviços de e-mail convencionais, acrescida do identificador da mensagem (ver
+	 * localFileName), para que duas mensagens de mesmo assunto nao se sobrescrevam.
 	 * Para prevenir erros no nome do arquivo em tempo de execucao, e feita substituicao de barras por tracos
 	 */
-	private void saveMessage(String[] buffer) {
+	void saveMessage(String[] buffer, long messageId) {
 		BufferedWriter fileStream = null;
 		String subject = buffer[1].replace("/", "-");
-		String fileName = client.getUserDirectoryPath() + "\\" + client.getUserEmail() + "\\received-" + subject + ".txt";
+		String fileName = client.getUserDirectoryPath() + "\\" + client.getUserEmail() + "\\"
+			+ localFileName("received-" + subject + ".txt", messageId);
 
 		try {
 			fileStream = new BufferedWriter ( new FileWriter ( fileName ));
@@ -132,16 +168,17 @@ public class ReadThread extends Thread {
 	/**
 	 * Responsavel por salvar um anexo de uma mensagem de e-mail no diretorio raiz de arquivos da maquina do
 	 * cliente.
-	 * Recebe por parametro o nome do anexo (conforme e salvo na propria mensagem de e-mail), o buffer de
-	 * bytes com o conteudo do anexo em si e a timestamp formatada.
+	 * Recebe por parametro o nome do anexo (conforme e salvo na propria mensagem de e-mail), o identificador
+	 * da mensagem, acrescentado ao nome do arquivo (ver localFileName), e o buffer de bytes com o conteudo do
+	 * anexo em si.
 	 * E inicializada uma stream de gravacao.
 	 * O path e quebrado, sendo o ultimo termo o nome isolado do arquivo junto da extensao.
 	 * Por fim, a stream de gravacao e chamada concluindo a operacao.
 	 */
-	private void saveAttachment(String attachmentName, byte[] buffer) {
+	void saveAttachment(String attachmentName, long messageId, byte[] buffer) {
 		BufferedOutputStream fileStream = null;
 		String[] filePath  = attachmentName.split("\\\\");
-		String fileName = client.getFileDirectoryPath() + "\\" + filePath[filePath.length - 1];
+		String fileName = client.getFileDirectoryPath() + "\\" + localFileName(filePath[filePath.length - 1], messageId);
 
 		try {
 			fileStream = new BufferedOutputStream( new FileOutputStream( fileName ));
@@ -154,46 +191,243 @@ public class ReadThread extends Thread {
 		}
 	}
 
+	/**
+	 * Acrescenta ao nome do arquivo, antes de sua extensao, o identificador da mensagem atribuido pelo
+	 * servidor (em hexadecimal), unico por mensagem e o mesmo a cada novo download dela. Mensagens sem
+	 * identificador mantem o nome original.
+	 */
+	static String localFileName(String fileName, long messageId) {
+		if (messageId == 0)
+			return fileName;
+
+		int extension = fileName.lastIndexOf('.');
+		if (extension <= 0)
+			return fileName + "-" + Long.toHexString(messageId);
+
+		return fileName.substring(0, extension) + "-" + Long.toHexString(messageId) + fileName.substring(extension);
+	}
+
+	/**
+	 * Abre o arquivo local em que o anexo recebido em pedacos sera gravado, no mesmo path utilizado por
+	 * saveAttachment
+	 */
+	private void openAttachment(String attachmentName) {
+		String[] filePath  = attachmentName.split("\\\\");
+		String fileName = client.getFileDirectoryPath() + "\\" + localFileName(filePath[filePath.length - 1], eMailMessage.getMessageId());
+
+		try {
+			attachmentStream = new FileOutputStream( fileName );
+		}
+		catch (IOException e) {
+			System.out.println("Error recording the file: " + fileName + "\n" + e.toString());
+		}
+	}
+
+	/**
+	 * Grava no arquivo local um pedaco do anexo sendo recebido, abrindo-o no primeiro pedaco. O quadro
+	 * ATTACHMENT_END (ou um quadro ERROR, caso o servidor interrompa o download) fecha o arquivo.
+	 */
+	private void saveAttachmentChunk(Frame frame) {
+		if (attachmentName != null) {
+			openAttachment(attachmentName);
+			attachmentName = null;
+		}
+
+		if (attachmentStream == null)
+			return;
+
+		try {
+			attachmentStream.write(frame.getPayload());
+		}
+		catch (IOException e) {
+			System.out.println("Error recording the attachment: " + e.toString());
+			closeAttachment();
+		}
+	}
+
+	private void closeAttachment() {
+		attachmentName = null;
+
+		if (attachmentStream == null)
+			return;
+
+		try {
+			attachmentStream.close();
+		}
+		catch (IOException e) {
+			System.out.println("Error recording the attachment: " + e.toString());
+		}
+
+		attachmentStream = null;
+	}
+
+	/**
+	 * Conclui a negociacao da compressao, guardando o modo escolhido pelo servidor para a thread de
+	 * escrita. Um quadro ERROR em resposta (servidor anterior a compressao) mantem a conexao sem compressao,
+	 * sem avisar o usuario.
+	 */
+	private void negotiateCompression(Frame frame) {
+		pendingRequests.complete(frame.getRequestId());
+
+		if (frame.getType() == Frame.COMPRESSION)
+			client.setCompression(frame.getText());
+	}
+
+	/**
+	 * Imprime a resposta de texto de um comando (quadros STATUS e ERROR), concluindo-o. Como varios comandos
+	 * podem estar em andamento, a resposta e acompanhada da descricao do comando a que se refere, quando
+	 * houver (por exemplo, o assunto do e-mail enviado).
+	 */
+	private void printResponse(Frame frame) {
+		String description = pendingRequests.complete(frame.getRequestId());
+
+		if (description == null)
+			System.out.println(frame.getText());
+		else
+			System.out.println(frame.getText() + " [" + description + "]");
+	}
+
+	/**
+	 * Imprime o resultado do envio de um lote de e-mails (quadro BATCH_STATUS), concluindo o comando: a
+	 * quantidade de e-mails gravados e de e-mails que falharam, seguida do erro de cada um destes, numerados
+	 * na ordem em que foram preenchidos
+	 */
+	private void printBatchStatus(Frame frame) throws IOException {
+		String description = pendingRequests.complete(frame.getRequestId());
+		List<String> errors = EMailMessageCodec.decodeBatchStatus(frame.getPayload());
+		int failed = 0;
+
+		for (String error : errors) {
+			if (error != null)
+				failed++;
+		}
+
+		System.out.println((errors.size() - failed) + " e-mail(s) sent to server succesfully, " + failed + " failed"
+			+ (description == null ? "" : " [" + description + "]"));
+
+		for (int i = 0; i < errors.size(); i++) {
+			if (errors.get(i) != null)
+				System.out.println("E-mail " + (i + 1) + ": " + errors.get(i));
+		}
+	}
+
 	/**
 	 * Logica principal da thread de leitura:
-	 * Cada comando enviado pelo usuario faz com que o servidor retransmita esse comando para que a thread de 
-	 * leitura saiba como tratar os dados resultantes desse determinado comando. Assim, a primeira acao e a 
-	 * de ler esse comando.
-	 * Se esse comando for /sendMessage, significa que o servidor comecou a receber uma mensagem de e-mail.
-	 * 	Apos a conclusao dessa operacao (tanto bem sucedida quanto finalizada com erro) o servidor transmite
-	 * 	nova mensagem, sendo esta comunicada ao usuario.
-	 * Se esse comando for /receiveMessages, significa que o servidor recebeu um pedido de download dos e-mails
-	 * por parte do usuario. Dessa forma, o servidor transmitira todos os e-mails recebidos por esse usuario, 
-	 * sendo estes gravados em sua maquina local.
-	 * Se esse comando for /logoff, significa que as demais threads ja foram encerradas e que esta tambem pode
-	 * encerrar, fechando o socket de comunicacao e provocando o termino normal do programa do cliente.
+	 * Cada quadro enviado pelo servidor e lido e tratado conforme seu tipo:
+	 * Quadro STATUS - confirmacao do envio de uma mensagem de e-mail, comunicada ao usuario junto do assunto
+	 * 	do e-mail, ja que varios envios podem estar em andamento (um envio que falha e respondido com um
+	 * 	quadro ERROR, impresso da mesma forma).
+	 * Quadro BATCH_STATUS - resultado do envio de um lote de e-mails, sendo informado ao usuario quantos
+	 * 	foram gravados e o erro de cada um dos que falharam.
+	 * Quadro MESSAGE - um dos e-mails recebidos pelo usuario, transmitido apos um pedido de download, sendo
+	 * 	este gravado em sua maquina local.
+	 * Quadros ATTACHMENT_CHUNK e ATTACHMENT_END - pedacos do anexo do ultimo e-mail recebido e o fim deste.
+	 * Quadro END_OF_MESSAGES - fim do download, sendo informado ao usuario quantos e-mails foram baixados e
+	 * 	gravado o uid recebido como cursor de sincronizacao, para que o proximo download transmita somente
+	 * 	as mensagens novas. O download de uma unica mensagem (/fetchMessage e /fetchAttachment) e encerrado
+	 * 	por este quadro sem conteudo, que nao altera o cursor.
+	 * Quadros MESSAGE_HEADER e END_OF_LIST - um cabecalho da listagem da caixa postal e o fim desta.
+	 * Quadro NEW_MAIL, e quadro MESSAGE de identificador 0 - aviso de uma nova mensagem na caixa postal,
+	 * 	enviado pelo servidor sem um comando do usuario (ver receivePushedMessage).
+	 * Quadro COMPRESSION, e quadro ERROR em resposta a ele - fim da negociacao da compressao.
+	 * Quadro ERROR - mensagem de erro do servidor, impressa no terminal.
+	 * Quadro LOGOFF - significa que as demais threads ja foram encerradas e que esta tambem pode encerrar,
+	 * 	fechando o socket de comunicacao e provocando o termino normal do programa do cliente.
+	 * Os quadros que chegam comprimidos sao descompressos antes de serem tratados, e um e-mail que chega em
+	 * partes (ver classe MessageParts) e tratado quando chega seu ultimo quadro.
 	 */
 	public void run() {
-		String response = "";
-
 		try {
-			do {
-				// response = reader.readLine();
-				response = dataReader.readUTF();
-
-				if (response.equals("/sendMessage")) {
-					// response = reader.readLine();
-					response = dataReader.readUTF();
-					System.out.println(response);
+			Frame frame = readFrame();
+
+			while (frame != null && frame.getType() != Frame.LOGOFF) {
+				if (frame.getType() == Frame.COMPRESSION || (frame.getType() == Frame.ERROR
+						&& Compression.NEGOTIATION.equals(pendingRequests.get(frame.getRequestId()))))
+					negotiateCompression(frame);
+
+				else if (frame.getType() == Frame.NEW_MAIL || (frame.getType() == Frame.MESSAGE && frame.getRequestId() == 0))
+					receivePushedMessage(frame);
+
+				else if (frame.getType() == Frame.STATUS)
+					printResponse(frame);
+
+				else if (frame.getType() == Frame.ERROR) {
+					closeAttachment();
+					printResponse(frame);
+				}
+
+				else if (frame.getType() == Frame.BATCH_STATUS)
+					printBatchStatus(frame);
+
+				else if (frame.getType() == Frame.MESSAGE)
+					downloadMessage(frame);
+
+				else if (frame.getType() == Frame.ATTACHMENT_CHUNK)
+					saveAttachmentChunk(frame);
+
+				else if (frame.getType() == Frame.ATTACHMENT_END) {
+					if (attachmentName != null)
+						openAttachment(attachmentName);
+					closeAttachment();
+				}
+
+				else if (frame.getType() == Frame.MESSAGE_HEADER)
+					listMessage(frame);
+
+				else if (frame.getType() == Frame.END_OF_LIST) {
+					if (listedMessages == 0)
+						System.out.println("There are no e-mails in your mailbox");
+					else
+						System.out.println(listedMessages + " e-mail(s) in your mailbox");
+
+					listedMessages = 0;
+					pendingRequests.complete(frame.getRequestId());
+				}
+
+				else if (frame.getType() == Frame.END_OF_MESSAGES) {
+					if (downloadedMessages == 0)
+						System.out.println("There are no e-mails to download");
+					else
+						System.out.println("E-mail(s) downloaded succesfully!");
+
+					downloadedMessages = 0;
+					attachmentName = null;
+					pendingRequests.complete(frame.getRequestId());
+					if (frame.getPayload().length > 0)
+						client.saveSyncUid(frame.getUid());
 				}
-					
-				else if (response.equals("/receiveMessages")) 
-					downloadMessages(response);
-
-				else if (response.equals("/stopMessageReceiving"))
-					System.out.println("There are no e-mails to download");
-					
-			} while (!response.equals("/logoff"));
-			
+
+				frame = readFrame();
+			}
+
+			pendingRequests.complete(frame == null ? 0 : frame.getRequestId());
+			closeAttachment();
 			socket.close();
 		}
 		catch (IOException ex) {
 			System.out.println("Error reading from server: " + ex.getMessage());
-		}	 
+		}
+		finally {
+			compression.end();
+		}
+	}
+
+	/**
+	 * Le o proximo quadro a ser tratado, ja remontado, caso tenha chegado em partes, e descomprimido, ou null
+	 * no fim da conexao
+	 */
+	private Frame readFrame() throws IOException {
+		Frame frame;
+
+		do {
+			frame = codec.readFrame();
+
+			if (frame == null)
+				return null;
+
+			frame = messageParts.add(frame);
+		} while (frame == null);
+
+		return compression.decompress(frame);
 	}
 }
\ No newline at end of file
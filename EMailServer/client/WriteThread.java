@@ -2,58 +2,101 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 // import java.util.Scanner;
 
 /**
  * Classe responsavel por estabelecer o tratamento de dados que o usuario cliente envia para servidor
  * Como atributos, possui:
- * 	OutputStream outToServer - stream generica de saida que se conecta ao socket para despachar os dados
- * 		para o servidor
- * 	ObjectOutputStream objectOutToServer - stream de saida que monta objetos a serem trafegados por meio da
- * 		stream generica de saida	
- * 	PrintWriter writer - stream de escrita que envia os dados em formato de texto (String)
+ * 	FrameCodec codec - leitor e escritor dos quadros do protocolo, compartilhado com a thread de leitura
+ * 		(ver classe FrameCodec para uma descricao mais detalhada)
+ * 	PendingRequests pendingRequests - numeracao dos comandos enviados, repetida pelo servidor em suas
+ * 		respostas, e registro dos que aguardam resposta, compartilhado com a thread de leitura
  * 	Socket socket - instancia do socket de conexao entre o cliente e o servidor
  * 	EMailClient client - instancia que referencia a sua propria classe de cliente
  * 	CommandReader userCommand - instancia do interpretador de comandos (ver classe CommandReader para uma
  * 		descricao mais detalhada)
  * 	EMailMessage eMailMessage - objeto que instancia uma mensagem de e-mail (ver classe EMailMessage para uma 
  * 		descricao mais detalhada)
+ * 	Compression compression - compressor do conteudo dos quadros enviados, utilizado somente apos a
+ * 		negociacao da compressao com o servidor (ver classe Compression)
  */
 public class WriteThread extends Thread {
-	private OutputStream outToServer;
-	private ObjectOutputStream objectOutToServer;
-	private PrintWriter writer;
+	private FrameCodec codec;
+	private PendingRequests pendingRequests;
 	private Socket socket;
 	private EMailClient client;
 	private CommandReader userCommand;
 	private EMailMessage emailMessage;	
+	private Compression compression = new Compression();
 
 	/**
-	 * Construtor recebe o socket de conexao e a instancia da classe cliente a que esta thread referencia.
-	 * Por meio do socket instancia as streams de transmissao de dados do cliente para o servidor
+	 * Construtor recebe o socket de conexao, o codec de quadros da conexao, o registro dos comandos em
+	 * andamento e a instancia da classe cliente a que esta thread referencia
 	 */
-	public WriteThread(Socket socket, EMailClient client) {
+	public WriteThread(Socket socket, FrameCodec codec, PendingRequests pendingRequests, EMailClient client) {
 		this.socket = socket;
+		this.codec = codec;
+		this.pendingRequests = pendingRequests;
 		this.client = client;
-
-		try {
-			outToServer = socket.getOutputStream();
-			writer = new PrintWriter(outToServer, true);
-			objectOutToServer = new ObjectOutputStream(outToServer);
-		} catch (IOException ex) {
-			System.out.println("Error getting output stream: " + ex.getMessage());
-			ex.printStackTrace();
-		}
 	}
 	
 	/**
 	 * Estabelece a interface em estilo de formulario para guiar o usuario no preenchimento do e-mail.
-	 * Neste preenchimento o objeto de e-mail é montado e, por fim, enviado ao servidor.
-	 * Caso haja anexo no e-mail, uma stream de leitura de arquivos é aberta momentaneamente para 
-	 * montar um buffer de bytes sendo este enviado como parte integrante do objeto do e-mail
+	 * Neste preenchimento o objeto de e-mail é montado e, por fim, enviado ao servidor em um quadro
+	 * SEND_MESSAGE.
+	 * Caso haja anexo no e-mail, o objeto carrega apenas o nome do anexo e o hash do arquivo, enviado em
+	 * pedacos logo apos o objeto (ver classe AttachmentUpload).
+	 * Caso a compressao tenha sido negociada, o objeto e os pedacos do anexo sao comprimidos (ver
+	 * writeCompressible), exceto os anexos cujo tipo ja e comprimido.
+	 * Um objeto maior que um quadro, por causa do corpo, e enviado em partes (ver classe MessageParts); acima
+	 * de Frame.MAX_MESSAGE_SIZE, o e-mail nao e enviado.
 	 */
 	public void sendEmail(Console console) throws IOException {
-		emailMessage = new EMailMessage();
+		emailMessage = readEmail(console);
+		byte[] chunkBuffer = new byte[Frame.CHUNK_SIZE];
+
+		if (emailMessage.hasAttachment())
+			emailMessage.setAttachmentHash(AttachmentUpload.hash(emailMessage.getAttachmentName(), chunkBuffer));
+
+		byte[] payload = EMailMessageCodec.encode(emailMessage);
+
+		try {
+			MessageParts.checkSize(payload.length);
+		}
+		catch (ProtocolException ex) {
+			System.out.println("The e-mail was not sent: " + ex.getMessage());
+			return;
+		}
+
+		System.out.println("\nYour message is being uploaded to the server");
+
+		if (!emailMessage.hasAttachment()) {
+			writeCompressible(Frame.SEND_MESSAGE, pendingRequests.register(describe(emailMessage)), payload, true);
+			codec.flush();
+			return;
+		}
+
+		try (FileInputStream FIS = new FileInputStream(emailMessage.getAttachmentName())) {
+			int requestId = pendingRequests.register(describe(emailMessage));
+
+			writeCompressible(Frame.SEND_MESSAGE, requestId, payload, true);
+			AttachmentUpload.writeChunks(this::writeCompressible, requestId, FIS, chunkBuffer,
+				Compression.isCompressible(emailMessage.getAttachmentName()));
+			codec.flush();
+		}
+	}
+
+	/**
+	 * Preenche, pelo formulario, um objeto de e-mail, cujo anexo, caso exista, e identificado apenas pelo
+	 * nome do arquivo
+	 */
+	private EMailMessage readEmail(Console console) {
+		EMailMessage emailMessage = new EMailMessage();
 
 		System.out.println("\n*** To send a message to multiple addressees, use ';' as separator");
 
@@ -65,71 +108,199 @@ public class WriteThread extends Thread {
 		if (attachment.equals("y") || attachment.equals("Y") || attachment.equals("yes") || attachment.equals("YES")) {
 			emailMessage.setAttachment(true);
 			emailMessage.setAttachmentName(console.readLine("\nPlease enter the file path: "));
-			FileInputStream FIS = new FileInputStream(emailMessage.getAttachmentName());
-			emailMessage.setAttachmentContent(FIS.readAllBytes());
-			FIS.close();
+			emailMessage.setAttachmentContent(null);
 		}
 		else {
 			emailMessage.setAttachment(false);
 			emailMessage.setAttachmentName("");
 			emailMessage.setAttachmentContent(null);
 		}
-		
-		System.out.println("\nYour message is being uploaded to the server");
 
-		objectOutToServer.writeObject(emailMessage);
-		objectOutToServer.flush();
+		return emailMessage;
+	}
+
+	/**
+	 * Preenche, pelo mesmo formulario de sendEmail, a quantidade de e-mails informada pelo usuario e os
+	 * envia ao servidor em um unico quadro SEND_BATCH, respondido com a situacao de cada um deles em um
+	 * unico quadro BATCH_STATUS.
+	 * Em um lote, os anexos viajam em linha, dentro do proprio objeto de e-mail, sendo portanto lidos
+	 * inteiros em memoria; anexos acima de Frame.MAX_INLINE_ATTACHMENT bytes devem ser enviados por
+	 * /sendMessage, e o lote nao e enviado caso exceda os limites do servidor (ver
+	 * EMailMessageCodec.encodeBatch).
+	 */
+	public void sendBatch(Console console) throws IOException {
+		String count = console.readLine("\nHow many e-mails would you like to send? ");
+
+		if (!count.trim().matches("\\d{1,4}") || Integer.parseInt(count.trim()) == 0 || Integer.parseInt(count.trim()) > Frame.MAX_BATCH_SIZE) {
+			System.out.println("Invalid number of e-mails");
+			return;
+		}
+
+		List<EMailMessage> emailMessages = new ArrayList<EMailMessage>();
+
+		for (int i = Integer.parseInt(count.trim()); i > 0; i--) {
+			EMailMessage emailMessage = readEmail(console);
+
+			if (emailMessage.hasAttachment()) {
+				try {
+					if (Files.size(Paths.get(emailMessage.getAttachmentName())) > Frame.MAX_INLINE_ATTACHMENT) {
+						System.out.println("Attachments larger than " + Frame.MAX_INLINE_ATTACHMENT / 1024
+							+ " KB must be sent by /sendMessage, the batch was not sent");
+						return;
+					}
+
+					emailMessage.setAttachmentContent(Files.readAllBytes(Paths.get(emailMessage.getAttachmentName())));
+				}
+				catch (IOException | InvalidPathException ex) {
+					System.out.println("Error reading the attachment, the batch was not sent: " + ex.getMessage());
+					return;
+				}
+			}
+
+			emailMessages.add(emailMessage);
+		}
+
+		byte[] batch;
+
+		try {
+			batch = EMailMessageCodec.encodeBatch(emailMessages);
+		}
+		catch (ProtocolException ex) {
+			System.out.println("The batch was not sent: " + ex.getMessage());
+			return;
+		}
+
+		System.out.println("\nYour messages are being uploaded to the server");
+
+		writeCompressible(Frame.SEND_BATCH, pendingRequests.register("Batch of " + emailMessages.size() + " e-mail(s)"), batch, true);
+		codec.flush();
+	}
+
+	/**
+	 * Escreve um quadro cujo conteudo e comprimido caso a compressao tenha sido negociada com o servidor e
+	 * valha a pena (ver Compression.compress). Retorna se o quadro foi comprimido: os pedacos seguintes de um
+	 * anexo que nao encolheu sao enviados sem tentar a compressao. Um conteudo maior que um quadro e dividido
+	 * em partes (ver MessageParts.write).
+	 */
+	private boolean writeCompressible(byte type, int requestId, byte[] payload, boolean compress) throws IOException {
+		return writeCompressible(type, requestId, payload, 0, payload.length, compress);
+	}
+
+	private boolean writeCompressible(byte type, int requestId, byte[] payload, int offset, int length, boolean compress) throws IOException {
+		byte[] compressed = null;
+
+		if (compress && client.getCompression().equals(Compression.DEFLATE))
+			compressed = compression.compress(payload, offset, length);
+
+		if (compressed == null)
+			MessageParts.write(codec::writeFrame, type, requestId, payload, offset, length);
+		else
+			MessageParts.write(codec::writeFrame, (byte) (type | Frame.COMPRESSED), requestId, compressed, 0, compressed.length);
+
+		return compressed != null;
+	}
+
+	/**
+	 * Descricao do envio de um e-mail, impressa junto da resposta do servidor para que o usuario saiba a
+	 * qual dos e-mails enviados ela se refere
+	 */
+	private String describe(EMailMessage emailMessage) {
+		return "Subject: " + emailMessage.getSubject();
 	}
 
 	/**
 	 * Logica principal da thread de escrita:
 	 * E instanciado um objeto de Console, o qual e utilizado para recuperacao dos textos digitados pelo 
-	 * 	usuario.
+	 * 	usuario. Sem um terminal (por exemplo, com a entrada redirecionada), a conexao e encerrada: programas
+	 * 	e scripts devem usar a classe HeadlessClient.
 	 * E instanciado um objeto de CommandReader - o interpretador de comandos - a fim de validar a sintaxe
 	 * 	dos comandos digitados pelo usuario.
 	 * O usuario realiza login no sistema digitando seu e-mail (nao e exatamente um login com senha para
 	 * 	validacao dos usuarios de e-mail - essa funcionalidade foi simplificada atendo-se somente ao uso
 	 * 	dessa String para criacao de um diretorio proprio desse usuario na particao raiz do sistema na 
-	 * 	maquina local. Adicionalmente esse e-mail e enviado ao servidor para que este tanto tenha 
-	 * 	conhecimento do usuario logado quanto crie um diretorio particular deste tambem)
+	 * 	maquina local. Adicionalmente esse e-mail e enviado ao servidor em um quadro LOGIN para que este
+	 * 	tanto tenha conhecimento do usuario logado quanto crie um diretorio particular deste tambem)
+	 * Junto do login e enviado o quadro COMPRESSION, com os modos de compressao aceitos pelo cliente, cuja
+	 * 	resposta e tratada pela thread de leitura (ver classe Compression).
 	 * E entao iniciado o laco desta thread, que basicamente cria um prefixo [user e-mail] e fica aguardando
 	 * 	o usuario entrar com algum comando
 	 * Esse comando e entao submetido ao interpretador para que este valide sua sintaxe. Caso falhe nesse 
 	 * 	teste, uma mensagem de erro devolvida pelo interpretador e impressa na tela do usuario e laco se
 	 * 	inicia novamente.
-	 * Caso o comando seja valido, este e entao enviado ao servidor - para que o servidor possa se preparar
-	 * 	adequadamente para recepcionar os dados a depender do comando.
+	 * Caso o comando seja valido, este e entao enviado ao servidor em seu respectivo quadro, registrado em
+	 * 	pendingRequests. A thread nao aguarda a resposta: o usuario pode digitar o proximo comando enquanto
+	 * 	o anterior ainda e executado, e a thread de leitura associa cada resposta ao seu comando.
 	 * Para os comandos /logoff e /receiveMessages - estes apenas sao enviados ao servidor. (No caso do 
 	 * 	/logoff este provoca o termino da thread do usuario do lado do servidor e o das de escrita e leitura
 	 * 	do lado do usuario. No caso do /receiveMessages o servidor se prepara para transmitir os objetos de
-	 * 	e-mail recebidos deste determinado usuario)
+	 * 	e-mail recebidos deste determinado usuario desde o ultimo download, cujo uid e lido do cursor de
+	 * 	sincronizacao gravado pela thread de leitura)
+	 * Para os comandos /listMessages, /fetchMessage e /fetchAttachment - tambem apenas enviados ao
+	 * 	servidor, com o uid informado pelo usuario: a caixa postal e listada somente pelos cabecalhos das
+	 * 	mensagens, e cada mensagem (ou seu anexo) e baixada sob demanda.
 	 * Para o comando /sendMessage e entao iniciada a sequencia de montagem do objeto de e-mail que o
-	 * 	usuario representado por esta thread deseja enviar, concluindo com o seu envio para o servidor.
+	 * 	usuario representado por esta thread deseja enviar, sendo o quadro enviado somente quando o e-mail
+	 * 	estiver completo. O comando /sendBatch repete essa sequencia para varios e-mails, enviados juntos.
 	 */
 	public void run() {
 
 		Console console = System.console();
 		userCommand = new CommandReader();
 
+		if (console == null) {
+			System.out.println("No terminal available: the console client must be run interactively (see HeadlessClient)");
+
+			try {
+				codec.sendFrame(Frame.LOGOFF, pendingRequests.register("/logoff"), new byte[0]);
+			}
+			catch (IOException ex) {
+				System.out.println("Error writing to server: " + ex.getMessage());
+			}
+			return;
+		}
+
 		String userEmail = console.readLine("\nEnter your e-mail login address: ");
 		client.setUserEmail(userEmail);
 		client.makeUserDirectory(userEmail);
-		writer.println(userEmail);
 
 		String text;
 		String commandSyntax;
 
 		try {
+			codec.writeFrame(Frame.LOGIN, pendingRequests.nextRequestId(), FrameCodec.text(userEmail));
+			if (Compression.MODE.equals(Compression.DEFLATE))
+				codec.writeFrame(Frame.COMPRESSION, pendingRequests.register(Compression.NEGOTIATION), FrameCodec.text(Compression.DEFLATE));
+			codec.flush();
+
 			do {
 				text = console.readLine("[" + userEmail + "]: ");
 				commandSyntax = userCommand.readCommand(text);
 
 				if (commandSyntax.equals("Ok")) {
 
-					writer.println(userCommand.getUserInput());
-					
-					if (userCommand.getUserInput().equals("/sendMessage")) 
+					if (userCommand.getCommand().equals("/sendMessage")) 
 						sendEmail(console);
+
+					else if (userCommand.getCommand().equals("/sendBatch"))
+						sendBatch(console);
+
+					else if (userCommand.getCommand().equals("/receiveMessages"))
+						codec.sendFrame(Frame.RECEIVE_MESSAGES, pendingRequests.register(text), FrameCodec.uid(client.loadSyncUid()));
+
+					else if (userCommand.getCommand().equals("/listMessages"))
+						codec.sendFrame(Frame.LIST_MESSAGES, pendingRequests.register(text), FrameCodec.uid(userCommand.getUid()));
+
+					else if (userCommand.getCommand().equals("/fetchMessage"))
+						codec.sendFrame(Frame.FETCH_MESSAGE, pendingRequests.register(text), FrameCodec.uid(userCommand.getUid()));
+
+					else if (userCommand.getCommand().equals("/fetchAttachment"))
+						codec.sendFrame(Frame.FETCH_ATTACHMENT, pendingRequests.register(text), FrameCodec.uid(userCommand.getUid()));
+
+					else if (userCommand.getCommand().equals("/push"))
+						codec.sendFrame(Frame.PUSH_MODE, pendingRequests.register(text), FrameCodec.text(userCommand.getArgument()));
+
+					else
+						codec.sendFrame(Frame.LOGOFF, pendingRequests.register(text), new byte[0]);
 				}
 				else
 					System.out.println(commandSyntax);
@@ -0,0 +1,126 @@
+package benchmark;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Comparacao de duas execucoes dos benchmarks JMH gravadas em CSV (-rf csv), por exemplo a da versao
+ * anterior e a da atual, para acusar regressoes entre versoes.
+ * Cada benchmark e identificado pelo nome, modo e parametros (colunas "Param: ..."). Para cada um presente
+ * nas duas execucoes e impressa a variacao do resultado, e e considerada regressao a piora maior que o
+ * limite em porcentagem (por padrao 10) e maior que a soma das margens de erro das duas medicoes: queda
+ * nos modos de vazao (thrpt) ou aumento nos modos de tempo (avgt, sample e ss). O programa termina com
+ * status 1 caso haja alguma regressao, para que possa ser usado em scripts.
+ * Sintaxe: java benchmark/ResultComparison <baseline.csv> <current.csv> [threshold-%]
+ */
+public class ResultComparison {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Syntax: java benchmark/ResultComparison <baseline.csv> <current.csv> [threshold-%]");
+			System.exit(0);
+		}
+
+		Map<String, Result> baseline = read(Paths.get(args[0]));
+		Map<String, Result> current = read(Paths.get(args[1]));
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		int regressions = 0;
+
+		for (Map.Entry<String, Result> entry : current.entrySet()) {
+			Result before = baseline.get(entry.getKey());
+			Result after = entry.getValue();
+
+			if (before == null) {
+				System.out.printf("%-80s %14s -> %14.3f %s (new)%n", entry.getKey(), "", after.score, after.unit);
+				continue;
+			}
+
+			double change = (after.score - before.score) / before.score * 100;
+			double worsening = after.mode.equals("thrpt") ? before.score - after.score : after.score - before.score;
+			boolean regression = worsening > before.score * threshold / 100 && worsening > before.error + after.error;
+
+			if (regression)
+				regressions++;
+
+			System.out.printf("%-80s %14.3f -> %14.3f %s (%+.1f%%)%s%n", entry.getKey(), before.score, after.score, after.unit,
+				change, regression ? " REGRESSION" : "");
+		}
+
+		System.out.println(regressions + " regression(s) above " + threshold + "%");
+		System.exit(regressions == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Le os resultados de um arquivo CSV do JMH, indexados pelo nome, modo e parametros de cada benchmark
+	 */
+	private static Map<String, Result> read(Path file) throws IOException {
+		List<String> lines = Files.readAllLines(file);
+		List<String> columns = parseLine(lines.get(0));
+		Map<String, Result> results = new LinkedHashMap<>();
+
+		for (String line : lines.subList(1, lines.size())) {
+			if (line.isBlank())
+				continue;
+
+			List<String> values = parseLine(line);
+			StringBuilder key = new StringBuilder(values.get(columns.indexOf("Benchmark")));
+			String mode = values.get(columns.indexOf("Mode"));
+			key.append(" [").append(mode);
+
+			for (int i = 0; i < columns.size(); i++) {
+				if (columns.get(i).startsWith("Param: ") && !values.get(i).isEmpty())
+					key.append(", ").append(columns.get(i).substring("Param: ".length())).append('=').append(values.get(i));
+			}
+
+			String error = values.get(columns.indexOf("Score Error (99.9%)"));
+			results.put(key.append(']').toString(), new Result(mode, Double.parseDouble(values.get(columns.indexOf("Score"))),
+				error.isEmpty() || error.equals("NaN") ? 0 : Double.parseDouble(error), values.get(columns.indexOf("Unit"))));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Separa os campos de uma linha CSV, com ou sem aspas
+	 */
+	private static List<String> parseLine(String line) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (c == '"' && quoted && i + 1 < line.length() && line.charAt(i + 1) == '"')
+				value.append(line.charAt(++i));
+			else if (c == '"')
+				quoted = !quoted;
+			else if (c == ',' && !quoted) {
+				values.add(value.toString());
+				value.setLength(0);
+			}
+			else
+				value.append(c);
+		}
+
+		values.add(value.toString());
+		return values;
+	}
+
+	/**
+	 * Resultado de um benchmark: o modo, o valor medido, sua margem de erro e a unidade
+	 */
+	private static class Result {
+		private String mode;
+		private double score;
+		private double error;
+		private String unit;
+
+		Result(String mode, double score, double error, String unit) {
+			this.mode = mode;
+			this.score = score;
+			this.error = error;
+			this.unit = unit;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package client;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark JMH da ida e volta do objeto de e-mail pelo EMailMessageCodec (formato dos quadros
+ * SEND_MESSAGE, MESSAGE e SEND_BATCH) e, como referencia, pela serializacao Java usada antes do codec.
+ * Os perfis de mensagem sao os mesmos de benchmark/MessageCodecBenchmark: curta (small), com corpo longo
+ * (large-body) e com anexo em linha de 64 KB (attachment). O lote de encodeBatch tem BATCH_SIZE e-mails,
+ * o maximo do perfil attachment que cabe em um quadro (Frame.MAX_FRAME_SIZE).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EMailMessageCodecBenchmark {
+	private static final int BATCH_SIZE = 4;
+
+	@Param({ "small", "large-body", "attachment" })
+	private String profile;
+
+	private EMailMessage eMailMessage;
+	private byte[] encoded;
+	private byte[] serialized;
+	private List<EMailMessage> batch;
+
+	@Setup
+	public void setup() throws IOException {
+		eMailMessage = switch (profile) {
+			case "large-body" -> buildMessage(16 * 1024, 0);
+			case "attachment" -> buildMessage(256, 64 * 1024);
+			default -> buildMessage(64, 0);
+		};
+
+		encoded = EMailMessageCodec.encode(eMailMessage);
+		serialized = EMailMessageCodec.serialize(eMailMessage);
+		batch = Collections.nCopies(BATCH_SIZE, eMailMessage);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return EMailMessageCodec.encode(eMailMessage);
+	}
+
+	@Benchmark
+	public EMailMessage decode() throws IOException, ClassNotFoundException {
+		return EMailMessageCodec.decode(encoded);
+	}
+
+	@Benchmark
+	public EMailMessage roundTrip() throws IOException, ClassNotFoundException {
+		return EMailMessageCodec.decode(EMailMessageCodec.encode(eMailMessage));
+	}
+
+	@Benchmark
+	public EMailMessage serializationRoundTrip() throws IOException, ClassNotFoundException {
+		return EMailMessageCodec.deserialize(EMailMessageCodec.serialize(eMailMessage));
+	}
+
+	@Benchmark
+	public EMailMessage deserialize() throws IOException, ClassNotFoundException {
+		return EMailMessageCodec.deserialize(serialized);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public byte[] encodeBatch() throws IOException {
+		return EMailMessageCodec.encodeBatch(batch);
+	}
+
+	static EMailMessage buildMessage(int bodySize, int attachmentSize) {
+		EMailMessage eMailMessage = new EMailMessage();
+		eMailMessage.setAddressee("first@benchmark;second@benchmark;third@benchmark");
+		eMailMessage.setSubject("Benchmark subject");
+		eMailMessage.setBody("b".repeat(bodySize));
+		eMailMessage.setAttachment(attachmentSize > 0);
+		eMailMessage.setAttachmentName(attachmentSize > 0 ? "C:\\docs\\report.pdf" : "");
+		eMailMessage.setMessageId(0x5214fe382000000L);
+
+		if (attachmentSize > 0) {
+			byte[] attachment = new byte[attachmentSize];
+			new Random(42).nextBytes(attachment);
+			eMailMessage.setAttachmentContent(attachment);
+		}
+
+		return eMailMessage;
+	}
+}
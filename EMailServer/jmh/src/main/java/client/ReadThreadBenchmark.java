@@ -0,0 +1,86 @@
+package client;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark JMH dos caminhos de gravacao do cliente ao baixar um e-mail (ver classe ReadThread): a montagem
+ * do buffer de linhas a partir do objeto de e-mail (buildMessageBuffer), a gravacao da mensagem
+ * (saveMessage) e do anexo recebido em linha (saveAttachment), e a formacao do nome do arquivo local com o
+ * identificador da mensagem (localFileName, que substituiu o antigo formatFilePath).
+ * Os arquivos sao gravados nos diretorios do cliente (ver EMailClient), por um usuario novo a cada
+ * execucao, e apagados ao fim dela.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadThreadBenchmark {
+	private static final long MESSAGE_ID = 0x5214fe382000000L;
+
+	private EMailClient client;
+	private ReadThread readThread;
+	private EMailMessage eMailMessage;
+	private String[] messageBuffer;
+
+	@Setup
+	public void setup() {
+		client = new EMailClient("localhost", 0);
+		client.setUserEmail("jmh" + Long.toHexString(System.nanoTime()) + "@benchmark");
+		new File(client.getUserDirectoryPath() + "\\" + client.getUserEmail()).mkdirs();
+		new File(client.getFileDirectoryPath()).mkdirs();
+
+		readThread = new ReadThread(null, null, new PendingRequests(), client);
+		eMailMessage = EMailMessageCodecBenchmark.buildMessage(1024, 0);
+		eMailMessage.setSubject("Benchmark " + client.getUserEmail());
+		messageBuffer = ReadThread.buildMessageBuffer(eMailMessage);
+	}
+
+	@TearDown
+	public void tearDown() {
+		new File(client.getUserDirectoryPath() + "\\" + client.getUserEmail() + "\\"
+			+ ReadThread.localFileName("received-" + eMailMessage.getSubject() + ".txt", MESSAGE_ID)).delete();
+		new File(client.getFileDirectoryPath() + "\\" + ReadThread.localFileName(client.getUserEmail() + ".bin", MESSAGE_ID)).delete();
+	}
+
+	@Benchmark
+	public String[] buildMessageBuffer() {
+		return ReadThread.buildMessageBuffer(eMailMessage);
+	}
+
+	@Benchmark
+	public void saveMessage() {
+		readThread.saveMessage(messageBuffer, MESSAGE_ID);
+	}
+
+	@Benchmark
+	public void saveAttachment(Attachment attachment) {
+		readThread.saveAttachment("C:\\docs\\" + client.getUserEmail() + ".bin", MESSAGE_ID, attachment.content);
+	}
+
+	@Benchmark
+	public String localFileName() {
+		return ReadThread.localFileName("quarterly report.final.pdf", MESSAGE_ID);
+	}
+
+	/**
+	 * Conteudo do anexo gravado por saveAttachment, do tamanho escolhido
+	 */
+	@State(Scope.Thread)
+	public static class Attachment {
+		@Param({ "65536", "1048576" })
+		private int size;
+
+		private byte[] content;
+
+		@Setup
+		public void setup() {
+			content = new byte[size];
+			new Random(42).nextBytes(content);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import client.EMailMessage;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Benchmark JMH do download completo de uma caixa postal (/receiveMessages desde o inicio, ver
+ * UserSession.fetchMessages) com a quantidade de mensagens escolhida, sem socket: os quadros sao
+ * entregues a uma saida que apenas conta os bytes (ver classe CountingOutput).
+ * A caixa postal sintetica e gravada uma unica vez por execucao, pelo proprio MailStorage de um servidor
+ * inicializado sem aceitar conexoes, para um usuario novo a cada execucao. Com attachments=true, uma a
+ * cada dez mensagens tem um anexo de 64 KB, entregue a saida por transferFile como no servidor.
+ * O cache de mensagens fica ligado, como no servidor; para medir a leitura do disco, executar com
+ * -jvmArgsAppend -Demail.messageCacheMB=0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FetchMessagesBenchmark {
+	private static final int BATCH_SIZE = 100;
+
+	@Param({ "100", "1000" })
+	private int messages;
+
+	@Param({ "false", "true" })
+	private boolean attachments;
+
+	private CountingOutput output = new CountingOutput();
+	private UserSession session;
+
+	@Setup
+	public void setup() throws Exception {
+		EMailServer server = new EMailServer(0);
+		server.initialize();
+
+		String user = "jmh" + Long.toHexString(System.nanoTime()) + "@benchmark";
+		server.makeUserDirectory(user);
+		populate(server, user);
+
+		session = new UserSession(server, output);
+		session.handleFrame(new Frame(Frame.LOGIN, 1, FrameCodec.text(user)));
+	}
+
+	/**
+	 * Grava as mensagens em lotes, como /sendBatch, e aguarda que as threads de entrega as gravem na caixa
+	 * postal do usuario
+	 */
+	private void populate(EMailServer server, String user) throws Exception {
+		Random random = new Random(42);
+		List<EMailMessage> batch = new ArrayList<EMailMessage>(BATCH_SIZE);
+
+		for (int i = 0; i < messages; i++) {
+			EMailMessage eMailMessage = new EMailMessage();
+			eMailMessage.setAddressee(user);
+			eMailMessage.setSubject("Fetch benchmark " + i);
+			eMailMessage.setBody("Fetch benchmark message " + i + "\n" + "x".repeat(1024));
+			eMailMessage.setAttachment(attachments && i % 10 == 0);
+			eMailMessage.setAttachmentName(eMailMessage.hasAttachment() ? "attachment-" + i + ".bin" : "");
+
+			if (eMailMessage.hasAttachment()) {
+				byte[] attachment = new byte[64 * 1024];
+				random.nextBytes(attachment);
+				eMailMessage.setAttachmentContent(attachment);
+			}
+
+			batch.add(eMailMessage);
+
+			if (batch.size() == BATCH_SIZE || i == messages - 1) {
+				for (IOException error : server.getStorage().storeMessages("sender@benchmark", batch).join()) {
+					if (error != null)
+						throw error;
+				}
+				batch.clear();
+			}
+		}
+
+		while (server.getStorage().getDeliveryQueue().getQueueDepth() > 0)
+			Thread.sleep(5);
+	}
+
+	@Benchmark
+	public long fetchMessages() throws IOException {
+		output.bytes = 0;
+		session.fetchMessages(2, 0);
+
+		if (session.isTransferring() || output.bytes < messages * 1024L)
+			throw new IllegalStateException("Download did not finish");
+
+		return output.bytes;
+	}
+
+	/**
+	 * Saida de sessao que descarta os quadros, contando seus bytes, e nunca fica congestionada, de modo que
+	 * o download inteiro e transmitido em uma unica chamada de fetchMessages
+	 */
+	private static class CountingOutput implements SessionOutput {
+		private long bytes;
+
+		public void writeFrame(byte type, int requestId, byte[] payload) {
+			bytes += Frame.HEADER_SIZE + payload.length;
+		}
+
+		public void writeFrame(byte type, int requestId, byte[] payload, int offset, int length) {
+			bytes += Frame.HEADER_SIZE + length;
+		}
+
+		public void transferFile(byte type, int requestId, FileChannel file) throws IOException {
+			bytes += file.size() - file.position();
+			file.close();
+		}
+
+		public boolean isCongested() {
+			return false;
+		}
+
+		public void flush() {
+		}
+
+		public void execute(Runnable task) {
+			task.run();
+		}
+
+		public void executeBlocking(Runnable operation, Continuation continuation) throws IOException {
+			operation.run();
+			continuation.run();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package server;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark JMH da leitura de uma mensagem gravada no formato anterior as caixas postais, uma linha por
+ * atributo (ver MailStorage.buildMessageBuffer), feita na importacao das mensagens antigas de cada
+ * usuario. O arquivo e gravado em um diretorio temporario, apagado ao fim da execucao.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBufferBenchmark {
+	@Param({ "256", "16384" })
+	private int bodySize;
+
+	private Path directory;
+	private String fileName;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("jmh-legacy");
+		fileName = directory.resolve("received-1700000000000.txt").toString();
+
+		Files.write(Paths.get(fileName), String.join(System.lineSeparator(), "sender@benchmark", "Benchmark subject",
+			"b".repeat(bodySize), "true", "report.pdf", "7f760f58e7121f15c12d1fb65dac4217c2b5deabe3ac0536d72bf666c076d80c").getBytes());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(Paths.get(fileName));
+		Files.deleteIfExists(directory);
+	}
+
+	@Benchmark
+	public String[] buildMessageBuffer() {
+		return MailStorage.buildMessageBuffer(fileName);
+	}
+}
@@ -0,0 +1,66 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark JMH do custo de uma linha de log para a thread que a registra, com varias threads registrando
+ * ao mesmo tempo, como a thread de aceite e as sessoes: o registro no buffer circular do ServerLog, com o
+ * nivel habilitado e desabilitado, e a escrita sincrona em System.out que o ServerLog substituiu.
+ * A saida padrao e trocada, antes do primeiro uso do ServerLog, por uma saida que descarta os bytes (sink
+ * null) ou que, alem disso, demora 50 us por escrita (sink slow), simulando um pipe para um coletor de
+ * logs lento. Com a saida lenta, a escrita sincrona passa a custar o tempo da saida, enquanto o ServerLog
+ * descarta o que nao couber no buffer (ver ServerLog.getDropped).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ServerLogBenchmark {
+	@Param({ "null", "slow" })
+	private String sink;
+
+	private InetAddress address;
+
+	@Setup
+	public void setup() throws IOException {
+		OutputStream output = sink.equals("slow") ? new SlowOutput() : OutputStream.nullOutputStream();
+		System.setOut(new PrintStream(output, true));
+		address = InetAddress.getLoopbackAddress();
+		ServerLog.info("Log benchmark started");
+	}
+
+	@Benchmark
+	public void serverLog() {
+		ServerLog.info("New user connected: {}", address);
+	}
+
+	@Benchmark
+	public void serverLogDisabled() {
+		ServerLog.log(ServerLog.Level.DEBUG, "New user connected: {}", address, null);
+	}
+
+	@Benchmark
+	public void systemOut() {
+		System.out.println("New user connected: " + address);
+	}
+
+	/**
+	 * Saida que descarta os bytes apos 50 us por escrita
+	 */
+	private static class SlowOutput extends OutputStream {
+		public void write(int b) {
+			LockSupport.parkNanos(50_000);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			LockSupport.parkNanos(50_000);
+		}
+	}
+}
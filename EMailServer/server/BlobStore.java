@@ -0,0 +1,327 @@
+package server;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.file.*;
+import java.nio.channels.FileChannel;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe responsavel pelo armazenamento enderecado por conteudo dos anexos, no diretorio raiz de arquivos
+ * do servidor.
+ * Cada anexo e gravado uma unica vez, identificado pelo hash SHA-256 de seu conteudo (a chave do blob), no
+ * caminho Files\xx\chave, em que xx sao os dois primeiros digitos da chave. As mensagens gravadas pelo
+ * MailStorage referenciam o blob por sua chave, de modo que o mesmo arquivo enviado varias vezes, ou a
+ * varios destinatarios, ocupa o disco uma unica vez, e dois anexos de mesmo nome nunca colidem.
+ * Ao lado de cada blob e mantido o arquivo chave.refs com a quantidade de mensagens que o referenciam
+ * (uma por destinatario e a copia do remetente). Como as mensagens das caixas postais nunca sao apagadas,
+ * os contadores apenas crescem.
+ * Quanto a durabilidade, um armazenamento pode forcar a gravacao em disco (fsync) de cada novo blob antes
+ * de torna-lo visivel, como o dos anexos, cujo conteudo so existe no blob; ou, como o das mensagens, cujo
+ * conteudo tambem e gravado no journal das mensagens aceitas (ver classe Journal), apenas registrar os
+ * arquivos gravados para que sync force a gravacao de todos eles de uma so vez. Os contadores de referencias
+ * sao sempre registrados para o sync.
+ * O fsync de um novo blob ocorre antes de qualquer trava, de modo que um anexo grande nao atrase os demais
+ * uploads nem as entregas. A leitura e regravacao de um contador e a publicacao de um blob sao protegidas
+ * por uma de LOCK_STRIPES travas, escolhida pela chave, e operacoes sobre blobs distintos raramente
+ * disputam a mesma trava.
+ * Como atributos, possui:
+ * 	Path root - diretorio raiz de arquivos do servidor
+ * 	Path temporaryDirectory - diretorio em que os uploads em andamento sao gravados antes de conhecida a
+ * 		sua chave
+ * 	boolean forceOnStore - se cada novo blob e gravado em disco antes de tornar-se visivel
+ * 	Set<Path> unsyncedFiles - arquivos gravados desde a ultima chamada de sync
+ * 	LongAdder storedBytes - bytes dos blobs novos gravados desde o inicio do servidor (ver ServerMetrics)
+ * 	ReentrantLock[] locks - travas dos contadores e da publicacao dos blobs, escolhidas pela chave
+ */
+class BlobStore {
+	private static final String REFS_SUFFIX = ".refs";
+	private static final int KEY_LENGTH = 64;
+	private static final int LOCK_STRIPES = 64;
+
+	private Path root;
+	private Path temporaryDirectory;
+	private boolean forceOnStore;
+	private Set<Path> unsyncedFiles = ConcurrentHashMap.newKeySet();
+	private LongAdder storedBytes = new LongAdder();
+	private ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+	BlobStore(Path root, boolean forceOnStore) {
+		this.root = root;
+		this.temporaryDirectory = root.resolve("tmp");
+		this.forceOnStore = forceOnStore;
+
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Retorna o caminho do blob identificado pela chave. Uma chave que nao seja um hash SHA-256 em
+	 * hexadecimal (ver isKey) nunca e resolvida, para que nenhum caminho escape do diretorio raiz.
+	 */
+	Path path(String key) {
+		if (!isKey(key))
+			throw new IllegalArgumentException("Invalid blob key: " + key);
+
+		return root.resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	/**
+	 * Retorna se o texto tem o formato de uma chave de blob: 64 digitos hexadecimais minusculos
+	 */
+	static boolean isKey(String key) {
+		if (key == null || key.length() != KEY_LENGTH)
+			return false;
+
+		for (int i = 0; i < KEY_LENGTH; i++) {
+			char digit = key.charAt(i);
+
+			if ((digit < '0' || digit > '9') && (digit < 'a' || digit > 'f'))
+				return false;
+		}
+
+		return true;
+	}
+
+	long getStoredBytes() {
+		return storedBytes.sum();
+	}
+
+	boolean exists(String key) {
+		return Files.exists(path(key));
+	}
+
+	/**
+	 * Armazena um anexo ja inteiro em memoria (enviado dentro do proprio objeto de e-mail) e retorna sua
+	 * chave. Caso o conteudo ja exista no servidor, nada e gravado.
+	 */
+	String put(byte[] content) throws IOException {
+		String key = toKey(newDigest().digest(content));
+
+		if (!exists(key)) {
+			Upload upload = beginUpload(null);
+			upload.write(content);
+			return upload.commit();
+		}
+
+		return key;
+	}
+
+	/**
+	 * Inicia o recebimento de um anexo em pedacos. Caso o cliente tenha informado o hash do anexo e este ja
+	 * exista no servidor, os pedacos sao apenas conferidos, sem nenhuma gravacao em disco. Como o hash vem
+	 * do cliente, um hash fora do formato de chave e recusado antes de qualquer acesso ao disco.
+	 */
+	Upload beginUpload(String expectedKey) throws IOException {
+		if (expectedKey != null && !isKey(expectedKey))
+			throw new ProtocolException("Invalid attachment hash");
+
+		if (expectedKey != null && exists(expectedKey))
+			return new Upload(expectedKey, null);
+
+		Files.createDirectories(temporaryDirectory);
+		return new Upload(expectedKey, Files.createTempFile(temporaryDirectory, "upload", ".part"));
+	}
+
+	/**
+	 * Acrescenta count referencias ao blob
+	 */
+	void retain(String key, int count) throws IOException {
+		ReentrantLock lock = lockFor(key);
+
+		lock.lock();
+		try {
+			writeReferences(key, readReferences(key) + count);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move o arquivo temporario de um upload para o caminho do blob, caso o conteudo ainda nao exista; do
+	 * contrario, o arquivo temporario e descartado. Retorna se o blob foi gravado.
+	 * O fsync do arquivo temporario, que pode ser grande, ocorre antes de obter a trava da chave.
+	 */
+	private boolean store(Path temporaryFile, String key) throws IOException {
+		Path blob = path(key);
+
+		if (forceOnStore && !Files.exists(blob))
+			force(temporaryFile);
+
+		ReentrantLock lock = lockFor(key);
+
+		lock.lock();
+		try {
+			if (Files.exists(blob)) {
+				Files.delete(temporaryFile);
+				return false;
+			}
+
+			Files.createDirectories(blob.getParent());
+			Files.move(temporaryFile, blob, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			lock.unlock();
+		}
+
+		storedBytes.add(Files.size(blob));
+
+		if (!forceOnStore)
+			unsyncedFiles.add(blob);
+
+		return true;
+	}
+
+	private ReentrantLock lockFor(String key) {
+		return locks[Math.floorMod(key.hashCode(), locks.length)];
+	}
+
+	/**
+	 * Forca a gravacao em disco dos blobs e contadores de referencias gravados desde a ultima chamada
+	 */
+	void sync() throws IOException {
+		for (Path file : unsyncedFiles) {
+			unsyncedFiles.remove(file);
+
+			try {
+				if (Files.exists(file))
+					force(file);
+			}
+			catch (IOException ex) {
+				unsyncedFiles.add(file);
+				throw ex;
+			}
+		}
+	}
+
+	private static void force(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.force(false);
+		}
+	}
+
+	private int readReferences(String key) throws IOException {
+		Path references = referencesPath(key);
+
+		if (!Files.exists(references))
+			return 0;
+
+		return Integer.parseInt(Files.readString(references).trim());
+	}
+
+	/**
+	 * Grava o contador em um arquivo temporario ao lado do contador e o substitui de uma so vez, de modo que
+	 * uma queda do servidor durante a gravacao nunca deixe o contador truncado
+	 */
+	private void writeReferences(String key, int references) throws IOException {
+		Path referencesPath = referencesPath(key);
+		Path temporaryFile = referencesPath.resolveSibling(referencesPath.getFileName() + ".tmp");
+
+		Files.writeString(temporaryFile, String.valueOf(references));
+		Files.move(temporaryFile, referencesPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		unsyncedFiles.add(referencesPath);
+	}
+
+	private Path referencesPath(String key) {
+		return root.resolve(key.substring(0, 2)).resolve(key + REFS_SUFFIX);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not available", ex);
+		}
+	}
+
+	private static String toKey(byte[] digest) {
+		return HexFormat.of().formatHex(digest);
+	}
+
+	/**
+	 * Upload de um anexo em andamento: cada pedaco atualiza o hash do conteudo e, a menos que o blob ja
+	 * exista, e gravado em um arquivo temporario, movido para o caminho do blob ao fim do upload.
+	 * Com a gravacao JFR habilitada, o upload emite um evento StoreBlob (ver classe ServerEvents) do seu
+	 * inicio ao commit.
+	 */
+	class Upload {
+		private String expectedKey;
+		private Path temporaryFile;
+		private OutputStream fileStream;
+		private MessageDigest digest = newDigest();
+		private long size;
+		private ServerEvents.StoreBlob event;
+
+		private Upload(String expectedKey, Path temporaryFile) throws IOException {
+			this.expectedKey = expectedKey;
+			this.temporaryFile = temporaryFile;
+
+			if (temporaryFile != null)
+				fileStream = Files.newOutputStream(temporaryFile);
+
+			ServerEvents.StoreBlob event = new ServerEvents.StoreBlob();
+			if (event.isEnabled()) {
+				event.begin();
+				this.event = event;
+			}
+		}
+
+		void write(byte[] chunk) throws IOException {
+			digest.update(chunk);
+			size += chunk.length;
+
+			if (fileStream != null)
+				fileStream.write(chunk);
+		}
+
+		/**
+		 * Conclui o upload e retorna a chave do blob. Quando a gravacao foi dispensada, o hash calculado deve
+		 * coincidir com o informado pelo cliente, ou o anexo e recusado.
+		 */
+		String commit() throws IOException {
+			String key = toKey(digest.digest());
+
+			if (fileStream == null) {
+				if (!key.equals(expectedKey) || !exists(key))
+					throw new IOException("Attachment checksum mismatch");
+				commitEvent(true);
+				return key;
+			}
+
+			fileStream.close();
+			fileStream = null;
+			commitEvent(!store(temporaryFile, key));
+			return key;
+		}
+
+		private void commitEvent(boolean deduplicated) {
+			if (event != null) {
+				event.directory = root.toString();
+				event.bytes = size;
+				event.deduplicated = deduplicated;
+				event.commit();
+			}
+		}
+
+		/**
+		 * Descarta o upload, removendo o arquivo temporario
+		 */
+		void abort() {
+			try {
+				if (fileStream != null)
+					fileStream.close();
+				if (temporaryFile != null)
+					Files.deleteIfExists(temporaryFile);
+			}
+			catch (IOException ex) {
+				ServerLog.warn("Error discarding the attachment upload: {}", ex.getMessage());
+			}
+		}
+	}
+}
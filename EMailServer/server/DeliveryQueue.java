@@ -0,0 +1,331 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Classe responsavel pela fila de entrega das mensagens aceitas pelo servidor, que separa a confirmacao do
+ * envio ao cliente da gravacao das entradas nas caixas postais dos destinatarios.
+ * Ao aceitar um e-mail (ou um lote de e-mails), o MailStorage grava o conteudo da mensagem uma unica vez e
+ * entrega a esta classe as entregas pendentes (ver classe Delivery), que sao acrescentadas ao journal das
+ * mensagens aceitas (ver classe Journal), junto do conteudo das mensagens, antes de o cliente receber a
+ * confirmacao. A partir dai, um conjunto fixo de threads de entrega grava as entradas de cada destinatario
+ * (ver MailStorage.deliver) e registra a conclusao da entrega no journal. Assim a latencia do remetente nao
+ * cresce com a quantidade de destinatarios, e o custo do fsync do journal e dividido entre todas as
+ * mensagens aceitas ao mesmo tempo.
+ * Ao iniciar, as entregas que o journal nao registra como concluidas sao refeitas antes de o servidor
+ * aceitar conexoes: o conteudo das mensagens e regravado a partir do journal e cada caixa postal recebe
+ * somente as entradas que ainda nao possui (cada entrada traz a posicao da entrega no journal), de modo que
+ * uma entrega interrompida no meio e completada sem duplicar entradas.
+ * A fila em memoria das threads de entrega e limitada a MAX_PENDING_BATCHES lotes: quando cheia, a entrega e
+ * feita pela propria thread do journal, que so confirma os envios seguintes ao termina-la, em vez de
+ * acumular entregas sem limite.
+ * Ao iniciar o servidor com -Demail.delivery=sync, as entregas sao feitas na propria sessao do remetente,
+ * sem o journal (e sem fsync), e a quantidade de threads de entrega pode ser escolhida por
+ * -Demail.deliveryWorkers.
+ * As metricas da fila (profundidade, atraso das entregas e fsyncs do journal) sao publicadas por JMX, como
+ * server:type=DeliveryQueue (ver interface DeliveryQueueMBean).
+ * Como atributos, possui:
+ * 	MailStorage storage - armazenamento que grava as entradas nas caixas postais
+ * 	Journal journal - journal das mensagens aceitas
+ * 	ExecutorService workers - threads de entrega
+ * 	demais atributos - metricas publicadas por JMX
+ */
+class DeliveryQueue implements DeliveryQueueMBean {
+	private static final boolean SYNCHRONOUS = "sync".equals(System.getProperty("email.delivery"));
+	private static final int WORKERS = Integer.getInteger("email.deliveryWorkers", Runtime.getRuntime().availableProcessors());
+	private static final int MAX_PENDING_BATCHES = 1024;
+
+	private MailStorage storage;
+	private Journal journal;
+	private ExecutorService workers;
+
+	private AtomicInteger queueDepth = new AtomicInteger();
+	private AtomicLong acceptedMessages = new AtomicLong();
+	private AtomicLong deliveredMessages = new AtomicLong();
+	private AtomicLong failedMessages = new AtomicLong();
+	private LongAdder totalLagMillis = new LongAdder();
+	private AtomicLong maxLagMillis = new AtomicLong();
+	private volatile long lastLagMillis;
+
+	DeliveryQueue(MailStorage storage, Path directory) {
+		this.storage = storage;
+		this.journal = new Journal(storage, directory);
+		this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(MAX_PENDING_BATCHES),
+			Thread.ofPlatform().name("DeliveryWorker-", 0).factory(), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Publica as metricas da fila por JMX e refaz, na ordem em que foram aceitas, as entregas que o journal
+	 * nao registra como concluidas. Ao fim, o armazenamento e sincronizado e os segmentos antigos do journal
+	 * sao apagados.
+	 */
+	void start() throws IOException {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("server:type=DeliveryQueue"));
+		}
+		catch (JMException ex) {
+			ServerLog.warn("Error publishing the delivery queue metrics: {}", ex.getMessage());
+		}
+
+		List<Journal.Record> records = journal.recover();
+
+		if (!records.isEmpty())
+			ServerLog.info("Resuming the delivery of {} accepted batch(es)", records.size());
+
+		for (Journal.Record record : records) {
+			List<Delivery> deliveries = read(record);
+
+			for (Delivery delivery : deliveries)
+				storage.restoreContent(delivery);
+
+			queueDepth.addAndGet(deliveries.size());
+			acceptedMessages.addAndGet(deliveries.size());
+			deliver(record.getPosition(), deliveries, true);
+		}
+
+		storage.endRecovery();
+		storage.sync();
+		journal.discardRecovered();
+	}
+
+	/**
+	 * Aceita as entregas de um e-mail ou de um lote de e-mails: acrescenta-as ao journal, com o conteudo
+	 * das mensagens, sem aguardar o disco. O resultado e concluido assim que o journal estiver gravado em
+	 * disco, quando as entregas sao agendadas para as threads de entrega, ou com o erro da gravacao.
+	 */
+	CompletableFuture<Void> enqueue(List<Delivery> deliveries) throws IOException {
+		if (SYNCHRONOUS) {
+			queueDepth.addAndGet(deliveries.size());
+			acceptedMessages.addAndGet(deliveries.size());
+			deliver(0, deliveries, false);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream recordWriter = new DataOutputStream(record);
+		recordWriter.writeInt(deliveries.size());
+
+		for (Delivery delivery : deliveries)
+			delivery.write(recordWriter);
+
+		return journal.accept(record.toByteArray()).thenAccept(position -> {
+			for (int i = 0; i < deliveries.size(); i++)
+				deliveries.get(i).setJournalPosition(position, i);
+
+			queueDepth.addAndGet(deliveries.size());
+			acceptedMessages.addAndGet(deliveries.size());
+			workers.execute(() -> deliver(position, deliveries, false));
+		});
+	}
+
+	/**
+	 * Grava as entradas das entregas nas caixas postais, atualiza as metricas e registra a conclusao das
+	 * entregas no journal
+	 */
+	private void deliver(long position, List<Delivery> deliveries, boolean recovering) {
+		boolean delivered = storage.deliver(deliveries, recovering);
+		long now = System.currentTimeMillis();
+
+		for (Delivery delivery : deliveries) {
+			long lag = now - delivery.getTimestamp();
+			totalLagMillis.add(lag);
+			maxLagMillis.accumulateAndGet(lag, Math::max);
+			lastLagMillis = lag;
+		}
+
+		(delivered ? deliveredMessages : failedMessages).addAndGet(deliveries.size());
+		queueDepth.addAndGet(-deliveries.size());
+
+		if (position != 0 && !recovering)
+			journal.delivered(position);
+	}
+
+	private static List<Delivery> read(Journal.Record record) throws IOException {
+		DataInputStream recordReader = record.getReader();
+		int count = recordReader.readInt();
+		List<Delivery> deliveries = new ArrayList<Delivery>(count);
+
+		for (int i = 0; i < count; i++) {
+			Delivery delivery = Delivery.read(recordReader);
+			delivery.setJournalPosition(record.getPosition(), i);
+			deliveries.add(delivery);
+		}
+
+		return deliveries;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public long getAcceptedMessages() {
+		return acceptedMessages.get();
+	}
+
+	public long getDeliveredMessages() {
+		return deliveredMessages.get();
+	}
+
+	public long getFailedMessages() {
+		return failedMessages.get();
+	}
+
+	public long getLastDeliveryLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getMaxDeliveryLagMillis() {
+		return maxLagMillis.get();
+	}
+
+	public double getAverageDeliveryLagMillis() {
+		long finished = deliveredMessages.get() + failedMessages.get();
+		return finished == 0 ? 0 : (double) totalLagMillis.sum() / finished;
+	}
+
+	public long getJournalCommits() {
+		return journal.getCommits();
+	}
+
+	public double getAverageCommitSize() {
+		long commits = journal.getCommits();
+		return commits == 0 ? 0 : (double) journal.getRecords() / commits;
+	}
+
+	/**
+	 * Entrega pendente de um e-mail aceito pelo servidor: o remetente, a chave do conteudo da mensagem, a
+	 * chave do anexo (ou null, caso nao exista), o identificador da mensagem (ver MessageIdGenerator), o
+	 * instante do aceite, o assunto (ja limitado ao tamanho das entradas da caixa postal), o tamanho da
+	 * mensagem e os destinatarios, cada um dos quais, junto do proprio remetente, recebe uma entrada em sua
+	 * caixa postal. O conteudo da mensagem e gravado junto da
+	 * entrega no journal, e a posicao da entrega no journal (a posicao do registro e o indice da entrega
+	 * nele) e gravada em cada entrada, permitindo reconhecer as entradas ja gravadas ao refazer a entrega.
+	 * Os textos do registro sao gravados por writeUTF, cujo limite de 65.535 bytes nunca e alcancado: alem
+	 * do assunto ja limitado, o remetente e os destinatarios sao conferidos no aceite (ver
+	 * MailStorage.checkAddress) e as chaves tem tamanho fixo.
+	 */
+	static class Delivery {
+		private String sender;
+		private String messageKey;
+		private String attachmentKey;
+		private long messageId;
+		private long timestamp;
+		private String subject;
+		private long size;
+		private String[] addressees;
+		private byte[] content;
+		private long journalPosition;
+		private int journalIndex;
+
+		Delivery(String sender, String messageKey, String attachmentKey, long messageId, long timestamp, String subject,
+				long size, String[] addressees, byte[] content) {
+			this.sender = sender;
+			this.messageKey = messageKey;
+			this.attachmentKey = attachmentKey;
+			this.messageId = messageId;
+			this.timestamp = timestamp;
+			this.subject = subject;
+			this.size = size;
+			this.addressees = addressees;
+			this.content = content;
+		}
+
+		String getSender() {
+			return this.sender;
+		}
+
+		String getMessageKey() {
+			return this.messageKey;
+		}
+
+		String getAttachmentKey() {
+			return this.attachmentKey;
+		}
+
+		boolean hasAttachment() {
+			return this.attachmentKey != null;
+		}
+
+		long getMessageId() {
+			return this.messageId;
+		}
+
+		long getTimestamp() {
+			return this.timestamp;
+		}
+
+		String getSubject() {
+			return this.subject;
+		}
+
+		long getSize() {
+			return this.size;
+		}
+
+		String[] getAddressees() {
+			return this.addressees;
+		}
+
+		byte[] getContent() {
+			return this.content;
+		}
+
+		long getJournalPosition() {
+			return this.journalPosition;
+		}
+
+		int getJournalIndex() {
+			return this.journalIndex;
+		}
+
+		void setJournalPosition(long journalPosition, int journalIndex) {
+			this.journalPosition = journalPosition;
+			this.journalIndex = journalIndex;
+		}
+
+		void write(DataOutputStream recordWriter) throws IOException {
+			recordWriter.writeUTF(sender);
+			recordWriter.writeUTF(messageKey);
+			recordWriter.writeUTF(attachmentKey == null ? "" : attachmentKey);
+			recordWriter.writeLong(messageId);
+			recordWriter.writeLong(timestamp);
+			recordWriter.writeUTF(subject);
+			recordWriter.writeLong(size);
+			recordWriter.writeInt(addressees.length);
+
+			for (String addressee : addressees)
+				recordWriter.writeUTF(addressee);
+
+			recordWriter.writeInt(content.length);
+			recordWriter.write(content);
+		}
+
+		static Delivery read(DataInputStream recordReader) throws IOException {
+			String sender = recordReader.readUTF();
+			String messageKey = recordReader.readUTF();
+			String attachmentKey = recordReader.readUTF();
+			long messageId = recordReader.readLong();
+			long timestamp = recordReader.readLong();
+			String subject = recordReader.readUTF();
+			long size = recordReader.readLong();
+			String[] addressees = new String[recordReader.readInt()];
+
+			for (int i = 0; i < addressees.length; i++)
+				addressees[i] = recordReader.readUTF();
+
+			byte[] content = new byte[recordReader.readInt()];
+			recordReader.readFully(content);
+
+			return new Delivery(sender, messageKey, attachmentKey.isEmpty() ? null : attachmentKey, messageId, timestamp,
+				subject, size, addressees, content);
+		}
+	}
+}
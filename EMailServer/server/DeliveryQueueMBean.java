@@ -0,0 +1,31 @@
+package server;
+
+/**
+ * Metricas da fila de entrega (ver classe DeliveryQueue), publicadas por JMX como server:type=DeliveryQueue:
+ * 	QueueDepth - quantidade de mensagens aceitas que ainda nao foram entregues
+ * 	AcceptedMessages, DeliveredMessages e FailedMessages - totais de mensagens aceitas, entregues e cuja
+ * 		entrega falhou em alguma caixa postal, desde o inicio do servidor
+ * 	LastDeliveryLagMillis, MaxDeliveryLagMillis e AverageDeliveryLagMillis - atraso entre o aceite de uma
+ * 		mensagem e o fim de sua entrega
+ * 	JournalCommits e AverageCommitSize - quantidade de fsyncs do journal e media de registros gravados por
+ * 		fsync (ver Journal)
+ */
+public interface DeliveryQueueMBean {
+	int getQueueDepth();
+
+	long getAcceptedMessages();
+
+	long getDeliveredMessages();
+
+	long getFailedMessages();
+
+	long getLastDeliveryLagMillis();
+
+	long getMaxDeliveryLagMillis();
+
+	double getAverageDeliveryLagMillis();
+
+	long getJournalCommits();
+
+	double getAverageCommitSize();
+}
@@ -2,7 +2,9 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Classe responsavel por instanciar um servidor de e-mail.
@@ -11,22 +13,43 @@ import java.util.*;
  * para fornecer conexoes aos usuarios.
  * A classe opera basicamente recebendo (e aceitando) pedidos de conexao de usuarios e abrindo threads de 
  * comunicacao com cada um deles, assim viabilizando trocas de dados com multiplos usuarios simultaneamente
+ * No modo virtual, cada UserThread executa em uma thread virtual em vez de uma thread de plataforma, e no
+ * modo nio as conexoes sao distribuidas entre um conjunto pequeno e fixo de lacos de eventos (ver classe
+ * EventLoop) em vez de uma thread por usuario.
+ * As sessoes logadas sao mantidas por usuario no SessionRegistry, e a lista de threads de sessao e um
+ * conjunto concorrente, pois ambos sao alterados tanto pela thread de aceite quanto por cada sessao, sem
+ * blocos synchronized que prenderiam as threads virtuais a sua thread portadora.
  */
 public class EMailServer {
+	private static final int STORAGE_WORKERS = Integer.getInteger("email.storageWorkers", 4 * Runtime.getRuntime().availableProcessors());
+
 	private int port;
-	private Set<String> userEMails = new HashSet<>();
-	private Set<UserThread> userThreads = new HashSet<>();
+	private String mode;
+	private int eventLoops;
+	private MailStorage storage;
+	private ServerMetrics metrics;
+	private SessionRegistry sessions = new SessionRegistry();
+	private Set<UserThread> userThreads = ConcurrentHashMap.newKeySet();
+	private ExecutorService storageWorkers;
 	private final String serverRootPath = "C:\\JavaEMailServer";
 	// private final String serverRootPath = "\\Users\\matheusbarbsaveMessageosa\\eclipse-workspace\\EpEmail2\\src\\userData";
 	private final String userDirectoryPath = serverRootPath + "\\Users";
 	private final String fileDirectoryPath = serverRootPath + "\\Files";
+	private final String messageDirectoryPath = serverRootPath + "\\Messages";
+	private final String queueDirectoryPath = serverRootPath + "\\Queue";
 
 	public EMailServer(int port) {
+		this(port, "thread", Runtime.getRuntime().availableProcessors());
+	}
+
+	public EMailServer(int port, String mode, int eventLoops) {
 		this.port = port;
+		this.mode = mode;
+		this.eventLoops = eventLoops;
 	}
 
-	Set<String> getuserEMails() {
-		return this.userEMails;
+	SessionRegistry getSessions() {
+		return this.sessions;
 	}
 	public String getUserDirectoryPath(){
 		return this.userDirectoryPath;
@@ -34,16 +57,38 @@ public class EMailServer {
 	public String getFileDirectoryPath(){
 		return this.fileDirectoryPath;
 	}
+	public String getMessageDirectoryPath(){
+		return this.messageDirectoryPath;
+	}
+	public String getQueueDirectoryPath(){
+		return this.queueDirectoryPath;
+	}
+	MailStorage getStorage() {
+		return this.storage;
+	}
+	ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+	ExecutorService getStorageWorkers() {
+		return this.storageWorkers;
+	}
 
 	/**
 	 * Inicializa a estrutura de diretorios do servidor para recepcionar os e-mails e arquivos enviados pelos 
 	 * clientes, sendo criados caso nao existam ainda ou realizando bypass para prevenir erros em tempo de 
 	 * execucao e a sobrescrita dos arquivos ali presentes.
+	 * O armazenamento (ver MailStorage) e as metricas sao criados aqui, e nao no construtor, pois recebem a
+	 * propria instancia do servidor, que so deve ser repassada depois de construida.
+	 * Em seguida, sao publicadas as metricas do servidor (ver ServerMetrics) e do cache de mensagens (ver
+	 * MessageCache) e e retomada a entrega das mensagens que restaram na fila de entrega (ver DeliveryQueue).
+	 * Se a fila de entrega nao puder ser retomada, a excecao e propagada, pois sem a thread do journal nenhum
+	 * envio seria confirmado e o servidor nao deve atender conexoes.
 	 */
-    private void initialize() {
+    void initialize() throws IOException {
         File serverDirectory = new File(serverRootPath);
 		File userDirectory = new File(userDirectoryPath);
 		File fileDirectory = new File(fileDirectoryPath);
+		File messageDirectory = new File(messageDirectoryPath);
 
         if (!serverDirectory.exists()) 
 			serverDirectory.mkdirs();
@@ -53,6 +98,17 @@ public class EMailServer {
 
 		if (!fileDirectory.exists())
 			fileDirectory.mkdirs();
+
+		if (!messageDirectory.exists())
+			messageDirectory.mkdirs();
+
+		storage = new MailStorage(this);
+		metrics = new ServerMetrics(storage);
+
+		metrics.start();
+		storage.getMessageCache().start();
+
+		storage.getDeliveryQueue().start();
 	}
 
 	/**
@@ -68,59 +124,143 @@ public class EMailServer {
 			userEmailDirectory.mkdirs();
 	}
 
+	/**
+	 * Inicia o servidor no modo de execucao escolhido na inicializacao
+	 */
+	public void execute() {
+		if (mode.equals("nio"))
+			executeNio();
+		else
+			executeThreads();
+	}
+
 	/**
 	 * Instancia o socket do servidor com a porta passada por parametro e inicia laco que aguarda pedidos de 
 	 * conexao por parte dos usuarios e, para cada novo usuario, abre uma thread especifica de trocas de dados
+	 * por meio do executor de sessoes
+	 * O socket e aceito por um ServerSocketChannel, em modo bloqueante, para que cada conexao possua um canal
+	 * e os anexos possam ser transmitidos por FileChannel.transferTo (ver UserThread.transferFile)
 	 */
-	public void execute() {
-		try (ServerSocket serverSocket = new ServerSocket(port)) {
+	private void executeThreads() {
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			ExecutorService sessionExecutor = newSessionExecutor()) {
 
-            System.out.println("**** Welcome to our E-Mail Server! ****");
-            System.out.println("\nListening on port: " + port);
+			serverChannel.bind(new InetSocketAddress(port));
+
+            ServerLog.info("**** Welcome to our E-Mail Server! ****");
+            ServerLog.info("Listening on port: {}{}", port, mode.equals("virtual") ? " (virtual threads)" : "");
 
 			while (true) {
-				Socket socket = serverSocket.accept(); 
-				System.out.println("New user connected: " + socket.getInetAddress());
+				Socket socket = serverChannel.accept().socket();
+				ServerLog.info("New user connected: {}", socket.getInetAddress());
 
 				UserThread newUser = new UserThread(socket, this);
 				userThreads.add(newUser);
-				newUser.start();
+				sessionExecutor.execute(newUser);
 			}
 
 		} catch (IOException ex) {
-			System.out.println("Error in the server: " + ex.getMessage());
-			ex.printStackTrace();
+			ServerLog.error("Error in the server: {}", ex.getMessage(), ex);
 		}
 	}
 
 	/**
-	 * Armazena o e-mail do novo usuario conectado na lista do servidor
+	 * Cria o executor que conduz as sessoes de usuario: no modo virtual, uma thread virtual por sessao; nos
+	 * demais, uma thread de plataforma por sessao, como no modelo original. Cada UserThread abre ainda uma
+	 * thread leitora do mesmo tipo (ver UserThread.run).
 	 */
-	void addUserEMail(String userEMail) {
-		userEMails.add(userEMail);
+	private ExecutorService newSessionExecutor() {
+		if (mode.equals("virtual"))
+			return Executors.newVirtualThreadPerTaskExecutor();
+
+		return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("UserThread-", 0).factory());
 	}
 
 	/**
-	 * Remove um usuario da lista de e-mails e de threads abertas quando um usuario desconecta
+	 * Instancia o canal do servidor com a porta passada por parametro e os lacos de eventos do motor NIO.
+	 * O laco de aceite permanece nesta thread e distribui cada nova conexao entre os lacos de eventos de
+	 * forma circular (round-robin), sendo a sessao do usuario conduzida a partir dai pela NioSession.
+	 * As operacoes das sessoes que aguardam o disco sao executadas por um conjunto fixo de threads de
+	 * trabalho (por padrao, quatro por processador, ou -Demail.storageWorkers), e nao pelos lacos de eventos
+	 * (ver NioSession.executeBlocking). Como cada sessao aguarda no maximo uma operacao, a fila dessas
+	 * threads nunca passa da quantidade de conexoes.
 	 */
-	void removeUser(String userEMail, UserThread user) {
-		boolean removed = userEMails.remove(userEMail);
-		if (removed) {
-			userThreads.remove(user);
-			System.out.println("User " + userEMail + " has quitted");
+	private void executeNio() {
+		storageWorkers = Executors.newFixedThreadPool(STORAGE_WORKERS, Thread.ofPlatform().name("StorageWorker-", 0).factory());
+
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(port));
+
+			EventLoop[] loops = new EventLoop[eventLoops];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(this, i);
+				loops[i].start();
+			}
+
+            ServerLog.info("**** Welcome to our E-Mail Server! ****");
+            ServerLog.info("Listening on port: {} (nio, {} event loops)", port, eventLoops);
+
+			for (int next = 0; true; next = (next + 1) % loops.length) {
+				SocketChannel channel = serverChannel.accept();
+				ServerLog.info("New user connected: {}", channel.socket().getInetAddress());
+
+				loops[next].register(channel);
+			}
+
+		} catch (IOException ex) {
+			ServerLog.error("Error in the server: {}", ex.getMessage(), ex);
 		}
 	}
+
+	/**
+	 * Registra a sessao do usuario que acaba de fazer login
+	 */
+	void addUserSession(String userEMail, UserSession session) {
+		sessions.register(userEMail, session);
+	}
+
+	/**
+	 * Remove a sessao de um usuario do registro quando esta termina, retornando se a sessao constava nele
+	 */
+	boolean removeUserSession(String userEMail, UserSession session) {
+		boolean removed = sessions.unregister(userEMail, session);
+		if (removed)
+			ServerLog.info("User {} has quitted", userEMail);
+		return removed;
+	}
+
+	/**
+	 * Remove a thread de um usuario da lista de threads abertas quando sua sessao termina
+	 */
+	void removeUserThread(UserThread user) {
+		userThreads.remove(user);
+	}
     
 	public static void main(String[] args) {
 		if (args.length < 1) {
-			System.out.println("Syntax: java EMailServer <port-number>");
+			System.out.println("Syntax: java EMailServer <port-number> [thread|virtual|nio] [event-loops]");
 			System.exit(0);
 		}
 
 		int port = Integer.parseInt(args[0]);
+		String mode = args.length > 1 ? args[1] : "thread";
+		int eventLoops = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		if (!mode.equals("thread") && !mode.equals("virtual") && !mode.equals("nio")) {
+			System.out.println("Unknown server mode: " + mode + " (expected thread, virtual or nio)");
+			System.exit(0);
+		}
+
+        EMailServer server = new EMailServer(port, mode, eventLoops);
+
+		try {
+			server.initialize();
+		}
+		catch (IOException ex) {
+			ServerLog.error("Error resuming the delivery queue, shutting down: {}", ex.getMessage(), ex);
+			System.exit(1);
+		}
 
-        EMailServer server = new EMailServer(port);
-        server.initialize();
 		server.execute();
 	}
 }
\ No newline at end of file
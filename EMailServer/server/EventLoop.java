@@ -0,0 +1,108 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Classe responsavel por um dos lacos de eventos do motor NIO do servidor.
+ * Cada instancia e uma thread que detem um Selector proprio e atende a todas as conexoes que lhe foram
+ * atribuidas, acionando a NioSession correspondente sempre que o seletor indica que um canal esta pronto
+ * para leitura ou escrita. Assim, um numero pequeno e fixo de threads atende a milhares de conexoes
+ * ociosas, ao contrario do modelo de uma UserThread por usuario.
+ * Como atributos, possui:
+ * 	Selector selector - seletor em que os canais desta thread estao registrados
+ * 	EMailServer server - instancia que referencia a efetiva classe do servidor
+ * 	Queue<SocketChannel> pendingChannels - canais aceitos pela thread do servidor e ainda nao registrados
+ * 		neste seletor (o registro precisa ocorrer na propria thread do laco)
+ * 	Queue<Runnable> pendingTasks - tarefas agendadas por outras threads para as sessoes deste laco (ver
+ * 		NioSession.execute)
+ */
+class EventLoop extends Thread {
+	private Selector selector;
+	private EMailServer server;
+	private Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+	private Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+	EventLoop(EMailServer server, int index) throws IOException {
+		super("EventLoop-" + index);
+		this.server = server;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Entrega um canal recem-aceito a este laco, acordando o seletor para que o registro seja feito
+	 */
+	void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Agenda uma tarefa para ser executada na thread deste laco, acordando o seletor
+	 */
+	void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Logica principal do laco: aguarda eventos no seletor, registra os canais pendentes, executa as tarefas
+	 * agendadas e despacha cada chave selecionada para a sua sessao. Os erros de uma sessao sao tratados
+	 * pela propria NioSession; qualquer outro erro e registrado sem encerrar o laco.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				registerPendingChannels();
+				runPendingTasks();
+
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+
+					((NioSession) key.attachment()).handle();
+				}
+			}
+			catch (IOException ex) {
+				ServerLog.error("Error in {}: {}", getName(), ex.getMessage());
+			}
+			catch (RuntimeException ex) {
+				ServerLog.error("Unexpected error in {}", getName(), ex);
+			}
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+
+		while ((task = pendingTasks.poll()) != null)
+			task.run();
+	}
+
+	private void registerPendingChannels() {
+		SocketChannel channel;
+
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new NioSession(channel, key, server, this));
+			}
+			catch (IOException ex) {
+				ServerLog.warn("Error registering connection: {}", ex.getMessage());
+
+				try {
+					channel.close();
+				}
+				catch (IOException closeEx) {
+					ServerLog.warn("Error closing connection: {}", closeEx.getMessage());
+				}
+			}
+		}
+	}
+}
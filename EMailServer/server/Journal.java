@@ -0,0 +1,388 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Classe responsavel pelo journal (write-ahead log) das mensagens aceitas pelo servidor, no diretorio Queue
+ * do servidor.
+ * Antes de o cliente receber a confirmacao do envio, as entregas do e-mail (ou do lote de e-mails), junto do
+ * conteudo das mensagens, sao acrescentadas ao journal e gravadas em disco (fsync), sem que a sessao do
+ * remetente fique parada aguardando o disco: a confirmacao segue quando a gravacao termina (ver accept). So
+ * entao as entradas sao
+ * gravadas nas caixas postais, sem esperar o disco; ao fim da entrega, um registro de conclusao e
+ * acrescentado ao journal. Assim uma mensagem confirmada sobrevive a uma queda do servidor ou da maquina: ao
+ * iniciar, as entregas sem registro de conclusao sao refeitas (ver DeliveryQueue.start).
+ * Como um fsync por mensagem limitaria a vazao ao numero de fsyncs por segundo do disco, as gravacoes sao
+ * feitas por uma unica thread (JournalWriter), que retira da fila todos os registros pendentes e os grava
+ * com uma unica escrita e um unico fsync (group commit): quanto mais sessoes enviam ao mesmo tempo, mais
+ * mensagens cada fsync confirma. Os registros de conclusao nao precisam de fsync proprio, pois a perda de um
+ * deles apenas faz a entrega ser refeita: um grupo so com registros de conclusao e escrito sem fsync e
+ * chega ao disco junto do proximo. Ao iniciar o servidor com -Demail.journalGroupCommit=false, cada
+ * registro e gravado isoladamente, com um fsync por mensagem aceita, para comparacao.
+ * Os registros sao acrescentados a arquivos de segmento (journal-000001.log, ...), sendo aberto um novo
+ * segmento quando o atual atinge SEGMENT_SIZE bytes. Cada registro e gravado como:
+ * 	length (4 bytes) - tamanho do conteudo
+ * 	crc (4 bytes) - CRC32 do conteudo, que identifica um registro incompleto no fim do journal
+ * 	payload (length bytes) - tipo do registro (ACCEPTED ou DELIVERED) seguido de seus dados
+ * Um registro e identificado pelo numero de seu segmento e sua posicao nele (ver position), que nunca se
+ * repetem, pois o segmento atual nunca e apagado. Um segmento cujas entregas ja foram todas concluidas e
+ * apagado, apos forcar a gravacao em disco de tudo o que foi gravado nas caixas postais e nos
+ * armazenamentos de blobs desde entao (checkpoint, ver MailStorage.sync).
+ * Como atributos, possui:
+ * 	MailStorage storage - armazenamento sincronizado antes de um segmento ser apagado
+ * 	Path directory - diretorio do journal
+ * 	BlockingQueue<PendingWrite> pendingWrites - registros aguardando a thread de gravacao
+ * 	FileChannel channel, int segment e long segmentSize - segmento atual, seu numero e seu tamanho
+ * 	Map<Integer, AtomicInteger> pendingDeliveries - entregas ainda nao concluidas de cada segmento
+ * 	List<Path> recoveredSegments - segmentos lidos ao iniciar, apagados apos refeitas as suas entregas
+ * 	ReentrantLock retireLock - serializa o checkpoint e a remocao de segmentos (ver retire)
+ * 	commits e records - quantidade de fsyncs e de registros gravados com eles, publicados por JMX
+ */
+class Journal {
+	static final byte ACCEPTED = 1;
+	static final byte DELIVERED = 2;
+
+	private static final boolean GROUP_COMMIT = !"false".equals(System.getProperty("email.journalGroupCommit"));
+	private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private MailStorage storage;
+	private Path directory;
+	private BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+	private FileChannel channel;
+	private volatile int segment;
+	private long segmentSize;
+	private Map<Integer, AtomicInteger> pendingDeliveries = new ConcurrentHashMap<>();
+	private List<Path> recoveredSegments = new ArrayList<>();
+	private ReentrantLock retireLock = new ReentrantLock();
+	private AtomicLong commits = new AtomicLong();
+	private AtomicLong records = new AtomicLong();
+
+	Journal(MailStorage storage, Path directory) {
+		this.storage = storage;
+		this.directory = directory;
+	}
+
+	/**
+	 * Abre um novo segmento, posterior a todos os existentes, e inicia a thread de gravacao; em seguida le
+	 * os segmentos existentes e retorna, na ordem em que foram aceitos, os registros ACCEPTED sem registro
+	 * DELIVERED correspondente. A leitura de um segmento termina no primeiro registro incompleto ou
+	 * corrompido, que so pode ser o ultimo gravado antes de uma queda (e cujo envio, portanto, nao foi
+	 * confirmado ao cliente).
+	 */
+	List<Record> recover() throws IOException {
+		Files.createDirectories(directory);
+
+		try (Stream<Path> files = Files.list(directory)) {
+			files.filter(file -> file.getFileName().toString().matches("journal-\\d{6}\\.log")).sorted().forEach(recoveredSegments::add);
+		}
+
+		int lastSegment = recoveredSegments.isEmpty() ? 0 : segmentNumber(recoveredSegments.get(recoveredSegments.size() - 1));
+		openSegment(lastSegment + 1);
+
+		Thread.ofPlatform().name("JournalWriter").daemon().start(this::write);
+
+		Map<Long, Record> accepted = new LinkedHashMap<>();
+
+		for (Path file : recoveredSegments) {
+			int recoveredSegment = segmentNumber(file);
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+			CRC32 crc = new CRC32();
+
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				long recordPosition = position(recoveredSegment, buffer.position());
+				int length = buffer.getInt();
+				int expectedCrc = buffer.getInt();
+
+				if (length <= 0 || length > buffer.remaining())
+					break;
+
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				crc.reset();
+				crc.update(payload);
+
+				if ((int) crc.getValue() != expectedCrc)
+					break;
+
+				DataInputStream recordReader = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = recordReader.readByte();
+
+				if (type == ACCEPTED)
+					accepted.put(recordPosition, new Record(recordPosition, recordReader));
+				else if (type == DELIVERED)
+					accepted.remove(recordReader.readLong());
+			}
+		}
+
+		return new ArrayList<>(accepted.values());
+	}
+
+	/**
+	 * Apaga os segmentos lidos por recover, apos refeitas as entregas pendentes e sincronizado o
+	 * armazenamento
+	 */
+	void discardRecovered() throws IOException {
+		for (Path file : recoveredSegments)
+			Files.deleteIfExists(file);
+
+		recoveredSegments.clear();
+	}
+
+	/**
+	 * Acrescenta ao journal as entregas aceitas, ja codificadas (ver DeliveryQueue.enqueue), sem aguardar a
+	 * gravacao. O resultado e concluido pela thread de gravacao apos a gravacao em disco, junto das demais
+	 * entregas que chegarem ao mesmo tempo, com a posicao do registro, que identifica as entregas no
+	 * registro de conclusao (ver delivered) e nas entradas gravadas nas caixas postais, ou com a IOException
+	 * da gravacao. Como ninguem aguarda o fsync, as sessoes de um mesmo laco de eventos do motor NIO podem
+	 * ter varios envios no mesmo grupo.
+	 */
+	CompletableFuture<Long> accept(byte[] deliveries) {
+		PendingWrite pendingWrite = new PendingWrite(ACCEPTED, deliveries);
+		pendingWrites.add(pendingWrite);
+		return pendingWrite.result;
+	}
+
+	/**
+	 * Registra a conclusao das entregas do registro na posicao informada, sem aguardar a gravacao (caso o
+	 * registro de conclusao se perca em uma queda, as entregas sao refeitas ao iniciar, sem duplicar as
+	 * entradas ja gravadas). Quando todas as entregas de um segmento anterior ao atual terminam, o segmento
+	 * e apagado.
+	 */
+	void delivered(long recordPosition) {
+		pendingWrites.add(new PendingWrite(DELIVERED, ByteBuffer.allocate(Long.BYTES).putLong(recordPosition).array()));
+
+		int recordSegment = (int) (recordPosition >>> 32);
+		AtomicInteger pending = pendingDeliveries.get(recordSegment);
+
+		if (pending != null && pending.decrementAndGet() == 0 && recordSegment != segment)
+			retire(recordSegment);
+	}
+
+	long getCommits() {
+		return commits.get();
+	}
+
+	long getRecords() {
+		return records.get();
+	}
+
+	/**
+	 * Logica da thread de gravacao: aguarda o primeiro registro pendente e grava-o junto de todos os que
+	 * chegaram enquanto isso
+	 */
+	private void write() {
+		List<PendingWrite> group = new ArrayList<>();
+
+		while (true) {
+			try {
+				group.add(pendingWrites.take());
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+
+			if (GROUP_COMMIT)
+				pendingWrites.drainTo(group);
+
+			commit(group);
+			group.clear();
+		}
+	}
+
+	/**
+	 * Grava um grupo de registros com uma unica escrita e um unico fsync (ou um por segmento, caso o grupo
+	 * ultrapasse o fim do segmento atual) e entao conclui o resultado de cada registro. O fsync e dispensado
+	 * quando o grupo so tem registros de conclusao.
+	 * Caso a gravacao falhe, os registros ja gravados e sincronizados antes da troca de segmento sao
+	 * concluidos normalmente, pois serao refeitos ao iniciar o servidor, e o segmento atual e truncado no
+	 * fim do ultimo registro sincronizado, de modo que os registros recusados nunca sejam refeitos.
+	 */
+	private void commit(List<PendingWrite> group) {
+		ByteArrayOutputStream groupBytes = new ByteArrayOutputStream();
+		boolean durable = group.stream().anyMatch(pendingWrite -> pendingWrite.type == ACCEPTED);
+		int durableRecords = 0;
+		IOException error = null;
+
+		try {
+			for (int i = 0; i < group.size(); i++) {
+				PendingWrite pendingWrite = group.get(i);
+
+				if (segmentSize + groupBytes.size() > 0 && segmentSize + groupBytes.size() + pendingWrite.record.length > SEGMENT_SIZE) {
+					flush(groupBytes, true);
+					durableRecords = i;
+					rollSegment();
+				}
+
+				pendingWrite.position = position(segment, segmentSize + groupBytes.size());
+				groupBytes.write(pendingWrite.record);
+
+				if (pendingWrite.type == ACCEPTED)
+					pendingDeliveries.get(segment).incrementAndGet();
+			}
+
+			flush(groupBytes, durable);
+
+			if (durable) {
+				commits.incrementAndGet();
+				records.addAndGet(group.size());
+			}
+		}
+		catch (IOException ex) {
+			error = ex;
+			truncate();
+		}
+
+		for (int i = 0; i < group.size(); i++) {
+			PendingWrite pendingWrite = group.get(i);
+
+			if (error == null || i < durableRecords)
+				pendingWrite.result.complete(pendingWrite.position);
+			else {
+				if (pendingWrite.type == ACCEPTED && pendingWrite.position != 0)
+					pendingDeliveries.get((int) (pendingWrite.position >>> 32)).decrementAndGet();
+				pendingWrite.result.completeExceptionally(new IOException("Error writing to the journal: " + error.getMessage(), error));
+			}
+		}
+	}
+
+	/**
+	 * Descarta do segmento atual o que foi escrito apos o ultimo registro gravado com sucesso, para que os
+	 * registros de um grupo que falhou nao sejam lidos ao iniciar nem sobrevivam sob os proximos registros
+	 */
+	private void truncate() {
+		try {
+			channel.truncate(segmentSize);
+		}
+		catch (IOException ex) {
+			ServerLog.warn("Error truncating the journal segment {}: {}", segment, ex.getMessage());
+		}
+	}
+
+	private void flush(ByteArrayOutputStream groupBytes, boolean force) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(groupBytes.toByteArray());
+		long position = segmentSize;
+
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+
+		if (force)
+			channel.force(false);
+		segmentSize = position;
+		groupBytes.reset();
+	}
+
+	/**
+	 * Fecha o segmento atual e abre o seguinte. O segmento fechado e apagado caso suas entregas ja tenham
+	 * sido todas concluidas, por outra thread, para nao atrasar os registros seguintes; do contrario, sera
+	 * apagado pela ultima delas (ver delivered).
+	 */
+	private void rollSegment() throws IOException {
+		int previousSegment = segment;
+		channel.close();
+		openSegment(previousSegment + 1);
+
+		if (pendingDeliveries.get(previousSegment).get() == 0)
+			Thread.ofVirtual().start(() -> retire(previousSegment));
+	}
+
+	private void openSegment(int newSegment) throws IOException {
+		channel = FileChannel.open(segmentPath(newSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		segmentSize = channel.size();
+		pendingDeliveries.put(newSegment, new AtomicInteger());
+		segment = newSegment;
+	}
+
+	/**
+	 * Apaga um segmento cujas entregas ja foram todas concluidas, apos forcar a gravacao em disco das
+	 * caixas postais e dos blobs. Caso a sincronizacao falhe, o segmento e mantido e suas entregas serao
+	 * refeitas ao iniciar o servidor.
+	 * Os checkpoints sao serializados por retireLock: como cada sincronizacao retira os arquivos pendentes
+	 * antes do fsync, um segundo checkpoint simultaneo nao encontraria nada a sincronizar e apagaria seu
+	 * segmento enquanto o fsync do primeiro ainda esta em andamento.
+	 */
+	private void retire(int retiredSegment) {
+		if (pendingDeliveries.remove(retiredSegment) == null)
+			return;
+
+		retireLock.lock();
+		try {
+			storage.sync();
+			Files.deleteIfExists(segmentPath(retiredSegment));
+		}
+		catch (IOException ex) {
+			ServerLog.warn("Error retiring the journal segment {}: {}", retiredSegment, ex.getMessage());
+		}
+		finally {
+			retireLock.unlock();
+		}
+	}
+
+	private Path segmentPath(int segmentNumber) {
+		return directory.resolve(String.format("journal-%06d.log", segmentNumber));
+	}
+
+	private static int segmentNumber(Path file) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt(name.substring("journal-".length(), name.length() - ".log".length()));
+	}
+
+	/**
+	 * Posicao de um registro no journal: o numero do segmento nos 32 bits mais altos e a posicao no segmento
+	 * nos mais baixos
+	 */
+	private static long position(int segmentNumber, long offset) {
+		return ((long) segmentNumber << 32) | offset;
+	}
+
+	/**
+	 * Registro aguardando a thread de gravacao, ja com seu cabecalho e seu tipo, e o resultado concluido
+	 * apos a gravacao
+	 */
+	private static class PendingWrite {
+		private byte type;
+		private byte[] record;
+		private long position;
+		private CompletableFuture<Long> result = new CompletableFuture<>();
+
+		PendingWrite(byte type, byte[] data) {
+			this.type = type;
+			this.record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 1 + data.length).putInt(1 + data.length)
+				.putInt(0).put(type).put(data).array();
+
+			CRC32 crc = new CRC32();
+			crc.update(record, RECORD_HEADER_SIZE, 1 + data.length);
+			ByteBuffer.wrap(record).putInt(Integer.BYTES, (int) crc.getValue());
+		}
+	}
+
+	/**
+	 * Registro ACCEPTED lido ao iniciar: sua posicao no journal e o leitor posicionado em seus dados
+	 */
+	static class Record {
+		private long position;
+		private DataInputStream reader;
+
+		Record(long position, DataInputStream reader) {
+			this.position = position;
+			this.reader = reader;
+		}
+
+		long getPosition() {
+			return this.position;
+		}
+
+		DataInputStream getReader() {
+			return this.reader;
+		}
+	}
+}
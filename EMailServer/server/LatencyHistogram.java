@@ -0,0 +1,138 @@
+package server;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Classe responsavel pelo histograma das latencias de um comando, registradas concorrentemente pelas
+ * threads das sessoes sem nenhuma alocacao e sem travas.
+ * As latencias, em nanossegundos, sao contadas em faixas de tamanho fixo: os valores abaixo de 64 tem uma
+ * faixa cada, e cada potencia de dois acima disso e dividida em SUB_BUCKETS faixas iguais, de modo que o
+ * erro de um percentil e de no maximo 1/SUB_BUCKETS do valor, e todas as latencias possiveis cabem em
+ * BUCKETS contadores. Os percentis sao calculados somente na leitura, percorrendo as faixas.
+ * Como atributos, possui:
+ * 	String command - nome do comando, usado no nome JMX e no resumo periodico (ver ServerMetrics)
+ * 	AtomicLongArray buckets - quantidade de latencias registradas em cada faixa
+ * 	LongAdder count e totalNanos - quantidade e soma das latencias registradas
+ * 	AtomicLong maxNanos - maior latencia registrada
+ */
+class LatencyHistogram implements LatencyHistogramMBean {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+	private String command;
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private LongAdder count = new LongAdder();
+	private LongAdder totalNanos = new LongAdder();
+	private AtomicLong maxNanos = new AtomicLong();
+
+	LatencyHistogram(String command) {
+		this.command = command;
+	}
+
+	String getCommand() {
+		return this.command;
+	}
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		buckets.incrementAndGet(bucket(nanos));
+		count.increment();
+		totalNanos.add(nanos);
+
+		if (nanos > maxNanos.get())
+			maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Retorna a faixa de um valor: o proprio valor abaixo de 2 * SUB_BUCKETS; acima disso, a potencia de dois
+	 * do valor e seus SUB_BUCKET_BITS bits mais significativos
+	 */
+	private static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * Retorna o maior valor contado na faixa
+	 */
+	private static long highestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		return ((long) (bucket % SUB_BUCKETS + SUB_BUCKETS + 1) << shift) - 1;
+	}
+
+	/**
+	 * Retorna, em microssegundos, o percentil informado das latencias registradas: o maior valor da faixa
+	 * que contem a latencia de posicao percentile% em ordem crescente, limitado a maior latencia registrada
+	 */
+	double percentileMicros(double percentile) {
+		long total = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+			total += buckets.get(i);
+
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+
+			if (seen >= rank)
+				return Math.min(highestValue(i), maxNanos.get()) / 1000.0;
+		}
+
+		return maxNanos.get() / 1000.0;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanMicros() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : totalNanos.sum() / 1000.0 / count;
+	}
+
+	public double getMaxMicros() {
+		return maxNanos.get() / 1000.0;
+	}
+
+	public double getP50Micros() {
+		return percentileMicros(50);
+	}
+
+	public double getP90Micros() {
+		return percentileMicros(90);
+	}
+
+	public double getP99Micros() {
+		return percentileMicros(99);
+	}
+
+	public double getP999Micros() {
+		return percentileMicros(99.9);
+	}
+
+	/**
+	 * Zera o histograma. Latencias registradas durante o reset podem ser contadas apenas em parte.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+
+		count.reset();
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+}
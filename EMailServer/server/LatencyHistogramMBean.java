@@ -0,0 +1,28 @@
+package server;
+
+/**
+ * Latencias de um comando do protocolo (ver classe LatencyHistogram), publicadas por JMX como
+ * server:type=CommandLatency,command=<comando>:
+ * 	Count - quantidade de comandos registrados desde o inicio do servidor ou o ultimo reset
+ * 	MeanMicros e MaxMicros - media e maior latencia, em microssegundos
+ * 	P50Micros, P90Micros, P99Micros e P999Micros - percentis 50, 90, 99 e 99,9 da latencia, em
+ * 		microssegundos, com erro de ate 1/32 do valor
+ * 	reset - zera o histograma, para medir apenas um intervalo
+ */
+public interface LatencyHistogramMBean {
+	long getCount();
+
+	double getMeanMicros();
+
+	double getMaxMicros();
+
+	double getP50Micros();
+
+	double getP90Micros();
+
+	double getP99Micros();
+
+	double getP999Micros();
+
+	void reset();
+}
@@ -0,0 +1,773 @@
+package server;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.MessageHeader;
+
+/**
+ * Classe responsavel pela persistencia das mensagens de e-mail e de seus anexos no sistema de arquivos do
+ * servidor.
+ * Concentra a gravacao e a leitura dos arquivos de mensagem que antes ficavam dentro de UserThread, de modo
+ * que qualquer motor de sessao (uma thread por conexao ou o motor NIO com seletores) compartilhe exatamente
+ * o mesmo formato em disco.
+ * Como atributos, possui:
+ * 	EMailServer server - instancia que referencia a efetiva classe do servidor, da qual sao obtidos os
+ * 		diretorios raizes de usuarios e de arquivos
+ * 	BlobStore blobStore - armazenamento dos anexos, enderecados pelo hash de seu conteudo (ver classe
+ * 		BlobStore)
+ * 	BlobStore messageStore - armazenamento do conteudo das mensagens, gravado uma unica vez por mensagem
+ * 		independentemente da quantidade de destinatarios
+ * 	Map<String, Mailbox> mailboxes - caixas postais ja abertas, por usuario (ver classe Mailbox)
+ * 	MessageCache messageCache - cache das entradas ja lidas das caixas postais e do conteudo das mensagens
+ * 		pequenas (ver classe MessageCache)
+ * 	DeliveryQueue deliveryQueue - fila das mensagens aceitas cujas entradas ainda serao gravadas nas
+ * 		caixas postais dos destinatarios
+ * 	MessageIdGenerator messageIds - gerador dos identificadores das mensagens aceitas, com o numero do
+ * 		servidor informado por -Demail.nodeId (ver classe MessageIdGenerator)
+ * 	Map<String, Set<String>> recordedPositions - posicoes no journal das entradas de cada caixa postal,
+ * 		lidas uma unica vez enquanto as entregas interrompidas sao refeitas (ver journalPositions)
+ */
+class MailStorage {
+	private static final String LEGACY_MESSAGE_SUFFIX = ".txt";
+	private static final String LEGACY_ENTRY_SUFFIX = ".ref";
+	private static final int MAX_ENTRY_SUBJECT = 1000;
+	private static final int MAX_ADDRESS_LENGTH = 254;
+
+	private EMailServer server;
+	private BlobStore blobStore;
+	private BlobStore messageStore;
+	private Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+	private MessageCache messageCache = new MessageCache();
+	private DeliveryQueue deliveryQueue;
+	private MessageIdGenerator messageIds = new MessageIdGenerator(Integer.getInteger("email.nodeId", 0));
+	private Map<String, Set<String>> recordedPositions = new HashMap<>();
+
+	MailStorage(EMailServer server) {
+		this.server = server;
+		this.blobStore = new BlobStore(Paths.get(server.getFileDirectoryPath()), true);
+		this.messageStore = new BlobStore(Paths.get(server.getMessageDirectoryPath()), false);
+		this.deliveryQueue = new DeliveryQueue(this, Paths.get(server.getQueueDirectoryPath()));
+	}
+
+	BlobStore getBlobStore() {
+		return this.blobStore;
+	}
+
+	DeliveryQueue getDeliveryQueue() {
+		return this.deliveryQueue;
+	}
+
+	MessageCache getMessageCache() {
+		return this.messageCache;
+	}
+
+	/**
+	 * Responsavel por armazenar corretamente no servidor um lote de mensagens de e-mail ja remontadas,
+	 * enviadas pelo mesmo usuario.
+	 * Recebe por parametro o usuario de e-mail remetente e os objetos de e-mail (um unico, no caso de
+	 * /sendMessage), e retorna um resultado concluido com o erro ocorrido na gravacao de cada mensagem, na
+	 * mesma ordem, ou null para as gravadas com sucesso.
+	 * Obtem-se, a partir de cada objeto, a lista de destinatarios deste e-mail.
+	 * Caso o objeto ainda carregue o conteudo do anexo, este e gravado no BlobStore, que dispensa a gravacao
+	 * se o mesmo conteudo ja existir no servidor; caso o anexo tenha chegado em pedacos, o objeto ja traz a
+	 * chave do blob (hash do conteudo) obtida no fim do upload. Para o servidor, nao importa o path em que o
+	 * anexo estava na maquina do cliente, portanto, pelo path e obtido somente o nome do arquivo.
+	 * O conteudo da mensagem (destinatarios, assunto, corpo e dados do anexo) e codificado pelo
+	 * EMailMessageCodec e gravado uma unica vez no armazenamento de mensagens. Cada mensagem recebe um
+	 * identificador unico (ver classe MessageIdGenerator), gravado nas entradas das caixas postais e nao no
+	 * conteudo, para que mensagens iguais continuem compartilhando o mesmo conteudo. As entradas das caixas
+	 * postais dos destinatarios nao sao gravadas aqui: as entregas de todo o lote sao gravadas juntas na fila
+	 * de entrega (ver classe DeliveryQueue), e o e-mail e considerado aceito assim que essa gravacao termina.
+	 * O resultado so e concluido nesse momento, pela thread do journal, sem que a sessao aguarde o disco.
+	 * As entradas sao gravadas depois, pelas threads de entrega (ver deliver).
+	 * Um e-mail cujo remetente ou algum destinatario exceda MAX_ADDRESS_LENGTH caracteres e recusado antes
+	 * de qualquer gravacao (ver checkAddress).
+	 */
+	CompletableFuture<List<IOException>> storeMessages(String userEmail, List<EMailMessage> eMailMessages) {
+		ServerEvents.StoreMessages event = new ServerEvents.StoreMessages();
+		event.begin();
+
+		List<IOException> errors = new ArrayList<IOException>(eMailMessages.size());
+		List<DeliveryQueue.Delivery> deliveries = new ArrayList<DeliveryQueue.Delivery>(eMailMessages.size());
+		long timestamp = System.currentTimeMillis();
+		long bytes = 0;
+
+		for (EMailMessage eMailMessage : eMailMessages) {
+			try {
+				String[] addresses = eMailMessage.getAddressee().split(";");
+
+				checkAddress(userEmail);
+				for (String address : addresses)
+					checkAddress(address);
+
+				if (eMailMessage.hasAttachment()) {
+					if (eMailMessage.getAttachmentContent() != null)
+						eMailMessage.setAttachmentHash( blobStore.put(eMailMessage.getAttachmentContent()) );
+
+					String[] filePath = eMailMessage.getAttachmentName().split("\\\\");
+					eMailMessage.setAttachmentName(filePath[filePath.length - 1]);
+					eMailMessage.setAttachmentContent(null);
+				}
+
+				eMailMessage.setMessageId(0);
+				byte[] content = EMailMessageCodec.encodeCompact(eMailMessage);
+				String messageKey = messageStore.put(content);
+				bytes += content.length;
+
+				deliveries.add(new DeliveryQueue.Delivery(userEmail, messageKey,
+					eMailMessage.hasAttachment() ? eMailMessage.getAttachmentHash() : null, messageIds.nextId(), timestamp,
+					entrySubject(eMailMessage.getSubject()), messageSize(content, eMailMessage), addresses, content));
+				errors.add(null);
+			}
+			catch (IOException ex) {
+				errors.add(ex);
+			}
+		}
+
+		CompletableFuture<Void> accepted;
+
+		try {
+			accepted = deliveries.isEmpty() ? CompletableFuture.completedFuture(null) : deliveryQueue.enqueue(deliveries);
+		}
+		catch (IOException ex) {
+			accepted = CompletableFuture.failedFuture(ex);
+		}
+
+		long storedBytes = bytes;
+
+		return accepted.handle((ignored, ex) -> {
+			if (ex != null) {
+				Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+				IOException error = cause instanceof IOException ioException ? ioException : new IOException(cause);
+
+				for (int i = 0; i < errors.size(); i++) {
+					if (errors.get(i) == null)
+						errors.set(i, error);
+				}
+			}
+
+			if (event.shouldCommit()) {
+				event.mailbox = userEmail;
+				event.messageCount = eMailMessages.size();
+				event.failedCount = (int) errors.stream().filter(Objects::nonNull).count();
+				event.bytes = storedBytes;
+				event.commit();
+			}
+
+			return errors;
+		});
+	}
+
+	/**
+	 * Responsavel por entregar mensagens ja aceitas, chamado pelas threads da fila de entrega.
+	 * Cada destinatario, e o proprio remetente, recebe apenas uma entrada em sua caixa postal que aponta
+	 * para o conteudo da mensagem (ver addEntry), de modo que o custo de uma mensagem para muitos
+	 * destinatarios cresce com a quantidade de destinatarios, e nao com ela multiplicada pelo tamanho da
+	 * mensagem.
+	 * As entradas de um lote sao agrupadas por caixa postal, e cada caixa postal recebe todas as suas
+	 * entradas em um unico Mailbox.append; da mesma forma, as referencias ao conteudo de cada mensagem e a
+	 * cada blob de anexo sao somadas e gravadas uma unica vez por chave. Assim o custo fixo de cada gravacao
+	 * (abrir os arquivos da caixa postal e do contador de referencias) e dividido entre as mensagens do lote.
+	 * As referencias sao gravadas antes das entradas: caso a entrega seja interrompida e refeita ao iniciar
+	 * o servidor (recovering), as entradas ja gravadas sao reconhecidas pela posicao da entrega no journal e
+	 * descartadas, junto de suas referencias, de modo que um blob pode ficar com referencias a mais, mas
+	 * nunca a menos do que as entradas que o apontam.
+	 * Retorna false caso a gravacao tenha falhado em alguma caixa postal.
+	 */
+	boolean deliver(List<DeliveryQueue.Delivery> deliveries, boolean recovering) {
+		Map<String, MailboxAppends> appends = new LinkedHashMap<String, MailboxAppends>();
+		Map<String, Integer> messageReferences = new HashMap<String, Integer>();
+		Map<String, Integer> attachmentReferences = new HashMap<String, Integer>();
+		boolean delivered = true;
+
+		for (DeliveryQueue.Delivery delivery : deliveries) {
+			try {
+				String[] addresses = delivery.getAddressees();
+
+				for (int i = 0 ; i < addresses.length ;i++)
+					addEntry( appends, addresses[i], true, delivery );
+
+				addEntry( appends, delivery.getSender(), false, delivery );
+			}
+			catch (IOException e) {
+				ServerLog.error("Error recording the mailbox entries of: {}\n{}", delivery.getMessageKey(), e);
+				delivered = false;
+			}
+		}
+
+		for (Map.Entry<String, MailboxAppends> mailboxAppends : appends.entrySet()) {
+			try {
+				if (recovering)
+					mailboxAppends.getValue().removeRecorded( journalPositions(mailboxAppends.getKey()) );
+			}
+			catch (IOException e) {
+				ServerLog.error("Error reading the mailbox entries of: {}\n{}", mailboxAppends.getKey(), e);
+			}
+
+			for (DeliveryQueue.Delivery delivery : mailboxAppends.getValue().deliveries) {
+				messageReferences.merge(delivery.getMessageKey(), 1, Integer::sum);
+				if (delivery.hasAttachment())
+					attachmentReferences.merge(delivery.getAttachmentKey(), 1, Integer::sum);
+			}
+		}
+
+		retainAll(messageStore, messageReferences);
+		retainAll(blobStore, attachmentReferences);
+
+		for (Map.Entry<String, MailboxAppends> mailboxAppends : appends.entrySet()) {
+			String userEMail = mailboxAppends.getKey();
+
+			if (mailboxAppends.getValue().records.isEmpty())
+				continue;
+
+			try {
+				server.makeUserDirectory(userEMail);
+				long firstUid = mailbox(userEMail).append(mailboxAppends.getValue().records, mailboxAppends.getValue().flags);
+
+				if (!recovering)
+					notifySessions(userEMail, firstUid, mailboxAppends.getValue());
+			}
+			catch (IOException e) {
+				ServerLog.error("Error recording the mailbox entries of: {}\n{}", userEMail, e);
+				messageCache.invalidate(userEMail);
+				delivered = false;
+			}
+		}
+
+		return delivered;
+	}
+
+	/**
+	 * Avisa as sessoes abertas do usuario, caso existam, de cada mensagem recebida que acaba de ser gravada
+	 * em sua caixa postal (as copias do remetente nao geram aviso). Os uids das entradas gravadas por um
+	 * mesmo Mailbox.append sao consecutivos a partir de firstUid. Antes do aviso, cada entrada e guardada no
+	 * cache (ver classe MessageCache), junto do conteudo da mensagem, ja que o usuario conectado
+	 * provavelmente a lera em seguida.
+	 */
+	private void notifySessions(String userEmail, long firstUid, MailboxAppends mailboxAppends) {
+		Set<UserSession> sessions = server.getSessions().sessions(userEmail);
+
+		if (sessions.isEmpty())
+			return;
+
+		for (int i = 0; i < mailboxAppends.deliveries.size(); i++) {
+			if ((mailboxAppends.flags.get(i) & Mailbox.FLAG_SENT) != 0)
+				continue;
+
+			DeliveryQueue.Delivery delivery = mailboxAppends.deliveries.get(i);
+			String from = userEmail.equals(delivery.getSender()) ? "" : delivery.getSender();
+			messageCache.put(userEmail, firstUid + i, new MessageCache.CachedMessage(from, delivery.getMessageKey(),
+				delivery.getSubject(), delivery.getSize(), delivery.hasAttachment(), delivery.getMessageId(), delivery.getContent()));
+
+			MessageHeader messageHeader = new MessageHeader();
+			messageHeader.setUid(firstUid + i);
+			messageHeader.setSender(delivery.getSender());
+			messageHeader.setSubject(delivery.getSubject());
+			messageHeader.setSize(delivery.getSize());
+			messageHeader.setAttachment(delivery.hasAttachment());
+
+			for (UserSession session : sessions)
+				session.notifyNewMail(userEmail, messageHeader);
+		}
+	}
+
+	/**
+	 * Retorna as posicoes no journal (ver DeliveryQueue.Delivery) das entradas ja gravadas na caixa postal
+	 * do usuario, junto de sua flag de envio, ja que uma mensagem enviada ao proprio remetente gera duas
+	 * entradas com a mesma posicao. Percorre a caixa postal inteira, o que so e feito uma vez por caixa
+	 * postal ao refazer as entregas interrompidas por uma queda; as entradas regravadas em seguida sao
+	 * acrescentadas ao mesmo conjunto (ver MailboxAppends.removeRecorded).
+	 */
+	private Set<String> journalPositions(String userEmail) throws IOException {
+		Set<String> positions = recordedPositions.get(userEmail);
+
+		if (positions != null)
+			return positions;
+
+		positions = new HashSet<String>();
+		Mailbox mailbox = mailbox(userEmail);
+		List<Mailbox.Entry> entries = mailbox.entries(1);
+		List<byte[]> records = mailbox.read(entries);
+
+		for (int i = 0; i < records.size(); i++) {
+			DataInputStream entryReader = new DataInputStream( new ByteArrayInputStream(records.get(i)) );
+
+			try {
+				entryReader.readUTF();
+				entryReader.readUTF();
+				entryReader.readLong();
+				entryReader.readUTF();
+				entryReader.readLong();
+				positions.add( journalPosition(entryReader.readLong(), entryReader.readInt(), entries.get(i).isSent()) );
+			}
+			catch (EOFException e) {
+				// entrada gravada antes do journal, sem a posicao
+			}
+		}
+
+		recordedPositions.put(userEmail, positions);
+		return positions;
+	}
+
+	/**
+	 * Descarta as posicoes lidas das caixas postais ao fim das entregas refeitas
+	 */
+	void endRecovery() {
+		recordedPositions.clear();
+	}
+
+	private static String journalPosition(long position, int index, boolean sent) {
+		return position + ":" + index + ":" + sent;
+	}
+
+	/**
+	 * Regrava no armazenamento de mensagens o conteudo de uma mensagem lido do journal, ao refazer uma
+	 * entrega interrompida (caso o conteudo ja exista, nada e gravado)
+	 */
+	void restoreContent(DeliveryQueue.Delivery delivery) throws IOException {
+		String messageKey = messageStore.put(delivery.getContent());
+
+		if (!messageKey.equals(delivery.getMessageKey()))
+			throw new IOException("Journal content does not match the message key: " + delivery.getMessageKey());
+	}
+
+	/**
+	 * Forca a gravacao em disco de tudo o que foi gravado nas caixas postais e nos armazenamentos de
+	 * mensagens e de anexos desde a ultima chamada (ver classe Journal)
+	 */
+	void sync() throws IOException {
+		for (Mailbox mailbox : mailboxes.values())
+			mailbox.sync();
+
+		messageStore.sync();
+		blobStore.sync();
+	}
+
+	private static void retainAll(BlobStore store, Map<String, Integer> references) {
+		for (Map.Entry<String, Integer> reference : references.entrySet()) {
+			try {
+				store.retain(reference.getKey(), reference.getValue());
+			}
+			catch (IOException e) {
+				ServerLog.error("Error recording the references of: {}\n{}", reference.getKey(), e);
+			}
+		}
+	}
+
+	/**
+	 * Responsavel por preparar a entrada de uma mensagem de e-mail para a caixa postal do usuario,
+	 * acumulando-a junto das demais entradas do lote para a mesma caixa postal.
+	 * Recebe por parametro as entradas acumuladas, o e-mail do usuario dono da caixa postal, uma flag que
+	 * identifica se este usuario deve ser tratado como destinatario da mensagem (negativo significa que e o
+	 * remetente, e a entrada e marcada com Mailbox.FLAG_SENT) e a entrega da mensagem, com o remetente, a
+	 * chave do conteudo da mensagem, seu assunto, seu tamanho e o instante do envio. Mensagens com anexo sao
+	 * marcadas com Mailbox.FLAG_ATTACHMENT.
+	 * A entrada e gravada pelo DataOutputStream, com os campos:
+	 * 	o remetente da mensagem, caso o usuario seja diferente do remetente (da perspectiva do destinatario,
+	 * 		nao tem muita serventia ter conhecimento de que era o destinatario de alguma mensagem, mas, sim,
+	 * 		saber quem lhe enviou essa mensagem); vazio nas copias do proprio remetente, que exibem os
+	 * 		destinatarios gravados no conteudo da mensagem; como os textos da entrada sao gravados por writeUTF,
+	 * 		limitado a 65.535 bytes, o remetente e conferido no login e no aceite (ver checkAddress)
+	 * 	a chave do conteudo da mensagem no armazenamento de mensagens
+	 * 	o instante do envio, em milissegundos
+	 * 	o assunto (limitado a MAX_ENTRY_SUBJECT caracteres) e o tamanho da mensagem, que permitem listar a
+	 * 		caixa postal sem abrir o conteudo das mensagens (ver loadHeaders)
+	 * 	a posicao da entrega no journal (0 para as entregas feitas sem o journal), que permite reconhecer a
+	 * 		entrada ao refazer uma entrega interrompida
+	 * 	o identificador da mensagem, o mesmo nas entradas de todos os destinatarios, que o cliente usa para
+	 * 		nomear os arquivos baixados (ver loadMessage)
+	 * Como cada entrada recebe um uid sequencial de sua caixa postal, e cada mensagem um identificador unico,
+	 * duas mensagens recebidas no mesmo segundo nao se sobrescrevem, como ocorria com os nomes de arquivo
+	 * formados pela timestamp.
+	 */
+	private static void addEntry(Map<String, MailboxAppends> appends, String userEMail, boolean isAddressee,
+			DeliveryQueue.Delivery delivery) throws IOException {
+		String from = userEMail.equals(delivery.getSender()) ? "" : delivery.getSender();
+		MailboxAppends mailboxAppends = appends.computeIfAbsent(userEMail, user -> new MailboxAppends());
+
+		mailboxAppends.records.add( encodeEntry(from, delivery.getMessageKey(), delivery.getTimestamp(), delivery.getSubject(),
+			delivery.getSize(), delivery.getJournalPosition(), delivery.getJournalIndex(), delivery.getMessageId()) );
+		mailboxAppends.flags.add( entryFlags(!isAddressee, delivery.hasAttachment()) );
+		mailboxAppends.deliveries.add(delivery);
+	}
+
+	private static byte[] encodeEntry(String from, String messageKey, long timestamp, String subject, long size,
+			long journalPosition, int journalIndex, long messageId) throws IOException {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream entryWriter = new DataOutputStream(entry);
+
+		entryWriter.writeUTF(from);
+		entryWriter.writeUTF(messageKey);
+		entryWriter.writeLong(timestamp);
+		entryWriter.writeUTF(entrySubject(subject));
+		entryWriter.writeLong(size);
+		entryWriter.writeLong(journalPosition);
+		entryWriter.writeInt(journalIndex);
+		entryWriter.writeLong(messageId);
+		entryWriter.flush();
+
+		return entry.toByteArray();
+	}
+
+	/**
+	 * Recusa um endereco de e-mail acima de MAX_ADDRESS_LENGTH caracteres, o limite de um endereco no SMTP.
+	 * Os enderecos sao gravados por writeUTF nos registros do journal e nas entradas das caixas postais, e o
+	 * limite mantem cada um bem abaixo dos 65.535 bytes que writeUTF aceita.
+	 */
+	static void checkAddress(String address) throws ProtocolException {
+		if (address.length() > MAX_ADDRESS_LENGTH)
+			throw new ProtocolException("E-mail address too long: " + address.length() + " characters (limit: " + MAX_ADDRESS_LENGTH + ")");
+	}
+
+	/**
+	 * Limita o assunto gravado nas entradas da caixa postal a MAX_ENTRY_SUBJECT caracteres
+	 */
+	private static String entrySubject(String subject) {
+		if (subject == null)
+			return "";
+		if (subject.length() > MAX_ENTRY_SUBJECT)
+			return subject.substring(0, MAX_ENTRY_SUBJECT);
+		return subject;
+	}
+
+	private static int entryFlags(boolean sent, boolean attachment) {
+		int flags = sent ? Mailbox.FLAG_SENT : 0;
+
+		if (attachment)
+			flags |= Mailbox.FLAG_ATTACHMENT;
+
+		return flags;
+	}
+
+	/**
+	 * Retorna o tamanho de uma mensagem: seu conteudo codificado mais o anexo, caso exista
+	 */
+	private long messageSize(byte[] content, EMailMessage eMailMessage) throws IOException {
+		long size = content.length;
+
+		if (eMailMessage.hasAttachment() && Files.exists(attachmentPath(eMailMessage)))
+			size += Files.size(attachmentPath(eMailMessage));
+
+		return size;
+	}
+
+	/**
+	 * Retorna a caixa postal do usuario, abrindo-a no primeiro acesso. Caso seu indice tenha acabado de ser
+	 * criado, as mensagens gravadas no diretorio do usuario no formato anterior sao importadas para ela.
+	 */
+	private Mailbox mailbox(String userEmail) throws IOException {
+		Mailbox mailbox = mailboxes.computeIfAbsent(userEmail,
+			user -> new Mailbox(Paths.get(server.getUserDirectoryPath() + "\\" + user)));
+
+		if (mailbox.open())
+			importLegacyMessages(userEmail, mailbox);
+
+		return mailbox;
+	}
+
+	/**
+	 * Importa para a caixa postal, na ordem em que foram gravados, os arquivos de mensagem do formato
+	 * anterior: received-timestamp.txt e sent-timestamp.txt, com a mensagem inteira (ver buildMessageBuffer),
+	 * e received-timestamp.ref e sent-timestamp.ref, com a entrada de tres linhas (remetente, chave do
+	 * conteudo e flags). O conteudo das mensagens inteiras e gravado no armazenamento de mensagens. Cada
+	 * arquivo e apagado assim que importado.
+	 */
+	private void importLegacyMessages(String userEmail, Mailbox mailbox) throws IOException {
+		String directoryPath = server.getUserDirectoryPath() + "\\" + userEmail;
+		String[] filesList = new File(directoryPath).list();
+		List<String> legacyFiles = new ArrayList<String>();
+
+		for (String file : filesList) {
+			if ((file.startsWith("received") || file.startsWith("sent"))
+					&& (file.endsWith(LEGACY_MESSAGE_SUFFIX) || file.endsWith(LEGACY_ENTRY_SUFFIX)))
+				legacyFiles.add(file);
+		}
+
+		legacyFiles.sort(Comparator.comparing(file -> file.substring(file.indexOf('-'))));
+
+		for (String file : legacyFiles) {
+			String fileName = directoryPath + "\\" + file;
+			String from = "";
+			String messageKey;
+			byte[] content;
+
+			if (file.endsWith(LEGACY_ENTRY_SUFFIX)) {
+				List<String> entry = Files.readAllLines(Paths.get(fileName));
+				from = entry.get(0);
+				messageKey = entry.get(1);
+				content = Files.readAllBytes(messageStore.path(messageKey));
+			}
+			else {
+				content = EMailMessageCodec.encodeCompact(loadLegacyMessage(fileName));
+				messageKey = messageStore.put(content);
+				messageStore.retain(messageKey, 1);
+			}
+
+			EMailMessage eMailMessage = EMailMessageCodec.decodeCompact(content);
+			long timestamp = Files.getLastModifiedTime(Paths.get(fileName)).toMillis();
+			mailbox.append( encodeEntry(from, messageKey, timestamp, eMailMessage.getSubject(), messageSize(content, eMailMessage), 0, 0,
+				messageIds.nextId()),
+				entryFlags(file.startsWith("sent"), eMailMessage.hasAttachment()) );
+			Files.delete(Paths.get(fileName));
+		}
+	}
+
+	/**
+	 * Recebe uma stream de arquivo de uma mensagem de e-mail gravada por inteiro no diretorio do usuario
+	 * (formato anterior as entradas de caixa postal), le cada linha e retorna um array de String (buffer)
+	 * contendo cada atributo do objeto de e-mail decodificado:
+	 * Indice 0 e o primeiro atributo - addressee (destinatario(s), ou o remetente nas mensagens recebidas)
+	 * Indice 1 e o segundo atributo - subject (assunto)
+	 * Indice 2 e o terceiro atributo - body (corpo)
+	 * Indice 3 e o quarto atributo - attachment (flag se possui anexo ou nao)
+	 * Indice 4 e o quinto atributo - attachmentName (nome do anexo)
+	 * Indice 5 e o sexto atributo - attachmentHash (chave do anexo no BlobStore)
+	 * Mensagens gravadas antes do BlobStore nao possuem o sexto atributo, e seu quinto atributo e o path
+	 * completo do anexo no diretorio de arquivos.
+	 */
+	static String[] buildMessageBuffer(String fileName) {
+		BufferedReader fileReader = null;
+		String[] buffer = new String[6];
+
+		try {
+			fileReader = new BufferedReader( new FileReader(fileName) );
+			String linha = fileReader.readLine();
+
+			for (int i = 0; linha != null && i < buffer.length; i++) {
+				buffer[i] = linha;
+				linha = fileReader.readLine();
+			}
+
+			fileReader.close();
+		}
+		catch (IOException exception) {
+			ServerLog.error("Error reading the file: {}\n{}", fileName, exception);
+		}
+
+		if (buffer[4] == null)
+			buffer[4] = "";
+		if (buffer[5] == null)
+			buffer[5] = "";
+
+		return buffer;
+	}
+
+	/**
+	 * Lista as entradas das mensagens recebidas por um determinado usuario de e-mail apos o uid informado,
+	 * em ordem de recebimento. Como os uids sao sequenciais, a leitura do indice da caixa postal comeca
+	 * diretamente no registro seguinte a sinceUid (sem listagem do diretorio do usuario).
+	 */
+	List<Mailbox.Entry> listReceivedMessages(String userEmail, long sinceUid) throws IOException {
+		ServerEvents.ListMailbox event = new ServerEvents.ListMailbox();
+		event.begin();
+
+		List<Mailbox.Entry> fetchBuffer = new ArrayList<Mailbox.Entry>();
+
+		for (Mailbox.Entry entry : mailbox(userEmail).entries(sinceUid + 1)) {
+			if (!entry.isSent())
+				fetchBuffer.add(entry);
+		}
+
+		if (event.shouldCommit()) {
+			event.mailbox = userEmail;
+			event.sinceUid = sinceUid;
+			event.messageCount = fetchBuffer.size();
+			event.commit();
+		}
+
+		return fetchBuffer;
+	}
+
+	/**
+	 * Retorna a entrada de uma unica mensagem recebida pelo usuario, ou null caso o uid nao exista em sua
+	 * caixa postal ou seja o de uma mensagem enviada
+	 */
+	Mailbox.Entry findReceivedMessage(String userEmail, long uid) throws IOException {
+		Mailbox.Entry entry = mailbox(userEmail).entry(uid);
+
+		if (entry == null || entry.isSent())
+			return null;
+
+		return entry;
+	}
+
+	/**
+	 * Monta o cabecalho de cada entrada (uid, remetente, assunto, tamanho e se possui anexo) somente a partir
+	 * da caixa postal do usuario, sem abrir o conteudo das mensagens. As entradas que estao no cache (ver
+	 * classe MessageCache) nao sao lidas, e as demais sao lidas de uma so vez e guardadas no cache.
+	 */
+	List<MessageHeader> loadHeaders(String userEmail, List<Mailbox.Entry> entries) throws IOException {
+		MessageCache.CachedMessage[] messages = new MessageCache.CachedMessage[entries.size()];
+		List<Mailbox.Entry> missing = new ArrayList<Mailbox.Entry>();
+
+		for (int i = 0; i < entries.size(); i++) {
+			messages[i] = messageCache.get(userEmail, entries.get(i).getUid());
+
+			if (messages[i] == null)
+				missing.add(entries.get(i));
+		}
+
+		List<byte[]> records = mailbox(userEmail).read(missing);
+		List<MessageHeader> headers = new ArrayList<MessageHeader>(entries.size());
+
+		for (int i = 0, read = 0; i < entries.size(); i++) {
+			if (messages[i] == null)
+				messages[i] = cacheEntry(userEmail, entries.get(i), records.get(read++));
+
+			MessageHeader messageHeader = new MessageHeader();
+			messageHeader.setUid(entries.get(i).getUid());
+			messageHeader.setSender(messages[i].getFrom());
+			messageHeader.setSubject(messages[i].getSubject());
+			messageHeader.setSize(messages[i].getSize());
+			messageHeader.setAttachment(messages[i].hasAttachment());
+			headers.add(messageHeader);
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Remonta o objeto de e-mail de uma entrada da caixa postal do usuario (ver addEntry), decodificando o
+	 * conteudo da mensagem que ela referencia e atribuindo-lhe o identificador gravado na entrada (0 nas
+	 * entradas anteriores ao identificador). A entrada e o conteudo das mensagens pequenas sao obtidos do
+	 * cache (ver classe MessageCache) quando possivel; caso contrario, a entrada e lida diretamente de sua
+	 * posicao no segmento, o conteudo do armazenamento de mensagens, e ambos sao guardados no cache. O
+	 * conteudo do anexo, caso exista, nao e carregado no objeto: e transmitido em pedacos a partir do arquivo
+	 * indicado por attachmentPath (ver UserSession.continueTransfer).
+	 */
+	EMailMessage loadMessage(String userEmail, Mailbox.Entry entry) throws IOException {
+		ServerEvents.LoadMessage event = new ServerEvents.LoadMessage();
+		event.begin();
+
+		MessageCache.CachedMessage message = messageCache.get(userEmail, entry.getUid());
+
+		if (message == null)
+			message = cacheEntry(userEmail, entry, mailbox(userEmail).read(entry));
+
+		byte[] content = message.getContent();
+		boolean cached = content != null;
+
+		if (content == null) {
+			content = Files.readAllBytes(messageStore.path(message.getMessageKey()));
+
+			if (content.length <= MessageCache.MAX_CACHED_CONTENT)
+				messageCache.put(userEmail, entry.getUid(), message.withContent(content));
+		}
+
+		EMailMessage emailMessage = EMailMessageCodec.decodeCompact(content);
+
+		if (!message.getFrom().isEmpty())
+			emailMessage.setAddressee(message.getFrom());
+
+		emailMessage.setMessageId(message.getMessageId());
+
+		if (event.shouldCommit()) {
+			event.mailbox = userEmail;
+			event.uid = entry.getUid();
+			event.bytes = content.length;
+			event.cached = cached;
+			event.commit();
+		}
+
+		return emailMessage;
+	}
+
+	/**
+	 * Decodifica uma entrada lida da caixa postal do usuario e a guarda no cache. Apenas as entradas
+	 * gravadas antes de a caixa postal guardar o assunto e o tamanho tem o conteudo de sua mensagem lido,
+	 * e esse conteudo e guardado junto da entrada.
+	 */
+	private MessageCache.CachedMessage cacheEntry(String userEmail, Mailbox.Entry entry, byte[] record) throws IOException {
+		DataInputStream entryReader = new DataInputStream( new ByteArrayInputStream(record) );
+		String from = entryReader.readUTF();
+		String messageKey = entryReader.readUTF();
+		entryReader.readLong();
+		MessageCache.CachedMessage message;
+
+		if (entryReader.available() > 0) {
+			String subject = entryReader.readUTF();
+			long size = entryReader.readLong();
+			long messageId = 0;
+
+			if (entryReader.available() >= Long.BYTES + Integer.BYTES + Long.BYTES) {
+				entryReader.readLong();
+				entryReader.readInt();
+				messageId = entryReader.readLong();
+			}
+
+			message = new MessageCache.CachedMessage(from, messageKey, subject, size, entry.hasAttachment(), messageId, null);
+		}
+		else {
+			byte[] content = Files.readAllBytes(messageStore.path(messageKey));
+			EMailMessage eMailMessage = EMailMessageCodec.decodeCompact(content);
+			message = new MessageCache.CachedMessage(from, messageKey, eMailMessage.getSubject(), messageSize(content, eMailMessage),
+				eMailMessage.hasAttachment(), 0, content);
+		}
+
+		messageCache.put(userEmail, entry.getUid(), message);
+		return message;
+	}
+
+	/**
+	 * Remonta o objeto de e-mail de um arquivo de mensagem inteira do formato anterior, a ser importado para
+	 * a caixa postal
+	 */
+	private EMailMessage loadLegacyMessage(String fileName) {
+		EMailMessage emailMessage = new EMailMessage();
+
+		String[] messageBuffer = buildMessageBuffer( fileName );
+
+		emailMessage.setAddressee(messageBuffer[0]);
+		emailMessage.setSubject(messageBuffer[1]);
+		emailMessage.setBody(messageBuffer[2]);
+		emailMessage.setAttachment( Boolean.parseBoolean(messageBuffer[3]) );
+		emailMessage.setAttachmentName(messageBuffer[4]);
+
+		if (!messageBuffer[5].isEmpty())
+			emailMessage.setAttachmentHash(messageBuffer[5]);
+
+		return emailMessage;
+	}
+
+	/**
+	 * Retorna o arquivo com o conteudo do anexo de uma mensagem remontada por loadMessage: o blob de sua
+	 * chave ou, para mensagens anteriores ao BlobStore, o path gravado no proprio arquivo da mensagem
+	 */
+	Path attachmentPath(EMailMessage emailMessage) {
+		if (emailMessage.getAttachmentHash() != null)
+			return blobStore.path(emailMessage.getAttachmentHash());
+
+		return Paths.get(emailMessage.getAttachmentName());
+	}
+
+	/**
+	 * Entradas de um lote acumuladas para uma mesma caixa postal, gravadas em um unico Mailbox.append
+	 */
+	private static class MailboxAppends {
+		private List<byte[]> records = new ArrayList<byte[]>();
+		private List<Integer> flags = new ArrayList<Integer>();
+		private List<DeliveryQueue.Delivery> deliveries = new ArrayList<DeliveryQueue.Delivery>();
+
+		/**
+		 * Descarta as entradas cuja posicao no journal consta entre as ja gravadas na caixa postal e
+		 * acrescenta as demais a essas posicoes, pois serao gravadas em seguida
+		 */
+		private void removeRecorded(Set<String> recordedPositions) {
+			for (int i = records.size() - 1; i >= 0; i--) {
+				DeliveryQueue.Delivery delivery = deliveries.get(i);
+				boolean sent = (flags.get(i) & Mailbox.FLAG_SENT) != 0;
+
+				if (!recordedPositions.add( journalPosition(delivery.getJournalPosition(), delivery.getJournalIndex(), sent) )) {
+					records.remove(i);
+					flags.remove(i);
+					deliveries.remove(i);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe responsavel pelo armazenamento das entradas da caixa postal de um usuario, no diretorio do usuario
+ * no servidor.
+ * Em vez de um arquivo por mensagem, as entradas sao acrescentadas sequencialmente ao fim de arquivos de
+ * segmento (segment-000001.log, segment-000002.log, ...), sendo aberto um novo segmento quando o atual
+ * atinge SEGMENT_SIZE bytes. Cada entrada recebe um identificador sequencial (uid, a partir de 1) e e
+ * localizada pelo indice mailbox.idx, composto de registros de tamanho fixo, na ordem dos uids:
+ * 	uid (8 bytes) - identificador da entrada
+ * 	segment (4 bytes) - numero do segmento em que a entrada foi gravada
+ * 	offset (8 bytes) - posicao da entrada no segmento
+ * 	length (4 bytes) - tamanho da entrada em bytes
+ * 	flags (4 bytes) - marcacoes da entrada (ver FLAG_SENT e FLAG_ATTACHMENT)
+ * Como os registros tem tamanho fixo, o registro de um uid esta na posicao (uid - 1) * INDEX_RECORD_SIZE,
+ * e a leitura de uma entrada e apenas um acesso posicional ao segmento, sem listagem de diretorio.
+ * A entrada e gravada no segmento antes de seu registro no indice; ao abrir a caixa postal, um registro
+ * incompleto no fim do indice e bytes de segmento nao indexados (de uma gravacao interrompida) sao
+ * descartados.
+ * As gravacoes sao serializadas por um ReentrantLock, e nao por synchronized, para nao prender threads
+ * virtuais a sua thread portadora durante o acesso a disco.
+ * Como atributos, possui:
+ * 	Path directory - diretorio da caixa postal
+ * 	long nextUid - uid da proxima entrada
+ * 	int segment - numero do segmento atual
+ * 	long segmentSize - tamanho do segmento atual
+ * 	Set<Integer> unsyncedSegments - segmentos gravados desde a ultima chamada de sync
+ */
+class Mailbox {
+	static final int FLAG_SENT = 1;
+	static final int FLAG_ATTACHMENT = 2;
+
+	private static final String INDEX_FILE = "mailbox.idx";
+	private static final int INDEX_RECORD_SIZE = 28;
+	private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private Path directory;
+	private ReentrantLock lock = new ReentrantLock();
+	private boolean opened;
+	private long nextUid;
+	private int segment;
+	private long segmentSize;
+	private Set<Integer> unsyncedSegments = new HashSet<>();
+
+	Mailbox(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Carrega o estado da caixa postal a partir do indice, caso ainda nao tenha sido carregado. Retorna true
+	 * somente para quem criou o indice, permitindo ao MailStorage importar as mensagens gravadas no formato
+	 * anterior (ver MailStorage.importLegacyMessages).
+	 */
+	boolean open() throws IOException {
+		lock.lock();
+		try {
+			if (opened)
+				return false;
+
+			Files.createDirectories(directory);
+			Path index = directory.resolve(INDEX_FILE);
+			boolean created = !Files.exists(index);
+
+			try (FileChannel indexChannel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long records = indexChannel.size() / INDEX_RECORD_SIZE;
+				indexChannel.truncate(records * INDEX_RECORD_SIZE);
+
+				nextUid = records + 1;
+				segment = 1;
+				segmentSize = 0;
+
+				if (records > 0) {
+					Entry last = readIndexRecord(indexChannel, records);
+					segment = last.getSegment();
+					segmentSize = last.getOffset() + last.getLength();
+				}
+			}
+
+			Path segmentPath = segmentPath(segment);
+			if (Files.exists(segmentPath) && Files.size(segmentPath) > segmentSize) {
+				try (FileChannel segmentChannel = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+					segmentChannel.truncate(segmentSize);
+				}
+			}
+
+			opened = true;
+			return created;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acrescenta uma entrada ao segmento atual e registra-a no indice, retornando seu uid
+	 */
+	long append(byte[] record, int flags) throws IOException {
+		return append(List.of(record), List.of(flags));
+	}
+
+	/**
+	 * Acrescenta varias entradas de uma so vez, retornando o uid da primeira. As entradas de um mesmo
+	 * segmento sao gravadas em uma unica escrita, e os registros de todas elas no indice em outra, de modo
+	 * que o custo de abrir e gravar os arquivos da caixa postal e dividido entre as entradas (ver
+	 * MailStorage.storeMessages). Caso a gravacao falhe, a posicao de escrita volta ao ponto anterior, e os
+	 * bytes eventualmente gravados sao sobrescritos pela proxima entrada.
+	 */
+	long append(List<byte[]> records, List<Integer> flags) throws IOException {
+		open();
+		lock.lock();
+
+		long firstUid = nextUid;
+		int firstSegment = segment;
+		long firstSegmentSize = segmentSize;
+
+		try {
+			ByteBuffer indexRecords = ByteBuffer.allocate(records.size() * INDEX_RECORD_SIZE);
+			ByteArrayOutputStream segmentRecords = new ByteArrayOutputStream();
+			long segmentStart = segmentSize;
+
+			for (int i = 0; i < records.size(); i++) {
+				byte[] record = records.get(i);
+
+				if (segmentSize > 0 && segmentSize + record.length > SEGMENT_SIZE) {
+					writeSegment(segmentRecords, segmentStart);
+					segment++;
+					segmentSize = 0;
+					segmentStart = 0;
+				}
+
+				indexRecords.put(new Entry(nextUid++, segment, segmentSize, record.length, flags.get(i)).toIndexRecord());
+				segmentRecords.write(record);
+				segmentSize += record.length;
+			}
+
+			writeSegment(segmentRecords, segmentStart);
+
+			try (FileChannel indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.WRITE)) {
+				writeFully(indexChannel, indexRecords.flip(), (firstUid - 1) * INDEX_RECORD_SIZE);
+			}
+
+			return firstUid;
+		}
+		catch (IOException ex) {
+			nextUid = firstUid;
+			segment = firstSegment;
+			segmentSize = firstSegmentSize;
+			throw ex;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Grava no segmento atual, a partir da posicao informada, as entradas acumuladas, esvaziando o acumulador
+	 */
+	private void writeSegment(ByteArrayOutputStream segmentRecords, long position) throws IOException {
+		if (segmentRecords.size() == 0)
+			return;
+
+		try (FileChannel segmentChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			writeFully(segmentChannel, ByteBuffer.wrap(segmentRecords.toByteArray()), position);
+		}
+
+		segmentRecords.reset();
+		unsyncedSegments.add(segment);
+	}
+
+	/**
+	 * Forca a gravacao em disco (fsync) dos segmentos e do indice alterados desde a ultima chamada. As
+	 * gravacoes nao esperam o disco: o journal das mensagens aceitas (ver classe Journal) chama este metodo
+	 * antes de descartar as mensagens ja entregues, de uma vez para todas as entradas gravadas desde entao.
+	 */
+	void sync() throws IOException {
+		List<Integer> segments;
+
+		lock.lock();
+		try {
+			if (unsyncedSegments.isEmpty())
+				return;
+
+			segments = new ArrayList<>(unsyncedSegments);
+			unsyncedSegments.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		try {
+			for (int unsyncedSegment : segments) {
+				try (FileChannel segmentChannel = FileChannel.open(segmentPath(unsyncedSegment), StandardOpenOption.WRITE)) {
+					segmentChannel.force(false);
+				}
+			}
+
+			try (FileChannel indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.WRITE)) {
+				indexChannel.force(false);
+			}
+		}
+		catch (IOException ex) {
+			lock.lock();
+			try {
+				unsyncedSegments.addAll(segments);
+			}
+			finally {
+				lock.unlock();
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Retorna os registros do indice a partir do uid informado, em ordem crescente de uid
+	 */
+	List<Entry> entries(long fromUid) throws IOException {
+		open();
+		List<Entry> entries = new ArrayList<>();
+
+		try (FileChannel indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.READ)) {
+			long records = indexChannel.size() / INDEX_RECORD_SIZE;
+			ByteBuffer buffer = ByteBuffer.allocate(INDEX_RECORD_SIZE * 1024);
+			long position = (Math.max(fromUid, 1) - 1) * INDEX_RECORD_SIZE;
+
+			while (position < records * INDEX_RECORD_SIZE) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), records * INDEX_RECORD_SIZE - position));
+				readFully(indexChannel, buffer, position);
+				position += buffer.limit();
+				buffer.flip();
+
+				while (buffer.hasRemaining())
+					entries.add(Entry.fromIndexRecord(buffer));
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Retorna o registro do indice de um unico uid, ou null caso a caixa postal nao possua esse uid
+	 */
+	Entry entry(long uid) throws IOException {
+		open();
+
+		try (FileChannel indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.READ)) {
+			if (uid < 1 || uid > indexChannel.size() / INDEX_RECORD_SIZE)
+				return null;
+
+			return readIndexRecord(indexChannel, uid);
+		}
+	}
+
+	/**
+	 * Le o conteudo de varias entradas, abrindo cada segmento uma unica vez para as entradas consecutivas
+	 * que ele contem (como as de uma listagem da caixa postal)
+	 */
+	List<byte[]> read(List<Entry> entries) throws IOException {
+		List<byte[]> records = new ArrayList<>(entries.size());
+		FileChannel segmentChannel = null;
+		int openSegment = 0;
+
+		try {
+			for (Entry entry : entries) {
+				if (segmentChannel == null || entry.getSegment() != openSegment) {
+					if (segmentChannel != null)
+						segmentChannel.close();
+
+					openSegment = entry.getSegment();
+					segmentChannel = FileChannel.open(segmentPath(openSegment), StandardOpenOption.READ);
+				}
+
+				ByteBuffer buffer = ByteBuffer.allocate(entry.getLength());
+				readFully(segmentChannel, buffer, entry.getOffset());
+				records.add(buffer.array());
+			}
+		}
+		finally {
+			if (segmentChannel != null)
+				segmentChannel.close();
+		}
+
+		return records;
+	}
+
+	/**
+	 * Le o conteudo de uma entrada diretamente de sua posicao no segmento
+	 */
+	byte[] read(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entry.getLength());
+
+		try (FileChannel segmentChannel = FileChannel.open(segmentPath(entry.getSegment()), StandardOpenOption.READ)) {
+			readFully(segmentChannel, buffer, entry.getOffset());
+		}
+
+		return buffer.array();
+	}
+
+	private Entry readIndexRecord(FileChannel indexChannel, long uid) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+		readFully(indexChannel, buffer, (uid - 1) * INDEX_RECORD_SIZE);
+		buffer.flip();
+		return Entry.fromIndexRecord(buffer);
+	}
+
+	private Path segmentPath(int segment) {
+		return directory.resolve(String.format("segment-%06d.log", segment));
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read == -1)
+				throw new EOFException("Mailbox file truncated: " + channel);
+			position += read;
+		}
+	}
+
+	/**
+	 * Registro do indice de uma entrada da caixa postal
+	 */
+	static class Entry {
+		private long uid;
+		private int segment;
+		private long offset;
+		private int length;
+		private int flags;
+
+		Entry(long uid, int segment, long offset, int length, int flags) {
+			this.uid = uid;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.flags = flags;
+		}
+
+		long getUid() {
+			return this.uid;
+		}
+
+		int getSegment() {
+			return this.segment;
+		}
+
+		long getOffset() {
+			return this.offset;
+		}
+
+		int getLength() {
+			return this.length;
+		}
+
+		int getFlags() {
+			return this.flags;
+		}
+
+		boolean isSent() {
+			return (flags & FLAG_SENT) != 0;
+		}
+
+		boolean hasAttachment() {
+			return (flags & FLAG_ATTACHMENT) != 0;
+		}
+
+		private ByteBuffer toIndexRecord() {
+			return ByteBuffer.allocate(INDEX_RECORD_SIZE).putLong(uid).putInt(segment).putLong(offset)
+				.putInt(length).putInt(flags).flip();
+		}
+
+		private static Entry fromIndexRecord(ByteBuffer buffer) {
+			return new Entry(buffer.getLong(), buffer.getInt(), buffer.getLong(), buffer.getInt(), buffer.getInt());
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Classe responsavel pelo cache, em memoria, das entradas das caixas postais ja lidas e decodificadas, por
+ * caixa postal e uid, de modo que as mensagens de uma caixa postal muito acessada nao sejam relidas do
+ * disco a cada /receiveMessages, /listMessages ou aviso de nova mensagem.
+ * Cada entrada do cache (ver classe CachedMessage) guarda os campos da entrada da caixa postal (remetente,
+ * chave do conteudo, assunto, tamanho e identificador da mensagem) e, para as mensagens de ate
+ * MAX_CACHED_CONTENT bytes, o proprio conteudo codificado, dispensando tambem a leitura do armazenamento de
+ * mensagens. Os anexos nao sao guardados: continuam sendo transmitidos diretamente do disco para o socket.
+ * O cache e limitado a CAPACITY bytes (-Demail.messageCacheMB, por padrao 64; 0 desliga o cache), pela
+ * memoria estimada de cada entrada, e descarta primeiro as entradas usadas ha mais tempo (LRU), mantidas em
+ * LinkedHashMaps em ordem de acesso. Como toda consulta altera essa ordem, o cache e dividido em ate
+ * MAX_SEGMENTS segmentos (ver classe Segment), escolhidos pelo hash da chave, cada um com o seu mapa, a
+ * sua parcela da capacidade e o seu ReentrantLock: consultas a segmentos distintos nao disputam a mesma
+ * trava, e a ordem LRU passa a ser exata apenas dentro de cada segmento. O numero de segmentos e reduzido para caches pequenos, de
+ * modo que cada segmento tenha ao menos MIN_SEGMENT_CAPACITY bytes e comporte as maiores entradas.
+ * Como as entradas de uma caixa postal nunca sao alteradas depois de gravadas, e cada uma recebe um uid
+ * novo, uma nova entrega nao torna nenhuma entrada do cache obsoleta: as entradas entregues a usuarios
+ * conectados sao acrescentadas ao cache no momento da entrega (ver MailStorage.notifySessions), pois
+ * serao lidas em seguida. Somente uma gravacao que falhe no meio, e cujos uids serao reaproveitados pela
+ * proxima, descarta as entradas da caixa postal (ver invalidate).
+ * As metricas do cache sao publicadas por JMX, como server:type=MessageCache (ver interface
+ * MessageCacheMBean).
+ * Como atributos, possui:
+ * 	Segment[] segments - segmentos do cache, em numero potencia de dois
+ * 	demais atributos - metricas publicadas por JMX
+ */
+class MessageCache implements MessageCacheMBean {
+	static final int MAX_CACHED_CONTENT = 64 * 1024;
+
+	private static final long CAPACITY = Long.getLong("email.messageCacheMB", 64) * 1024 * 1024;
+	private static final int ENTRY_OVERHEAD = 192;
+	private static final int MAX_SEGMENTS = 16;
+	private static final long MIN_SEGMENT_CAPACITY = 1024 * 1024;
+
+	private Segment[] segments = newSegments();
+
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Publica as metricas do cache por JMX
+	 */
+	void start() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("server:type=MessageCache"));
+		}
+		catch (JMException ex) {
+			ServerLog.warn("Error publishing the message cache metrics: {}", ex.getMessage());
+		}
+	}
+
+	/**
+	 * Retorna a entrada do cache de um uid da caixa postal do usuario, ou null caso ela nao esteja no cache
+	 */
+	CachedMessage get(String userEmail, long uid) {
+		if (CAPACITY == 0)
+			return null;
+
+		Key key = new Key(userEmail, uid);
+		CachedMessage message = segmentFor(key).get(key);
+
+		(message == null ? misses : hits).increment();
+		return message;
+	}
+
+	/**
+	 * Guarda no cache a entrada de um uid da caixa postal do usuario, substituindo a anterior, caso exista,
+	 * e descartando as entradas usadas ha mais tempo do seu segmento ate que ele volte ao seu limite
+	 */
+	void put(String userEmail, long uid, CachedMessage message) {
+		if (message.weight() > CAPACITY / segments.length)
+			return;
+
+		Key key = new Key(userEmail, uid);
+		int evicted = segmentFor(key).put(key, message);
+
+		if (evicted > 0)
+			evictions.addAndGet(evicted);
+	}
+
+	/**
+	 * Descarta todas as entradas da caixa postal do usuario, percorrendo cada segmento
+	 */
+	void invalidate(String userEmail) {
+		for (Segment segment : segments)
+			segment.invalidate(userEmail);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRatio() {
+		long hits = this.hits.sum();
+		long lookups = hits + misses.sum();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getCachedMessages() {
+		int size = 0;
+
+		for (Segment segment : segments)
+			size += segment.size();
+
+		return size;
+	}
+
+	public long getWeightBytes() {
+		long weight = 0;
+
+		for (Segment segment : segments)
+			weight += segment.weight();
+
+		return weight;
+	}
+
+	public long getCapacityBytes() {
+		return CAPACITY;
+	}
+
+	/**
+	 * Cria os segmentos do cache: MAX_SEGMENTS, ou menos caso a capacidade de cada um ficasse abaixo de
+	 * MIN_SEGMENT_CAPACITY
+	 */
+	private static Segment[] newSegments() {
+		int count = MAX_SEGMENTS;
+
+		while (count > 1 && CAPACITY / count < MIN_SEGMENT_CAPACITY)
+			count >>= 1;
+
+		Segment[] segments = new Segment[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment(CAPACITY / count);
+
+		return segments;
+	}
+
+	/**
+	 * Retorna o segmento da chave pelos bits altos do seu hash, embaralhado por uma multiplicacao para que
+	 * os uids de uma mesma caixa postal se espalhem entre os segmentos. Os bits baixos ficam livres para o
+	 * LinkedHashMap do segmento, que do contrario concentraria as chaves em uma fracao de seus baldes.
+	 */
+	private Segment segmentFor(Key key) {
+		int hash = key.hashCode() * 0x9E3779B9;
+		return segments[(hash >>> 28) & (segments.length - 1)];
+	}
+
+	/**
+	 * Segmento do cache: um LinkedHashMap em ordem de acesso, da entrada usada ha mais tempo a mais recente,
+	 * limitado a capacity bytes e protegido por sua propria trava
+	 */
+	private static class Segment {
+		private ReentrantLock lock = new ReentrantLock();
+		private LinkedHashMap<Key, CachedMessage> messages = new LinkedHashMap<>(64, 0.75f, true);
+		private long capacity;
+		private long weight;
+
+		Segment(long capacity) {
+			this.capacity = capacity;
+		}
+
+		CachedMessage get(Key key) {
+			lock.lock();
+			try {
+				return messages.get(key);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Guarda a entrada e descarta as usadas ha mais tempo ate que o segmento volte ao seu limite,
+		 * retornando o numero de entradas descartadas
+		 */
+		int put(Key key, CachedMessage message) {
+			lock.lock();
+			try {
+				CachedMessage previous = messages.put(key, message);
+				weight += message.weight() - (previous == null ? 0 : previous.weight());
+
+				int evicted = 0;
+				Iterator<CachedMessage> eldest = messages.values().iterator();
+				while (weight > capacity) {
+					weight -= eldest.next().weight();
+					eldest.remove();
+					evicted++;
+				}
+
+				return evicted;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		void invalidate(String userEmail) {
+			lock.lock();
+			try {
+				Iterator<Map.Entry<Key, CachedMessage>> entries = messages.entrySet().iterator();
+
+				while (entries.hasNext()) {
+					Map.Entry<Key, CachedMessage> entry = entries.next();
+
+					if (entry.getKey().userEmail.equals(userEmail)) {
+						weight -= entry.getValue().weight();
+						entries.remove();
+					}
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		int size() {
+			lock.lock();
+			try {
+				return messages.size();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		long weight() {
+			lock.lock();
+			try {
+				return weight;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Chave de uma entrada do cache: o e-mail do dono da caixa postal e o uid da entrada
+	 */
+	private static class Key {
+		private String userEmail;
+		private long uid;
+
+		Key(String userEmail, long uid) {
+			this.userEmail = userEmail;
+			this.uid = uid;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key key && key.uid == uid && key.userEmail.equals(userEmail);
+		}
+
+		@Override
+		public int hashCode() {
+			return userEmail.hashCode() * 31 + Long.hashCode(uid);
+		}
+	}
+
+	/**
+	 * Entrada de uma caixa postal ja decodificada: o remetente (vazio nas copias do proprio remetente), a
+	 * chave do conteudo da mensagem, o assunto, o tamanho, se a mensagem possui anexo, o identificador da
+	 * mensagem e, para as mensagens pequenas, o conteudo codificado (ou null). Os objetos sao imutaveis,
+	 * pois sao compartilhados entre as sessoes que leem a mesma caixa postal.
+	 */
+	static class CachedMessage {
+		private String from;
+		private String messageKey;
+		private String subject;
+		private long size;
+		private boolean attachment;
+		private long messageId;
+		private byte[] content;
+
+		CachedMessage(String from, String messageKey, String subject, long size, boolean attachment, long messageId,
+				byte[] content) {
+			this.from = from;
+			this.messageKey = messageKey;
+			this.subject = subject;
+			this.size = size;
+			this.attachment = attachment;
+			this.messageId = messageId;
+			this.content = content != null && content.length <= MAX_CACHED_CONTENT ? content : null;
+		}
+
+		String getFrom() {
+			return this.from;
+		}
+
+		String getMessageKey() {
+			return this.messageKey;
+		}
+
+		String getSubject() {
+			return this.subject;
+		}
+
+		long getSize() {
+			return this.size;
+		}
+
+		boolean hasAttachment() {
+			return this.attachment;
+		}
+
+		long getMessageId() {
+			return this.messageId;
+		}
+
+		byte[] getContent() {
+			return this.content;
+		}
+
+		/**
+		 * Retorna uma copia desta entrada com o conteudo da mensagem, caso ele caiba no cache
+		 */
+		CachedMessage withContent(byte[] content) {
+			return new CachedMessage(from, messageKey, subject, size, attachment, messageId, content);
+		}
+
+		/**
+		 * Retorna a memoria estimada da entrada: os caracteres dos textos, o conteudo e o custo fixo dos
+		 * objetos e do LinkedHashMap
+		 */
+		private long weight() {
+			return ENTRY_OVERHEAD + 2L * (from.length() + messageKey.length() + (subject == null ? 0 : subject.length()))
+				+ (content == null ? 0 : content.length);
+		}
+	}
+}
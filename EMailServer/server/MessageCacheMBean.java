@@ -0,0 +1,26 @@
+package server;
+
+/**
+ * Metricas do cache das entradas das caixas postais (ver classe MessageCache), publicadas por JMX como
+ * server:type=MessageCache:
+ * 	Hits e Misses - consultas ao cache atendidas por ele e as que precisaram ler a caixa postal
+ * 	HitRatio - fracao das consultas atendidas pelo cache
+ * 	Evictions - entradas descartadas para manter o cache dentro de seu limite de memoria
+ * 	CachedMessages - quantidade de entradas no cache
+ * 	WeightBytes e CapacityBytes - memoria estimada das entradas no cache e seu limite (-Demail.messageCacheMB)
+ */
+public interface MessageCacheMBean {
+	long getHits();
+
+	long getMisses();
+
+	double getHitRatio();
+
+	long getEvictions();
+
+	int getCachedMessages();
+
+	long getWeightBytes();
+
+	long getCapacityBytes();
+}
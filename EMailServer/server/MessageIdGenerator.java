@@ -0,0 +1,71 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classe responsavel por gerar os identificadores das mensagens aceitas pelo servidor, numeros de 64 bits
+ * unicos e crescentes que substituem os antigos nomes de arquivo baseados no instante do envio, em que duas
+ * mensagens recebidas no mesmo segundo se sobrescreviam.
+ * Cada identificador e composto, do bit mais significativo ao menos significativo, por:
+ * 	timestamp (41 bits) - milissegundos desde EPOCH, suficientes para cerca de 69 anos
+ * 	sequence (12 bits) - contador das mensagens geradas no mesmo milissegundo
+ * 	node (10 bits) - numero do servidor (-Demail.nodeId), de modo que servidores distintos nunca gerem o
+ * 		mesmo identificador
+ * O ultimo identificador gerado e mantido em um AtomicLong, e o proximo e o maior entre o instante atual
+ * (com a sequencia zerada) e o anterior acrescido de uma unidade na sequencia, gravado por compareAndSet
+ * sem bloqueio e sem alocar objetos. Como a sequencia fica acima do numero do servidor, mais de 4096
+ * identificadores no mesmo milissegundo apenas transbordam para o milissegundo seguinte, adiantando-se ao
+ * relogio sem nunca repetir um valor; da mesma forma, um relogio que volte atras nao faz os
+ * identificadores decrescerem.
+ * Como atributos, possui:
+ * 	long node - numero do servidor, ja posicionado nos bits menos significativos
+ * 	AtomicLong lastId - ultimo identificador gerado
+ */
+public final class MessageIdGenerator {
+	public static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+
+	private static final int NODE_BITS = 10;
+	private static final int SEQUENCE_BITS = 12;
+	private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+	private static final long SEQUENCE_INCREMENT = 1L << NODE_BITS;
+	private static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+	private long node;
+	private AtomicLong lastId = new AtomicLong();
+
+	public MessageIdGenerator(int node) {
+		if (node < 0 || node > MAX_NODE)
+			throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE + ": " + node);
+
+		this.node = node;
+	}
+
+	/**
+	 * Retorna um novo identificador, maior do que todos os gerados anteriormente por esta instancia
+	 */
+	public long nextId() {
+		long now = ((System.currentTimeMillis() - EPOCH) << TIMESTAMP_SHIFT) | node;
+
+		while (true) {
+			long last = lastId.get();
+			long next = Math.max(now, last + SEQUENCE_INCREMENT);
+
+			if (lastId.compareAndSet(last, next))
+				return next;
+		}
+	}
+
+	/**
+	 * Retorna o instante, em milissegundos desde 1970, codificado no identificador
+	 */
+	public static long timestamp(long id) {
+		return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+	}
+
+	/**
+	 * Retorna o numero do servidor que gerou o identificador
+	 */
+	public static int node(long id) {
+		return (int) (id & MAX_NODE);
+	}
+}
@@ -0,0 +1,427 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import client.Frame;
+import client.FrameCodec;
+
+/**
+ * Classe responsavel por conduzir, de forma nao bloqueante, a sessao de um usuario conectado ao motor NIO.
+ * Trata o mesmo protocolo de quadros que UserThread, delegando os comandos a UserSession, porem sem ocupar
+ * uma thread por conexao: cada instancia e acionada pelo EventLoop que a registrou somente quando ha bytes
+ * para ler ou espaco para escrever no socket.
+ * Como atributos, possui:
+ * 	SocketChannel channel - canal nao bloqueante de conexao com o cliente
+ * 	SelectionKey key - chave de registro do canal no seletor do EventLoop
+ * 	UserSession session - processador dos comandos do usuario
+ * 	ByteBuffer inFromClient - buffer que acumula os bytes recebidos e ainda nao processados
+ * 	Deque<Object> outToClient - fila de quadros (ByteBuffer) e de trechos de arquivo (FileRegion) aguardando
+ * 		espaco no socket para serem escritos
+ * 	long queuedBytes - quantidade de bytes na fila de saida, comparada a HIGH_WATERMARK para suspender a
+ * 		transmissao de anexos enquanto o cliente nao consome o que ja foi enfileirado
+ * 	EventLoop loop - laco de eventos que conduz esta sessao
+ * 	Queue<Runnable> pendingTasks - tarefas agendadas por outras threads, executadas na thread do laco
+ * 		quando nao ha download em andamento (ver execute)
+ * 	Executor storageWorkers - threads de trabalho do servidor, que executam as operacoes da sessao que
+ * 		aguardam o disco (ver executeBlocking)
+ * 	boolean working - se uma operacao em disco da sessao esta em andamento em uma thread de trabalho
+ */
+class NioSession implements SessionOutput {
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int HIGH_WATERMARK = 4 * Frame.CHUNK_SIZE;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private UserSession session;
+	private boolean closing;
+
+	private ByteBuffer inFromClient = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private Deque<Object> outToClient = new ArrayDeque<>();
+	private long queuedBytes;
+	private EventLoop loop;
+	private Queue<Runnable> pendingTasks = new ArrayDeque<>();
+	private Executor storageWorkers;
+	private boolean working;
+
+	/**
+	 * Construtor recebe o canal aceito, ja configurado como nao bloqueante, a chave de registro no seletor, a
+	 * instancia do servidor e o laco de eventos que o registrou.
+	 */
+	NioSession(SocketChannel channel, SelectionKey key, EMailServer server, EventLoop loop) {
+		this.channel = channel;
+		this.key = key;
+		this.session = new UserSession(server, this);
+		this.loop = loop;
+		this.storageWorkers = server.getStorageWorkers();
+	}
+
+	/**
+	 * Trata os eventos de prontidao informados pelo seletor. Qualquer erro de I/O encerra a sessao, assim
+	 * como um erro inesperado no tratamento de um quadro (um quadro malformado, por exemplo), que encerra
+	 * somente esta sessao em vez de derrubar o laco de eventos e todas as sessoes atendidas por ele.
+	 */
+	void handle() {
+		try {
+			if (key.isValid() && key.isReadable())
+				onReadable();
+
+			if (key.isValid() && key.isWritable())
+				writeQueued();
+
+			if (key.isValid())
+				runPendingTasks();
+
+			if (key.isValid())
+				processFrames();
+		}
+		catch (IOException ex) {
+			ServerLog.warn("Error in NioSession: {}", ex.getMessage());
+			close();
+		}
+		catch (RuntimeException ex) {
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Registra o erro inesperado, com sua pilha, e encerra a sessao
+	 */
+	private void fail(RuntimeException ex) {
+		ServerLog.error("Unexpected error in NioSession of {}, closing the connection", session.getUserEMail(), ex);
+		close();
+	}
+
+	/**
+	 * Le do socket tudo o que estiver disponivel. O buffer de entrada e aumentado quando um quadro nao cabe
+	 * nele.
+	 */
+	private void onReadable() throws IOException {
+		ensureCapacity();
+
+		if (channel.read(inFromClient) == -1)
+			close();
+	}
+
+	/**
+	 * Entrega a UserSession cada quadro que ja tenha chegado por inteiro e escreve as respostas. Enquanto um
+	 * download ou uma operacao em disco estiverem em andamento os quadros seguintes permanecem no buffer,
+	 * sendo processados somente quando terminarem, na mesma ordem em que a UserThread os trataria.
+	 */
+	private void processFrames() throws IOException {
+		boolean handled = true;
+
+		while (handled && key.isValid()) {
+			handled = false;
+			inFromClient.flip();
+			try {
+				Frame frame;
+
+				while (!closing && !working && !session.isTransferring() && (frame = FrameCodec.decode(inFromClient)) != null) {
+					handled = true;
+					if (!session.handleFrame(frame))
+						closing = true;
+				}
+			}
+			finally {
+				inFromClient.compact();
+			}
+
+			writeQueued();
+		}
+	}
+
+	private void ensureCapacity() throws IOException {
+		inFromClient.flip();
+		int needed = Math.max(FrameCodec.frameSize(inFromClient), inFromClient.remaining() + 1);
+		inFromClient.compact();
+
+		if (needed > inFromClient.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, inFromClient.capacity() * 2));
+			inFromClient.flip();
+			larger.put(inFromClient);
+			inFromClient = larger;
+		}
+	}
+
+	public void writeFrame(byte type, int requestId, byte[] payload) {
+		writeFrame(type, requestId, payload, 0, payload.length);
+	}
+
+	public void writeFrame(byte type, int requestId, byte[] payload, int offset, int length) {
+		outToClient.add(FrameCodec.encode(type, requestId, payload, offset, length));
+		queuedBytes += Frame.HEADER_SIZE + length;
+	}
+
+	/**
+	 * Enfileira o arquivo como um FileRegion: nenhum byte do anexo e lido para o heap, sendo transferido
+	 * do arquivo para o canal a medida que o socket aceita escrita
+	 */
+	public void transferFile(byte type, int requestId, FileChannel file) throws IOException {
+		FileRegion region = new FileRegion(type, requestId, file);
+		outToClient.add(region);
+		queuedBytes += region.length;
+	}
+
+	/**
+	 * Entrega a tarefa ao laco de eventos da sessao. Caso um download esteja em andamento, a tarefa aguarda
+	 * o seu fim, para que seus quadros nao se misturem aos do anexo sendo transmitido.
+	 */
+	public void execute(Runnable task) {
+		loop.execute(() -> {
+			pendingTasks.add(task);
+
+			try {
+				if (key.isValid())
+					runPendingTasks();
+			}
+			catch (IOException ex) {
+				ServerLog.warn("Error in NioSession: {}", ex.getMessage());
+				close();
+			}
+			catch (RuntimeException ex) {
+				fail(ex);
+			}
+		});
+	}
+
+	/**
+	 * Entrega a operacao a uma thread de trabalho, de modo que o laco siga atendendo as demais conexoes
+	 * enquanto ela aguarda o disco. A continuacao e executada de volta no laco (ver resume), e ate la a
+	 * sessao nao trata novos quadros nem retoma seu download, e a leitura do socket fica suspensa.
+	 */
+	public void executeBlocking(Runnable operation, Continuation continuation) {
+		working = true;
+
+		storageWorkers.execute(() -> {
+			RuntimeException failure = null;
+
+			try {
+				operation.run();
+			}
+			catch (RuntimeException ex) {
+				failure = ex;
+			}
+
+			RuntimeException error = failure;
+			loop.execute(() -> resume(continuation, error));
+		});
+	}
+
+	/**
+	 * Executa a continuacao de uma operacao em disco e retoma a sessao: a saida e escrita, o download em
+	 * andamento continua e os quadros que aguardavam no buffer sao tratados. Caso a conexao tenha sido
+	 * encerrada durante a operacao, a sessao, cujo encerramento aguardava a operacao (ver close), e
+	 * encerrada agora.
+	 */
+	private void resume(Continuation continuation, RuntimeException failure) {
+		working = false;
+
+		if (!key.isValid()) {
+			session.close();
+			return;
+		}
+
+		try {
+			if (failure != null)
+				throw failure;
+
+			continuation.run();
+			writeQueued();
+			runPendingTasks();
+			processFrames();
+		}
+		catch (IOException ex) {
+			ServerLog.warn("Error in NioSession: {}", ex.getMessage());
+			close();
+		}
+		catch (RuntimeException ex) {
+			fail(ex);
+		}
+	}
+
+	private void runPendingTasks() throws IOException {
+		Runnable task;
+
+		if (pendingTasks.isEmpty() || session.isTransferring())
+			return;
+
+		while ((task = pendingTasks.poll()) != null)
+			task.run();
+
+		writeQueued();
+	}
+
+	public boolean isCongested() {
+		return queuedBytes >= HIGH_WATERMARK;
+	}
+
+	public void flush() throws IOException {
+		writeQueued();
+	}
+
+	/**
+	 * Escreve no socket o quanto for possivel da fila de saida, retomando o download em andamento a cada vez
+	 * que a fila se esvazia. Caso sobrem bytes, passa a aguardar pelo evento de escrita do seletor; caso a
+	 * fila se esvazie durante o encerramento, fecha a sessao. A leitura fica suspensa durante o download e
+	 * as operacoes em disco, ja que os quadros recebidos so serao processados ao seu termino.
+	 * Cada passagem pela fila que escreva algum byte emite um evento JFR de escrita no socket (ver classe
+	 * ServerEvents); o tempo gasto pelo download em continueTransfer fica de fora.
+	 */
+	private void writeQueued() throws IOException {
+		while (true) {
+			ServerEvents.SocketWrite event = new ServerEvents.SocketWrite();
+			long written = 0;
+			boolean file = false;
+			event.begin();
+
+			while (!outToClient.isEmpty()) {
+				Object head = outToClient.peek();
+
+				if (head instanceof ByteBuffer buffer) {
+					written += channel.write(buffer);
+
+					if (buffer.hasRemaining())
+						break;
+
+					queuedBytes -= buffer.limit();
+				}
+				else {
+					FileRegion region = (FileRegion) head;
+					long position = region.position;
+					boolean complete = region.writeTo(channel);
+
+					written += region.position - position;
+					file = true;
+
+					if (!complete)
+						break;
+
+					region.close();
+					queuedBytes -= region.length;
+				}
+
+				outToClient.poll();
+			}
+
+			if (written > 0 && event.shouldCommit()) {
+				event.mailbox = session.getUserEMail();
+				event.bytes = written;
+				event.file = file;
+				event.commit();
+			}
+
+			if (!outToClient.isEmpty() || !session.isTransferring() || working)
+				break;
+
+			session.continueTransfer();
+		}
+
+		boolean suspended = working || session.isTransferring();
+
+		if (outToClient.isEmpty() && closing)
+			close();
+		else if (outToClient.isEmpty())
+			key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+		else if (closing || suspended)
+			key.interestOps(SelectionKey.OP_WRITE);
+		else
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Encerra o canal e a sessao do usuario, fechando os arquivos que ainda aguardavam transmissao. Com uma
+	 * operacao em disco em andamento, o encerramento da sessao aguarda o seu fim (ver resume), para que o
+	 * upload ou o download nao sejam descartados enquanto a thread de trabalho ainda os utiliza.
+	 */
+	void close() {
+		key.cancel();
+
+		for (Object pending : outToClient) {
+			if (pending instanceof FileRegion region)
+				region.close();
+		}
+		outToClient.clear();
+
+		try {
+			channel.close();
+		}
+		catch (IOException ex) {
+			ServerLog.warn("Error closing NioSession: {}", ex.getMessage());
+		}
+
+		if (!working)
+			session.close();
+	}
+
+	/**
+	 * Trecho de arquivo enfileirado para transmissao, escrito no canal como uma sequencia de quadros de no
+	 * maximo Frame.CHUNK_SIZE bytes: o cabecalho de cada quadro e montado em um pequeno ByteBuffer e o seu
+	 * conteudo segue do arquivo para o socket por FileChannel.transferTo.
+	 */
+	private static class FileRegion {
+		private byte type;
+		private int requestId;
+		private FileChannel file;
+		private long position;
+		private long size;
+		private long length;
+		private long chunkEnd;
+		private ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE).flip();
+
+		FileRegion(byte type, int requestId, FileChannel file) throws IOException {
+			this.type = type;
+			this.requestId = requestId;
+			this.file = file;
+			this.position = file.position();
+			this.size = file.size();
+			this.length = size - position;
+			this.chunkEnd = position;
+		}
+
+		/**
+		 * Escreve o quanto o canal aceitar. Retorna true quando o arquivo tiver sido transmitido por inteiro.
+		 */
+		boolean writeTo(SocketChannel channel) throws IOException {
+			while (true) {
+				if (header.hasRemaining()) {
+					channel.write(header);
+
+					if (header.hasRemaining())
+						return false;
+				}
+
+				if (position < chunkEnd) {
+					long transferred = file.transferTo(position, chunkEnd - position, channel);
+
+					if (transferred == 0 && position >= file.size())
+						throw new EOFException("Attachment file truncated during transfer");
+
+					position += transferred;
+
+					if (position < chunkEnd)
+						return false;
+				}
+
+				if (position >= size)
+					return true;
+
+				int chunkLength = (int) Math.min(Frame.CHUNK_SIZE, size - position);
+				header.clear();
+				header.put(Frame.VERSION).put(type).putInt(requestId).putInt(chunkLength).flip();
+				chunkEnd = position + chunkLength;
+			}
+		}
+
+		void close() {
+			try {
+				file.close();
+			}
+			catch (IOException ex) {
+				ServerLog.warn("Error closing the attachment file: {}", ex.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package server;
+
+import jdk.jfr.*;
+
+/**
+ * Eventos do JDK Flight Recorder emitidos pelo servidor, para que uma gravacao iniciada no servidor em
+ * execucao (jcmd <pid> JFR.start) mostre onde o tempo de um comando foi gasto: na leitura do indice da
+ * caixa postal (ListMailbox), na leitura e decodificacao de cada mensagem (LoadMessage), na gravacao das
+ * mensagens aceitas (ReceiveMessage e StoreMessages) e dos anexos (StoreBlob), na transmissao de um
+ * download inteiro (FetchMessages) ou na escrita no socket (SocketWrite).
+ * Os eventos ficam na categoria "E-mail Server" e sao gravados sem a pilha de chamadas. Com a gravacao
+ * desligada, quase nada e gasto: os eventos criados e concluidos no mesmo metodo sao eliminados pelo JIT,
+ * e seus campos so sao preenchidos quando shouldCommit confirma que serao gravados; os eventos que
+ * atravessam varios quadros (o download e o upload de um anexo) so sao guardados quando habilitados.
+ */
+final class ServerEvents {
+	private ServerEvents() {
+	}
+
+	@Name("email.ReceiveMessage")
+	@Label("Receive Message")
+	@Category({ "E-mail Server", "Session" })
+	@Description("E-mail decoded from a SEND_MESSAGE frame and stored, or whose chunked attachment upload was started")
+	@StackTrace(false)
+	static class ReceiveMessage extends Event {
+		@Label("Mailbox")
+		String mailbox;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Attachment")
+		boolean attachment;
+	}
+
+	@Name("email.StoreMessages")
+	@Label("Store Messages")
+	@Category({ "E-mail Server", "Storage" })
+	@Description("E-mails of a send or batch encoded, written to the message store and accepted by the delivery journal")
+	@StackTrace(false)
+	static class StoreMessages extends Event {
+		@Label("Mailbox")
+		String mailbox;
+
+		@Label("Message Count")
+		int messageCount;
+
+		@Label("Failed Count")
+		int failedCount;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("email.StoreBlob")
+	@Label("Store Blob")
+	@Category({ "E-mail Server", "Storage" })
+	@Description("Attachment or message content written to a content-addressed store, from the first byte to the commit")
+	@StackTrace(false)
+	static class StoreBlob extends Event {
+		@Label("Directory")
+		String directory;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Deduplicated")
+		@Description("The content already existed and was not written again")
+		boolean deduplicated;
+	}
+
+	@Name("email.ListMailbox")
+	@Label("List Mailbox")
+	@Category({ "E-mail Server", "Storage" })
+	@Description("Mailbox index read for the messages received after a uid")
+	@StackTrace(false)
+	static class ListMailbox extends Event {
+		@Label("Mailbox")
+		String mailbox;
+
+		@Label("Since Uid")
+		long sinceUid;
+
+		@Label("Message Count")
+		int messageCount;
+	}
+
+	@Name("email.LoadMessage")
+	@Label("Load Message")
+	@Category({ "E-mail Server", "Storage" })
+	@Description("Mailbox entry and message content read, from the cache or the disk, and decoded")
+	@StackTrace(false)
+	static class LoadMessage extends Event {
+		@Label("Mailbox")
+		String mailbox;
+
+		@Label("Uid")
+		long uid;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Cached")
+		@Description("The content came from the message cache")
+		boolean cached;
+	}
+
+	@Name("email.FetchMessages")
+	@Label("Fetch Messages")
+	@Category({ "E-mail Server", "Session" })
+	@Description("Download or listing transmitted to the client, from the command to its last frame")
+	@StackTrace(false)
+	static class FetchMessages extends Event {
+		@Label("Mailbox")
+		String mailbox;
+
+		@Label("Command")
+		String command;
+
+		@Label("Since Uid")
+		long sinceUid;
+
+		@Label("Message Count")
+		int messageCount;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("email.SocketWrite")
+	@Label("Socket Write")
+	@Category({ "E-mail Server", "Session" })
+	@Description("Frames or attachment file written to a client socket")
+	@StackTrace(false)
+	static class SocketWrite extends Event {
+		@Label("Mailbox")
+		String mailbox;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("File")
+		@Description("An attachment sent from its file by transferTo")
+		boolean file;
+	}
+}
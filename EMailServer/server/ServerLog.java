@@ -0,0 +1,257 @@
+package server;
+
+import java.io.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Classe responsavel pelo log do servidor, escrito na saida padrao por uma unica thread de fundo, de modo
+ * que a thread de aceite, as sessoes e as threads de entrega nunca esperem pela escrita no console (que
+ * bloqueia quando a saida e um pipe para um coletor de logs lento).
+ * Cada chamada de log apenas preenche um registro de um buffer circular pre-alocado (ver classe Slot),
+ * com o instante, o nivel, o texto e ate dois argumentos, sem formatar nada: o texto e montado pela
+ * thread de fundo, que substitui cada {} do texto por um argumento, e um argumento Throwable que sobre tem
+ * a sua pilha impressa. As linhas sao acumuladas em um buffer e descarregadas quando o buffer circular se
+ * esvazia.
+ * Varias threads gravam no buffer ao mesmo tempo sem travas: cada uma reserva a proxima posicao por um
+ * compareAndSet em claimed e publica o registro ao gravar sua sequencia em Slot.published, que a thread de
+ * fundo aguarda antes de le-lo. Quando o buffer esta cheio, por padrao o registro e descartado e contado
+ * (o total e informado no proprio log e em ServerMetrics); com -Demail.logOverflow=block, quem registra
+ * aguarda a thread de fundo liberar espaco.
+ * Configuracao: -Demail.logLevel=<DEBUG|INFO|WARN|ERROR|OFF> (por padrao INFO) escolhe o nivel minimo
+ * registrado e -Demail.logBufferSize=<n> (por padrao 8192, arredondado para uma potencia de dois) o
+ * tamanho do buffer circular. Ao fim do processo, os registros restantes sao escritos antes de sair.
+ * Como atributos, possui:
+ * 	Slot[] ring - buffer circular de registros
+ * 	AtomicLong claimed - sequencia da proxima posicao a ser reservada
+ * 	long consumed - sequencia do proximo registro a ser escrito pela thread de fundo
+ * 	LongAdder dropped - registros descartados por falta de espaco no buffer
+ * 	boolean writerWaiting - se a thread de fundo esta parada aguardando registros
+ */
+final class ServerLog {
+	enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+	private static final Level LEVEL = Level.valueOf(System.getProperty("email.logLevel", "INFO").toUpperCase());
+	private static final boolean BLOCK_ON_OVERFLOW = "block".equals(System.getProperty("email.logOverflow"));
+	private static final int CAPACITY = capacity(Integer.getInteger("email.logBufferSize", 8192));
+	private static final long IDLE_PARK_NANOS = 100_000_000;
+	private static final long SHUTDOWN_WAIT_MILLIS = 2000;
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+	private static final Slot[] ring = new Slot[CAPACITY];
+	private static final AtomicLong claimed = new AtomicLong();
+	private static volatile long consumed;
+	private static final LongAdder dropped = new LongAdder();
+	private static volatile boolean writerWaiting;
+	private static final Thread writer;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++)
+			ring[i] = new Slot();
+
+		writer = Thread.ofPlatform().name("ServerLog").daemon().start(ServerLog::writeRecords);
+		Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::awaitWritten));
+	}
+
+	private ServerLog() {
+	}
+
+	static boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+	}
+
+	static long getDropped() {
+		return dropped.sum();
+	}
+
+	static void info(String text) {
+		log(Level.INFO, text, null, null);
+	}
+
+	static void info(String text, Object argument) {
+		log(Level.INFO, text, argument, null);
+	}
+
+	static void info(String text, Object argument, Object other) {
+		log(Level.INFO, text, argument, other);
+	}
+
+	static void warn(String text, Object argument) {
+		log(Level.WARN, text, argument, null);
+	}
+
+	static void warn(String text, Object argument, Object other) {
+		log(Level.WARN, text, argument, other);
+	}
+
+	static void error(String text, Object argument) {
+		log(Level.ERROR, text, argument, null);
+	}
+
+	static void error(String text, Object argument, Object other) {
+		log(Level.ERROR, text, argument, other);
+	}
+
+	/**
+	 * Registra um evento no buffer circular, caso o nivel esteja habilitado. Nada e alocado: o registro
+	 * reutiliza a posicao reservada, e os argumentos sao guardados sem conversao.
+	 */
+	static void log(Level level, String text, Object argument, Object other) {
+		if (!isEnabled(level))
+			return;
+
+		long sequence;
+
+		while (true) {
+			sequence = claimed.get();
+
+			if (sequence - consumed >= CAPACITY) {
+				if (!BLOCK_ON_OVERFLOW) {
+					dropped.increment();
+					return;
+				}
+
+				LockSupport.unpark(writer);
+				Thread.onSpinWait();
+				continue;
+			}
+
+			if (claimed.compareAndSet(sequence, sequence + 1))
+				break;
+		}
+
+		Slot slot = ring[(int) (sequence & (CAPACITY - 1))];
+		slot.time = System.currentTimeMillis();
+		slot.level = level;
+		slot.text = text;
+		slot.argument = argument;
+		slot.other = other;
+		slot.published = sequence;
+
+		if (writerWaiting)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Logica da thread de fundo: escreve os registros na ordem de suas sequencias, liberando cada posicao
+	 * apos le-la. Sem registros publicados, descarrega as linhas acumuladas, informa os descartes ocorridos
+	 * desde a ultima vez e aguarda ser acordada por um novo registro.
+	 */
+	private static void writeRecords() {
+		Writer output = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+		StringBuilder line = new StringBuilder(256);
+		long next = 0;
+		long reportedDrops = 0;
+
+		while (true) {
+			Slot slot = ring[(int) (next & (CAPACITY - 1))];
+
+			try {
+				if (slot.published != next) {
+					long drops = dropped.sum();
+
+					if (drops > reportedDrops) {
+						line.setLength(0);
+						format(line, System.currentTimeMillis(), Level.WARN, "{} log record(s) dropped: the log buffer was full",
+							drops - reportedDrops, null);
+						output.append(line);
+						reportedDrops = drops;
+					}
+
+					output.flush();
+					writerWaiting = true;
+
+					if (slot.published != next)
+						LockSupport.parkNanos(IDLE_PARK_NANOS);
+
+					writerWaiting = false;
+					continue;
+				}
+
+				line.setLength(0);
+				format(line, slot.time, slot.level, slot.text, slot.argument, slot.other);
+				output.append(line);
+			}
+			catch (IOException ex) {
+				// sem saida padrao, os registros sao apenas descartados
+			}
+
+			slot.text = null;
+			slot.argument = null;
+			slot.other = null;
+			consumed = ++next;
+		}
+	}
+
+	/**
+	 * Monta a linha de um registro: instante, nivel e texto com os argumentos no lugar de cada {}; um
+	 * Throwable que nao tenha sido usado no texto e acrescentado com sua pilha
+	 */
+	private static void format(StringBuilder line, long time, Level level, String text, Object argument, Object other) {
+		line.append(TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault())));
+		line.append(' ').append(level).append(level.name().length() == 4 ? "  " : " ");
+
+		Object[] arguments = { argument, other };
+		int used = 0;
+		int start = 0;
+		int placeholder;
+
+		while (used < arguments.length && (placeholder = text.indexOf("{}", start)) >= 0) {
+			line.append(text, start, placeholder).append(arguments[used++]);
+			start = placeholder + 2;
+		}
+
+		line.append(text, start, text.length()).append(System.lineSeparator());
+
+		for (int i = used; i < arguments.length; i++) {
+			if (arguments[i] instanceof Throwable throwable) {
+				StringWriter stackTrace = new StringWriter();
+				throwable.printStackTrace(new PrintWriter(stackTrace));
+				line.append(stackTrace);
+			}
+		}
+	}
+
+	/**
+	 * Aguarda, por no maximo SHUTDOWN_WAIT_MILLIS, que a thread de fundo escreva os registros ja reservados,
+	 * chamado ao fim do processo
+	 */
+	private static void awaitWritten() {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MILLIS;
+
+		while ((consumed < claimed.get() || !writerWaiting) && System.currentTimeMillis() < deadline) {
+			LockSupport.unpark(writer);
+
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+		}
+	}
+
+	private static int capacity(int requested) {
+		int capacity = 16;
+
+		while (capacity < requested)
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	/**
+	 * Posicao do buffer circular, reutilizada a cada volta. O registro so e lido pela thread de fundo apos
+	 * a escrita de published com a sua sequencia, que torna visiveis os demais campos.
+	 */
+	private static class Slot {
+		private volatile long published = -1;
+		private long time;
+		private Level level;
+		private String text;
+		private Object argument;
+		private Object other;
+	}
+}
@@ -0,0 +1,156 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import client.Frame;
+
+/**
+ * Classe responsavel pelas metricas de uso do servidor: o histograma das latencias de cada comando do
+ * protocolo (ver classe LatencyHistogram) e os contadores de bytes trafegados, sessoes abertas e operacoes
+ * que falharam, alimentados pelas sessoes (ver UserSession). As mensagens entregues e os bytes de anexos
+ * gravados sao contados pela fila de entrega e pelo armazenamento dos anexos, e apenas consultados aqui.
+ * O registro de uma latencia ou de um contador nao aloca memoria nem usa travas: os histogramas sao
+ * criados na inicializacao, em um array indexado pelo tipo do quadro do comando, e os contadores sao
+ * LongAdders, que nao disputam a mesma variavel entre as threads das sessoes.
+ * Os contadores sao publicados por JMX como server:type=ServerMetrics (ver interface ServerMetricsMBean) e
+ * cada histograma como server:type=CommandLatency,command=<comando> (ver interface LatencyHistogramMBean).
+ * Com -Demail.metricsDumpSeconds=<n>, um resumo das metricas e registrado no log a cada n segundos.
+ * Como atributos, possui:
+ * 	MailStorage storage - armazenamento cuja fila de entrega e cujos anexos sao consultados
+ * 	LatencyHistogram[] commands - histogramas dos comandos, pelo tipo do quadro (null para os quadros que
+ * 		nao sao comandos, como os pedacos de anexo)
+ * 	demais atributos - contadores publicados por JMX
+ */
+class ServerMetrics implements ServerMetricsMBean {
+	private static final long DUMP_SECONDS = Long.getLong("email.metricsDumpSeconds", 0);
+
+	private MailStorage storage;
+	private LatencyHistogram[] commands = new LatencyHistogram[Frame.COMPRESSED];
+
+	private AtomicInteger activeSessions = new AtomicInteger();
+	private LongAdder bytesIn = new LongAdder();
+	private LongAdder bytesOut = new LongAdder();
+	private LongAdder failedOperations = new LongAdder();
+
+	ServerMetrics(MailStorage storage) {
+		this.storage = storage;
+
+		commands[Frame.LOGIN] = new LatencyHistogram("login");
+		commands[Frame.SEND_MESSAGE] = new LatencyHistogram("sendMessage");
+		commands[Frame.SEND_BATCH] = new LatencyHistogram("sendBatch");
+		commands[Frame.RECEIVE_MESSAGES] = new LatencyHistogram("receiveMessages");
+		commands[Frame.LIST_MESSAGES] = new LatencyHistogram("listMessages");
+		commands[Frame.FETCH_MESSAGE] = new LatencyHistogram("fetchMessage");
+		commands[Frame.FETCH_ATTACHMENT] = new LatencyHistogram("fetchAttachment");
+		commands[Frame.PUSH_MODE] = new LatencyHistogram("push");
+		commands[Frame.COMPRESSION] = new LatencyHistogram("compression");
+		commands[Frame.LOGOFF] = new LatencyHistogram("logoff");
+	}
+
+	/**
+	 * Publica as metricas por JMX e, caso pedido, inicia a thread que registra o resumo periodico
+	 */
+	void start() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("server:type=ServerMetrics"));
+
+			for (LatencyHistogram histogram : commands) {
+				if (histogram != null)
+					ManagementFactory.getPlatformMBeanServer().registerMBean(histogram,
+						new ObjectName("server:type=CommandLatency,command=" + histogram.getCommand()));
+			}
+		}
+		catch (JMException ex) {
+			ServerLog.warn("Error publishing the server metrics: {}", ex.getMessage());
+		}
+
+		if (DUMP_SECONDS > 0) {
+			ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(
+				Thread.ofPlatform().name("MetricsDump").daemon().factory());
+			dumper.scheduleAtFixedRate(() -> ServerLog.info("{}", dump().stripTrailing()), DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Registra a latencia de um comando, identificado pelo tipo de seu quadro; tipos que nao sao comandos
+	 * sao ignorados
+	 */
+	void recordCommand(byte command, long nanos) {
+		LatencyHistogram histogram = command >= 0 && command < commands.length ? commands[command] : null;
+
+		if (histogram != null)
+			histogram.record(nanos);
+	}
+
+	void sessionOpened() {
+		activeSessions.incrementAndGet();
+	}
+
+	void sessionClosed() {
+		activeSessions.decrementAndGet();
+	}
+
+	void addBytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void addBytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	void operationFailed() {
+		failedOperations.increment();
+	}
+
+	/**
+	 * Monta o resumo das metricas: os contadores e, para cada comando ja executado, a quantidade e os
+	 * percentis de sua latencia em milissegundos
+	 */
+	String dump() {
+		StringBuilder dump = new StringBuilder(String.format(
+			"Metrics: %d session(s), %.1f MB in, %.1f MB out, %d delivered, %.1f MB of attachments stored, %d failed%n",
+			getActiveSessions(), getBytesIn() / (1024.0 * 1024), getBytesOut() / (1024.0 * 1024), getMessagesDelivered(),
+			getAttachmentBytesStored() / (1024.0 * 1024), getFailedOperations()));
+
+		for (LatencyHistogram histogram : commands) {
+			if (histogram != null && histogram.getCount() > 0)
+				dump.append(String.format("  %-16s %9d  mean %8.2f  p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms%n",
+					histogram.getCommand(), histogram.getCount(), histogram.getMeanMicros() / 1000,
+					histogram.getP50Micros() / 1000, histogram.getP90Micros() / 1000, histogram.getP99Micros() / 1000,
+					histogram.getP999Micros() / 1000, histogram.getMaxMicros() / 1000));
+		}
+
+		return dump.toString();
+	}
+
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getMessagesDelivered() {
+		return storage.getDeliveryQueue().getDeliveredMessages();
+	}
+
+	public long getAttachmentBytesStored() {
+		return storage.getBlobStore().getStoredBytes();
+	}
+
+	public long getFailedOperations() {
+		return failedOperations.sum();
+	}
+
+	public long getDroppedLogEvents() {
+		return ServerLog.getDropped();
+	}
+}
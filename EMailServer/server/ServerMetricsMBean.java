@@ -0,0 +1,27 @@
+package server;
+
+/**
+ * Contadores gerais do servidor (ver classe ServerMetrics), publicados por JMX como server:type=ServerMetrics:
+ * 	ActiveSessions - conexoes de clientes abertas no momento, logadas ou nao
+ * 	BytesIn e BytesOut - bytes dos quadros recebidos dos clientes e enviados a eles, com os cabecalhos
+ * 	MessagesDelivered - mensagens gravadas nas caixas postais pela fila de entrega (ver DeliveryQueue)
+ * 	AttachmentBytesStored - bytes de anexos novos gravados no disco (os ja existentes nao sao regravados,
+ * 		ver BlobStore)
+ * 	FailedOperations - comandos respondidos com erro (quadro ERROR ou e-mail recusado de um lote)
+ * 	DroppedLogEvents - registros de log descartados por falta de espaco no buffer do log (ver ServerLog)
+ */
+public interface ServerMetricsMBean {
+	int getActiveSessions();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getMessagesDelivered();
+
+	long getAttachmentBytesStored();
+
+	long getFailedOperations();
+
+	long getDroppedLogEvents();
+}
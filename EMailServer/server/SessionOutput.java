@@ -0,0 +1,64 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Interface que abstrai o envio de quadros do servidor para um cliente, implementada por cada motor de
+ * sessao: UserThread escreve diretamente no socket por meio de uma FrameCodec, enquanto NioSession enfileira
+ * os quadros para escrita quando o canal estiver pronto.
+ */
+interface SessionOutput {
+	/**
+	 * Acrescenta um quadro a saida da sessao, sem garantir que ja tenha sido transmitido
+	 */
+	void writeFrame(byte type, int requestId, byte[] payload) throws IOException;
+
+	/**
+	 * Acrescenta um quadro cujo conteudo e apenas o trecho indicado do array, que pode ser reaproveitado
+	 * pelo chamador assim que o metodo retornar
+	 */
+	void writeFrame(byte type, int requestId, byte[] payload, int offset, int length) throws IOException;
+
+	/**
+	 * Acrescenta o conteudo do arquivo, a partir de sua posicao atual, como uma sequencia de quadros do tipo
+	 * informado de no maximo Frame.CHUNK_SIZE bytes. Os bytes seguem do arquivo para o socket por
+	 * FileChannel.transferTo, sem passar pelo heap, e o arquivo e fechado pela saida ao fim da transmissao.
+	 */
+	void transferFile(byte type, int requestId, FileChannel file) throws IOException;
+
+	/**
+	 * Informa se a saida ja acumula bytes demais aguardando transmissao, caso em que a UserSession suspende
+	 * o envio de anexos ate ser retomada (ver UserSession.continueTransfer)
+	 */
+	boolean isCongested();
+
+	/**
+	 * Transmite ao cliente os quadros acumulados
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Agenda uma tarefa, vinda de outra thread (como as threads de entrega), para ser executada pelo motor
+	 * na thread que conduz a sessao, entre um comando e outro, de modo que os quadros escritos pela tarefa
+	 * nunca se misturem as respostas de um comando. Os quadros escritos sao transmitidos ao fim da tarefa.
+	 */
+	void execute(Runnable task);
+
+	/**
+	 * Executa uma operacao que aguarda o disco (gravacao de mensagens e anexos, leitura de caixas postais e
+	 * de mensagens) e, em seguida, sua continuacao, que escreve as respostas na thread que conduz a sessao.
+	 * A UserThread executa ambas na propria thread, que pode bloquear; a NioSession executa a operacao em
+	 * uma thread de trabalho do servidor e a continuacao de volta no laco de eventos, sem tratar outros
+	 * quadros da sessao nesse intervalo. Por isso a operacao pode alterar o estado da sessao, mas nunca
+	 * escreve quadros.
+	 */
+	void executeBlocking(Runnable operation, Continuation continuation) throws IOException;
+
+	/**
+	 * Continuacao de uma operacao em disco (ver executeBlocking)
+	 */
+	interface Continuation {
+		void run() throws IOException;
+	}
+}
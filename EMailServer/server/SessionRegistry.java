@@ -0,0 +1,100 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Classe responsavel pelo registro das sessoes logadas no servidor, por e-mail do usuario, substituindo o
+ * antigo conjunto de e-mails conectados.
+ * Um mesmo usuario pode manter varias sessoes abertas ao mesmo tempo (por exemplo, em duas maquinas), e so e
+ * considerado desconectado quando a ultima delas termina; antes, o logoff de qualquer uma delas retirava o
+ * usuario do conjunto enquanto as demais continuavam abertas.
+ * O conjunto de sessoes de cada usuario e imutavel e substituido por inteiro a cada login ou logoff, por
+ * meio de ConcurrentHashMap.compute, que altera apenas a entrada do proprio usuario. Assim a consulta das
+ * sessoes de um destinatario (ver sessions) e feita em tempo constante, sem bloqueio, e devolve uma copia
+ * estavel mesmo que o usuario faca login ou logoff em seguida.
+ * Como atributos, possui:
+ * 	ConcurrentMap<String, Set<UserSession>> sessions - sessoes abertas de cada usuario logado
+ * 	AtomicInteger onlineUsers - quantidade de usuarios com ao menos uma sessao aberta
+ * 	AtomicInteger openSessions - quantidade de sessoes logadas
+ */
+class SessionRegistry {
+	private ConcurrentMap<String, Set<UserSession>> sessions = new ConcurrentHashMap<>();
+	private AtomicInteger onlineUsers = new AtomicInteger();
+	private AtomicInteger openSessions = new AtomicInteger();
+
+	/**
+	 * Registra uma sessao do usuario, retornando se ela e a primeira sessao aberta por ele
+	 */
+	boolean register(String userEMail, UserSession session) {
+		boolean[] firstSession = new boolean[1];
+
+		sessions.compute(userEMail, (user, userSessions) -> {
+			if (userSessions == null) {
+				firstSession[0] = true;
+				return Set.of(session);
+			}
+
+			if (userSessions.contains(session))
+				return userSessions;
+
+			Set<UserSession> updated = new HashSet<>(userSessions);
+			updated.add(session);
+			return Set.copyOf(updated);
+		});
+
+		if (firstSession[0])
+			onlineUsers.incrementAndGet();
+		openSessions.incrementAndGet();
+		return firstSession[0];
+	}
+
+	/**
+	 * Remove uma sessao do usuario, retornando se ela constava no registro
+	 */
+	boolean unregister(String userEMail, UserSession session) {
+		boolean[] removed = new boolean[1];
+		boolean[] lastSession = new boolean[1];
+
+		sessions.computeIfPresent(userEMail, (user, userSessions) -> {
+			if (!userSessions.contains(session))
+				return userSessions;
+
+			removed[0] = true;
+			if (userSessions.size() == 1) {
+				lastSession[0] = true;
+				return null;
+			}
+
+			Set<UserSession> updated = new HashSet<>(userSessions);
+			updated.remove(session);
+			return Set.copyOf(updated);
+		});
+
+		if (lastSession[0])
+			onlineUsers.decrementAndGet();
+		if (removed[0])
+			openSessions.decrementAndGet();
+		return removed[0];
+	}
+
+	/**
+	 * Retorna as sessoes abertas do usuario, ou um conjunto vazio caso ele nao esteja conectado
+	 */
+	Set<UserSession> sessions(String userEMail) {
+		return sessions.getOrDefault(userEMail, Set.of());
+	}
+
+	boolean isOnline(String userEMail) {
+		return sessions.containsKey(userEMail);
+	}
+
+	int getOnlineUsers() {
+		return onlineUsers.get();
+	}
+
+	int getOpenSessions() {
+		return openSessions.get();
+	}
+}
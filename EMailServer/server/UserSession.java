@@ -0,0 +1,943 @@
+package server;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import client.Compression;
+import client.EMailMessage;
+import client.EMailMessageCodec;
+import client.Frame;
+import client.FrameCodec;
+import client.MessageHeader;
+import client.MessageParts;
+
+/**
+ * Classe responsavel por processar os comandos enviados por um usuario e responde-los, independentemente
+ * do motor que conduz a conexao (UserThread ou NioSession). Cada motor apenas le os quadros do socket e os
+ * entrega a esta classe, que por sua vez escreve as respostas na SessionOutput do motor.
+ * Como atributos, possui:
+ * 	EMailServer server - instancia que referencia a efetiva classe do servidor
+ * 	SessionOutput output - saida de quadros do motor que conduz esta sessao
+ * 	String userEMail - e-mail do usuario, conhecido apos o quadro de login
+ * 	ByteBuffer chunkBuffer - buffer de tamanho fixo (Frame.CHUNK_SIZE) utilizado na leitura dos anexos
+ * 		enviados ao cliente no modo de download bufferizado, alocado somente no primeiro download que o utilize
+ * 	upload* - estado do e-mail cujo anexo esta sendo recebido em pedacos (ver BlobStore.Upload)
+ * 	transfer* - estado do download em andamento, retomado a cada chamada de continueTransfer
+ * 	String pushMode - como a sessao e avisada das mensagens que chegam a caixa postal do usuario: "off",
+ * 		"header" (padrao) ou "message" (ver pushNewMail)
+ * 	MessageParts messageParts - partes recebidas de um objeto de e-mail maior que um quadro
+ * 	Compression compression - compressor do conteudo dos quadros enviados e descompressor dos recebidos
+ * 	boolean compressing - se o cliente negociou a compressao (ver negotiateCompression)
+ * 	ServerMetrics metrics - metricas do servidor, alimentadas com a latencia de cada comando, os bytes
+ * 		trafegados e as respostas de erro (ver recordCommand e writeError)
+ * 	long commandStart - instante da chegada do quadro do comando atual
+ * 	boolean commandPending - se o comando atual continua apos o seu quadro (download em transmissao, anexo
+ * 		ainda por receber ou envio aguardando o journal), caso em que sua latencia e registrada somente ao fim
+ * 	ServerEvents.FetchMessages transferEvent - evento JFR do download em andamento, somente com a gravacao
+ * 		habilitada (ver classe ServerEvents)
+ * 	boolean blocking - se a sessao aguarda uma operacao em disco executada pelo motor (ver executeBlocking)
+ */
+class UserSession {
+	private static final boolean ZERO_COPY_DOWNLOAD = !"buffered".equals(System.getProperty("email.download"));
+
+	private EMailServer server;
+	private MeteredOutput output;
+	private String userEMail;
+	private ByteBuffer chunkBuffer;
+
+	private EMailMessage uploadMessage;
+	private int uploadRequestId;
+	private BlobStore.Upload upload;
+	private IOException uploadError;
+
+	private byte transferCommand;
+	private List<Mailbox.Entry> transferMessages;
+	private List<MessageHeader> transferHeaders;
+	private int transferIndex;
+	private long transferUid;
+	private int transferRequestId;
+	private FileChannel transferAttachment;
+	private boolean transferCompressed;
+	private ServerEvents.FetchMessages transferEvent;
+
+	private volatile String pushMode = "header";
+
+	private MessageParts messageParts = new MessageParts();
+	private Compression compression = new Compression();
+	private boolean compressing;
+
+	private ServerMetrics metrics;
+	private long commandStart;
+	private boolean commandPending;
+	private long uploadStart;
+	private long transferStart;
+	private boolean closed;
+	private boolean blocking;
+
+	UserSession(EMailServer server, SessionOutput output) {
+		this.server = server;
+		this.metrics = server.getMetrics();
+		this.output = new MeteredOutput(output, metrics);
+		metrics.sessionOpened();
+	}
+
+	String getUserEMail() {
+		return this.userEMail;
+	}
+
+	/**
+	 * Logica principal de uma sessao de usuario:
+	 * O primeiro quadro enviado por um novo usuario e o de login, contendo seu e-mail, que e informado ao
+	 * 	servidor para que este mantenha controle dos usuarios conectados, bem como e criado um diretorio
+	 * 	especifico para esse usuario na particao raiz de usuarios no servidor.
+	 * Quadro SEND_MESSAGE - carrega o objeto de e-mail, que e gravado em seu respectivo diretorio no
+	 * 	servidor. Como resposta, e enviado um quadro STATUS assim que o envio estiver gravado no journal
+	 * 	(ver acknowledge), ou um quadro ERROR caso o e-mail nao possa ser gravado.
+	 * Quadro SEND_BATCH - carrega um lote de objetos de e-mail, gravados de uma so vez. Como resposta, e
+	 * 	enviado um unico quadro BATCH_STATUS com o resultado de cada e-mail do lote, tambem assim que o
+	 * 	lote estiver gravado no journal.
+	 * Quadro RECEIVE_MESSAGES - as mensagens recebidas apos o uid informado pelo cliente (e seus anexos,
+	 * 	caso existam) sao transmitidas, uma por quadro MESSAGE, seguidas de um quadro END_OF_MESSAGES com
+	 * 	o uid a ser informado no proximo download. Caso haja erro, e enviado um quadro ERROR, cujo texto e
+	 * 	impresso no terminal do cliente.
+	 * Quadro LIST_MESSAGES - com o mesmo cursor opcional, as mensagens recebidas sao apenas listadas, um
+	 * 	quadro MESSAGE_HEADER por mensagem, seguidos de um quadro END_OF_LIST.
+	 * Quadros FETCH_MESSAGE e FETCH_ATTACHMENT - uma unica mensagem, identificada pelo uid listado, e
+	 * 	transmitida como no download, respectivamente sem e com seu anexo.
+	 * Quadro PUSH_MODE - escolhe como a sessao e avisada das novas mensagens (ver pushNewMail), sendo
+	 * 	respondido com um quadro STATUS.
+	 * Quadro COMPRESSION - negocia a compressao do conteudo dos quadros (ver negotiateCompression).
+	 * Quadro LOGOFF - e respondido com o mesmo tipo de quadro para que a thread de leitura do cliente
+	 * 	possa ter seu encerramento limpo.
+	 * As respostas repetem o identificador do quadro a que respondem. Um objeto de e-mail enviado em partes
+	 * (ver classe MessageParts) e tratado quando chega seu ultimo quadro, e um que exceda
+	 * Frame.MAX_MESSAGE_SIZE e respondido com um quadro ERROR. Quadros que chegam comprimidos sao
+	 * descomprimidos antes de tratados. Retorna false quando a sessao deve ser encerrada.
+	 * A latencia de cada comando, da chegada do quadro a escrita da ultima resposta, e registrada nas
+	 * metricas do servidor (ver classe ServerMetrics).
+	 * Os comandos que leem ou gravam em disco o fazem por meio de executeBlocking, de modo que, no motor NIO,
+	 * o laco de eventos nao aguarde o disco.
+	 */
+	boolean handleFrame(Frame frame) throws IOException {
+		commandStart = System.nanoTime();
+		commandPending = false;
+		metrics.addBytesIn(Frame.HEADER_SIZE + frame.getPayload().length);
+
+		try {
+			frame = messageParts.add(frame);
+		}
+		catch (ProtocolException ex) {
+			writeError(frame.getRequestId(), ex.getMessage());
+			output.flush();
+			return true;
+		}
+
+		if (frame == null)
+			return true;
+
+		frame = compression.decompress(frame);
+		int requestId = frame.getRequestId();
+
+		if (frame.getType() == Frame.LOGIN)
+			login(requestId, frame.getText());
+
+		else if (frame.getType() == Frame.COMPRESSION)
+			negotiateCompression(requestId, frame.getText());
+
+		else if (frame.getType() == Frame.LOGOFF) {
+			output.writeFrame(Frame.LOGOFF, requestId, new byte[0]);
+			output.flush();
+			recordCommand(Frame.LOGOFF, commandStart);
+			return false;
+		}
+
+		else if (userEMail == null)
+			writeError(requestId, "Please login before sending commands");
+
+		else if (frame.getType() == Frame.SEND_MESSAGE) {
+			try {
+				receiveMessage(frame);
+			}
+			catch (ClassNotFoundException ex) {
+				writeError(requestId, "Object class not found: " + ex.getMessage());
+			}
+			catch (IOException ex) {
+				writeError(requestId, "Error while saving the e-mail: " + ex.getMessage());
+			}
+		}
+
+		else if (frame.getType() == Frame.SEND_BATCH)
+			receiveBatch(frame);
+
+		else if (frame.getType() == Frame.ATTACHMENT_CHUNK)
+			receiveAttachmentChunk(frame);
+
+		else if (frame.getType() == Frame.ATTACHMENT_END)
+			finishUpload(requestId);
+
+		else if (frame.getType() == Frame.RECEIVE_MESSAGES)
+			fetchMessages(requestId, frame.getUid());
+
+		else if (frame.getType() == Frame.LIST_MESSAGES)
+			listMessages(requestId, frame.getUid());
+
+		else if (frame.getType() == Frame.FETCH_MESSAGE || frame.getType() == Frame.FETCH_ATTACHMENT)
+			fetchMessage(requestId, frame.getType(), frame.getUid());
+
+		else if (frame.getType() == Frame.PUSH_MODE)
+			setPushMode(requestId, frame.getText());
+
+		else
+			writeError(requestId, "Unknown command: " + frame.getType());
+
+		output.flush();
+
+		if (!commandPending)
+			recordCommand(frame.getType(), commandStart);
+
+		return true;
+	}
+
+	/**
+	 * Registra a latencia de um comando iniciado no instante start; os quadros que nao sao comandos, como os
+	 * pedacos de anexo, sao ignorados pelas metricas
+	 */
+	private void recordCommand(byte command, long start) {
+		metrics.recordCommand(command, System.nanoTime() - start);
+	}
+
+	/**
+	 * Responde ao comando com um erro, em um quadro ERROR, contando-o nas metricas do servidor
+	 */
+	private void writeError(int requestId, String message) throws IOException {
+		output.writeFrame(Frame.ERROR, requestId, FrameCodec.text(message));
+		metrics.operationFailed();
+	}
+
+	/**
+	 * Executa uma operacao em disco pelo motor da sessao (ver SessionOutput.executeBlocking) e entrega seu
+	 * resultado, ou o erro de I/O ocorrido, a reply, na thread que conduz a sessao
+	 */
+	private <T> void executeBlocking(BlockingOperation<T> operation, BlockingReply<T> reply) throws IOException {
+		BlockingResult<T> result = new BlockingResult<T>();
+		blocking = true;
+
+		output.executeBlocking(() -> {
+			try {
+				result.value = operation.run();
+			}
+			catch (IOException ex) {
+				result.error = ex;
+			}
+		}, () -> {
+			blocking = false;
+			reply.write(result.value, result.error);
+		});
+	}
+
+	/**
+	 * Grava os e-mails pelo MailStorage (ver MailStorage.storeMessages) e responde ao envio quando a
+	 * gravacao for concluida. A gravacao do conteudo das mensagens e feita por executeBlocking, e a resposta
+	 * e escrita pelo motor na thread da propria sessao (ver SessionOutput.execute), de modo que nem a sessao
+	 * nem, no motor NIO, o laco de eventos que a conduz aguardem o fsync do journal. Enquanto isso, os
+	 * quadros seguintes do cliente continuam sendo tratados. A latencia do comando, iniciado no instante
+	 * start, e registrada com a resposta.
+	 */
+	private void acknowledge(byte command, long start, List<EMailMessage> eMailMessages, StoreReply reply) throws IOException {
+		String sender = userEMail;
+		commandPending = true;
+
+		executeBlocking(() -> server.getStorage().storeMessages(sender, eMailMessages), (stored, error) ->
+			stored.thenAccept(errors -> output.execute(() -> {
+				try {
+					reply.write(errors);
+					recordCommand(command, start);
+				}
+				catch (IOException ex) {
+					ServerLog.warn("Error answering {}: {}", userEMail, ex.getMessage());
+				}
+			})));
+	}
+
+	/**
+	 * Responde a um SEND_MESSAGE com o resultado da gravacao do e-mail: STATUS caso tenha sido gravado, ERROR
+	 * caso contrario
+	 */
+	private void writeSendStatus(int requestId, IOException error) throws IOException {
+		if (error != null)
+			writeError(requestId, "Error while saving the e-mail: " + error.getMessage());
+		else
+			output.writeFrame(Frame.STATUS, requestId, FrameCodec.text("E-mail sent to server succesfully!"));
+	}
+
+	/**
+	 * Registra a sessao do usuario no servidor e cria seu diretorio, caso ainda nao exista. Um novo login na
+	 * mesma sessao substitui o usuario anterior. O e-mail nomeia a caixa postal e e gravado como remetente
+	 * nas entradas das caixas postais dos destinatarios, portanto um e-mail acima do limite de
+	 * MailStorage.checkAddress e recusado com um quadro ERROR, sem alterar o login da sessao.
+	 */
+	private void login(int requestId, String userEMail) throws IOException {
+		try {
+			MailStorage.checkAddress(userEMail);
+		}
+		catch (ProtocolException ex) {
+			writeError(requestId, ex.getMessage());
+			return;
+		}
+
+		if (this.userEMail != null)
+			server.removeUserSession(this.userEMail, this);
+
+		this.userEMail = userEMail;
+		server.addUserSession(userEMail, this);
+
+		executeBlocking(() -> {
+			server.makeUserDirectory(userEMail);
+			return null;
+		}, (ignored, error) -> {});
+	}
+
+	/**
+	 * Escolhe, entre os modos de compressao oferecidos pelo cliente, o modo da conexao, informado ao cliente
+	 * em um quadro COMPRESSION. Os quadros de objetos de e-mail e de anexos escritos a partir dai sao
+	 * comprimidos (ver writeCompressible).
+	 */
+	private void negotiateCompression(int requestId, String offered) throws IOException {
+		String mode = Compression.choose(offered);
+
+		output.writeFrame(Frame.COMPRESSION, requestId, FrameCodec.text(mode));
+		compressing = mode.equals(Compression.DEFLATE);
+	}
+
+	/**
+	 * Acrescenta a saida da sessao um quadro cujo conteudo e comprimido caso a compressao tenha sido
+	 * negociada e valha a pena (ver Compression.compress). Retorna se o quadro foi comprimido: os pedacos
+	 * seguintes de um anexo que nao encolheu sao enviados sem tentar a compressao. Um conteudo maior que um
+	 * quadro, como o de um e-mail de corpo muito grande, e dividido em partes (ver MessageParts.write).
+	 */
+	private boolean writeCompressible(byte type, int requestId, byte[] payload, int offset, int length, boolean compress) throws IOException {
+		byte[] compressed = compressing && compress ? compression.compress(payload, offset, length) : null;
+
+		if (compressed == null)
+			MessageParts.write(output::writeFrame, type, requestId, payload, offset, length);
+		else
+			MessageParts.write(output::writeFrame, (byte) (type | Frame.COMPRESSED), requestId, compressed, 0, compressed.length);
+
+		return compressed != null;
+	}
+
+	private void writeMessage(int requestId, EMailMessage emailMessage) throws IOException {
+		byte[] payload = EMailMessageCodec.encode(emailMessage);
+		writeCompressible(Frame.MESSAGE, requestId, payload, 0, payload.length, true);
+	}
+
+	/**
+	 * Remonta o objeto de e-mail carregado pelo quadro e delega sua gravacao ao MailStorage do servidor (ver
+	 * classe MailStorage para uma descricao mais detalhada da sintaxe dos arquivos gravados).
+	 * Caso o e-mail possua anexo e o objeto nao carregue seu conteudo, e iniciado o upload do anexo no
+	 * BlobStore e a gravacao da mensagem aguarda o quadro ATTACHMENT_END,
+	 * e a resposta e enviada somente ao fim do upload. O hash informado pelo cliente permite
+	 * ao BlobStore dispensar a gravacao de um anexo que ja exista no servidor. Um anexo em linha acima de
+	 * Frame.MAX_INLINE_ATTACHMENT e recusado, de modo que o anexo so ocupe a memoria da sessao em pedacos.
+	 * Um novo upload iniciado antes do fim do anterior descarta este, cujo comando e respondido com um
+	 * quadro ERROR, para que o cliente nao fique aguardando sua resposta.
+	 */
+	void receiveMessage(Frame frame) throws IOException, ClassNotFoundException {
+		ServerEvents.ReceiveMessage event = new ServerEvents.ReceiveMessage();
+		event.begin();
+
+		EMailMessage eMailMessage = EMailMessageCodec.decode(frame.getPayload());
+		EMailMessageCodec.checkInlineAttachment(eMailMessage);
+
+		if (event.shouldCommit()) {
+			event.mailbox = userEMail;
+			event.bytes = frame.getPayload().length;
+			event.attachment = eMailMessage.hasAttachment();
+		}
+
+		if (!eMailMessage.hasAttachment() || eMailMessage.getAttachmentContent() != null) {
+			int requestId = frame.getRequestId();
+			acknowledge(Frame.SEND_MESSAGE, commandStart, List.of(eMailMessage), errors -> writeSendStatus(requestId, errors.get(0)));
+			event.commit();
+			return;
+		}
+
+		if (uploadMessage != null) {
+			writeError(uploadRequestId, "Attachment upload abandoned by a new e-mail");
+			recordCommand(Frame.SEND_MESSAGE, uploadStart);
+		}
+
+		abortUpload();
+		uploadMessage = eMailMessage;
+		uploadRequestId = frame.getRequestId();
+		uploadStart = commandStart;
+		commandPending = true;
+
+		executeBlocking(() -> server.getStorage().getBlobStore().beginUpload(eMailMessage.getAttachmentHash()), (started, error) -> {
+			upload = started;
+			uploadError = error;
+		});
+
+		event.commit();
+	}
+
+	/**
+	 * Remonta os objetos de e-mail carregados por um quadro SEND_BATCH e delega sua gravacao, de uma so vez,
+	 * ao MailStorage do servidor (ver MailStorage.storeMessages), que agrupa as gravacoes de todo o lote.
+	 * Os anexos de um lote devem viajar em linha, dentro do proprio objeto de e-mail, ja que os quadros
+	 * ATTACHMENT_CHUNK seguintes nao teriam como indicar a qual e-mail do lote pertencem; por isso, cada
+	 * anexo do lote e limitado a Frame.MAX_INLINE_ATTACHMENT bytes, e o lote a Frame.MAX_BATCH_SIZE e-mails.
+	 * Um e-mail que nao possa ser decodificado ou gravado e reportado no quadro BATCH_STATUS sem impedir a
+	 * gravacao dos demais; somente um lote cuja estrutura esteja corrompida e respondido com um quadro ERROR.
+	 * O quadro BATCH_STATUS segue quando o lote estiver gravado no journal (ver acknowledge).
+	 */
+	private void receiveBatch(Frame frame) throws IOException {
+		List<byte[]> payloads;
+
+		try {
+			payloads = EMailMessageCodec.decodeBatch(frame.getPayload());
+		}
+		catch (ProtocolException ex) {
+			writeError(frame.getRequestId(), "Error while reading the batch: " + ex.getMessage());
+			return;
+		}
+
+		if (payloads.size() > Frame.MAX_BATCH_SIZE) {
+			writeError(frame.getRequestId(), "Too many e-mails in a batch: " + payloads.size() + " (limit: " + Frame.MAX_BATCH_SIZE + ")");
+			return;
+		}
+
+		List<String> errors = new ArrayList<String>(Collections.nCopies(payloads.size(), (String) null));
+		List<EMailMessage> eMailMessages = new ArrayList<EMailMessage>(payloads.size());
+		List<Integer> positions = new ArrayList<Integer>(payloads.size());
+
+		for (int i = 0; i < payloads.size(); i++) {
+			try {
+				EMailMessage eMailMessage = EMailMessageCodec.decode(payloads.get(i));
+
+				if (eMailMessage.hasAttachment() && eMailMessage.getAttachmentContent() == null)
+					errors.set(i, "Attachment must be sent inline in a batch");
+				else {
+					EMailMessageCodec.checkInlineAttachment(eMailMessage);
+					eMailMessages.add(eMailMessage);
+					positions.add(i);
+				}
+			}
+			catch (ClassNotFoundException ex) {
+				errors.set(i, "Object class not found: " + ex.getMessage());
+			}
+			catch (IOException ex) {
+				errors.set(i, "Error while reading the e-mail: " + ex.getMessage());
+			}
+		}
+
+		acknowledge(Frame.SEND_BATCH, commandStart, eMailMessages, storeErrors -> {
+			for (int i = 0; i < storeErrors.size(); i++) {
+				if (storeErrors.get(i) != null)
+					errors.set(positions.get(i), "Error while saving the e-mail: " + storeErrors.get(i).getMessage());
+			}
+
+			for (String error : errors) {
+				if (error != null)
+					metrics.operationFailed();
+			}
+
+			output.writeFrame(Frame.BATCH_STATUS, frame.getRequestId(), EMailMessageCodec.encodeBatchStatus(errors));
+		});
+	}
+
+	/**
+	 * Entrega um pedaco do anexo ao upload em andamento. Caso a gravacao falhe, os pedacos seguintes sao
+	 * descartados e o erro e informado ao cliente ao fim do upload. Um pedaco sem upload em andamento, ou
+	 * com o identificador de outro comando, e recusado.
+	 */
+	private void receiveAttachmentChunk(Frame frame) throws IOException {
+		if (uploadMessage == null || frame.getRequestId() != uploadRequestId) {
+			writeError(frame.getRequestId(), "Unexpected attachment chunk");
+			return;
+		}
+
+		if (uploadError != null)
+			return;
+
+		BlobStore.Upload current = upload;
+
+		executeBlocking(() -> {
+			current.write(frame.getPayload());
+			return null;
+		}, (ignored, error) -> uploadError = error);
+	}
+
+	/**
+	 * Conclui o upload do anexo: com o blob completo, as mensagens sao gravadas referenciando sua chave e o
+	 * resultado e enviado ao cliente em um quadro STATUS (ver acknowledge). A latencia do envio e registrada
+	 * desde a chegada do quadro SEND_MESSAGE. Como os pedacos, um fim de anexo de outro comando e recusado.
+	 * O blob e concluido, com seu fsync, por executeBlocking.
+	 */
+	private void finishUpload(int requestId) throws IOException {
+		if (uploadMessage == null || requestId != uploadRequestId) {
+			writeError(requestId, "Unexpected end of attachment");
+			return;
+		}
+
+		BlobStore.Upload current = uploadError == null ? upload : null;
+		EMailMessage eMailMessage = uploadMessage;
+
+		executeBlocking(() -> current != null ? current.commit() : null, (key, error) -> {
+			if (error != null)
+				uploadError = error;
+
+			if (uploadError != null) {
+				writeSendStatus(requestId, uploadError);
+				recordCommand(Frame.SEND_MESSAGE, uploadStart);
+			}
+			else {
+				eMailMessage.setAttachmentHash(key);
+				acknowledge(Frame.SEND_MESSAGE, uploadStart, List.of(eMailMessage), errors -> writeSendStatus(requestId, errors.get(0)));
+			}
+
+			abortUpload();
+		});
+	}
+
+	/**
+	 * Descarta o upload em andamento, caso exista, removendo o arquivo temporario do anexo (apos um
+	 * upload concluido, nao ha mais nada a remover)
+	 */
+	private void abortUpload() {
+		if (upload != null)
+			upload.abort();
+
+		uploadMessage = null;
+		upload = null;
+		uploadError = null;
+	}
+
+	/**
+	 * Inicia o download das mensagens recebidas pelo usuario apos o uid sinceUid, a serem baixadas em sua
+	 * maquina local (anexos inclusos). Ao fim do download o cliente recebe o uid da ultima mensagem
+	 * transmitida (ou o proprio sinceUid, caso nao haja mensagens novas), de modo que cada mensagem seja
+	 * baixada uma unica vez. A transmissao em si e feita por continueTransfer.
+	 */
+	void fetchMessages(int requestId, long sinceUid) throws IOException {
+		String user = userEMail;
+		commandPending = true;
+
+		executeBlocking(() -> server.getStorage().listReceivedMessages(user, sinceUid), (entries, error) -> {
+			if (error != null)
+				throw error;
+
+			startTransfer(requestId, Frame.RECEIVE_MESSAGES, entries, sinceUid);
+		});
+	}
+
+	/**
+	 * Inicia a listagem das mensagens recebidas pelo usuario apos o uid sinceUid. Os cabecalhos sao montados
+	 * pelo MailStorage a partir da caixa postal, sem abrir o conteudo das mensagens, e transmitidos por
+	 * continueTransfer como qualquer download, respeitando o congestionamento da saida.
+	 */
+	private void listMessages(int requestId, long sinceUid) throws IOException {
+		String user = userEMail;
+		commandPending = true;
+
+		executeBlocking(() -> {
+			List<Mailbox.Entry> entries = server.getStorage().listReceivedMessages(user, sinceUid);
+			transferHeaders = server.getStorage().loadHeaders(user, entries);
+			return entries;
+		}, (entries, error) -> {
+			if (error == null) {
+				startTransfer(requestId, Frame.LIST_MESSAGES, entries, sinceUid);
+				return;
+			}
+
+			transferHeaders = null;
+			writeError(requestId, "Error while listing your e-mails: " + error.getMessage());
+			recordCommand(Frame.LIST_MESSAGES, commandStart);
+		});
+	}
+
+	/**
+	 * Inicia o download de uma unica mensagem recebida pelo usuario, com o anexo somente no caso do quadro
+	 * FETCH_ATTACHMENT
+	 */
+	private void fetchMessage(int requestId, byte command, long uid) throws IOException {
+		String user = userEMail;
+		commandPending = true;
+
+		executeBlocking(() -> server.getStorage().findReceivedMessage(user, uid), (entry, error) -> {
+			if (error != null)
+				throw error;
+
+			if (entry == null) {
+				writeError(requestId, "E-mail not found: " + uid);
+				recordCommand(command, commandStart);
+				return;
+			}
+
+			startTransfer(requestId, command, List.of(entry), 0);
+		});
+	}
+
+	/**
+	 * Inicia um download, cuja latencia e registrada ao fim da transmissao (ver finishTransfer), assim como
+	 * o seu evento JFR, caso habilitado
+	 */
+	private void startTransfer(int requestId, byte command, List<Mailbox.Entry> entries, long sinceUid) throws IOException {
+		ServerEvents.FetchMessages event = new ServerEvents.FetchMessages();
+
+		if (event.isEnabled()) {
+			event.begin();
+			event.mailbox = userEMail;
+			event.command = command == Frame.RECEIVE_MESSAGES ? "receiveMessages" : command == Frame.LIST_MESSAGES ? "listMessages"
+				: command == Frame.FETCH_MESSAGE ? "fetchMessage" : "fetchAttachment";
+			event.sinceUid = sinceUid;
+			event.messageCount = entries.size();
+			event.bytes = -output.getWrittenBytes();
+			transferEvent = event;
+		}
+
+		transferStart = commandStart;
+		commandPending = true;
+		transferCommand = command;
+		transferMessages = entries;
+		transferIndex = 0;
+		transferUid = sinceUid;
+		transferRequestId = requestId;
+
+		continueTransfer();
+	}
+
+	boolean isTransferring() {
+		return transferMessages != null;
+	}
+
+	/**
+	 * Transmite o download em andamento enquanto a saida da sessao nao estiver congestionada. Cada e-mail,
+	 * remontado pelo MailStorage a partir de sua entrada na caixa postal do usuario, e enviado em um quadro
+	 * MESSAGE, seguido dos quadros ATTACHMENT_CHUNK de seu anexo e de ATTACHMENT_END. O quadro
+	 * END_OF_MESSAGES sinaliza o fim da transmissao, informando o uid do ultimo e-mail transmitido.
+	 * Por padrao o anexo e entregue a saida da sessao por transferFile, de modo que seus bytes seguem do
+	 * diretorio de arquivos para o socket por FileChannel.transferTo e apenas o cabecalho do e-mail e
+	 * codificado em Java. Com -Demail.download=buffered, ou quando o anexo e comprimido para o cliente (ver
+	 * classe Compression), o anexo e lido no buffer de tamanho fixo da sessao e copiado para cada quadro.
+	 * Na UserThread a escrita bloqueia ate haver espaco no socket e o download e transmitido por inteiro de
+	 * uma so vez; na NioSession a transmissao e suspensa quando a fila de saida enche e retomada pelo motor
+	 * a cada vez que a fila e esvaziada, de modo que nenhum anexo e mantido inteiro em memoria.
+	 * Na listagem, cada mensagem e enviada apenas como um quadro MESSAGE_HEADER e o fim e sinalizado por
+	 * END_OF_LIST. Nos downloads de uma unica mensagem, o quadro END_OF_MESSAGES e enviado sem conteudo,
+	 * para nao alterar o cursor de sincronizacao do cliente.
+	 * A leitura de cada mensagem e de cada pedaco de anexo bufferizado e feita por executeBlocking; no motor
+	 * NIO a transmissao e suspensa ate a leitura terminar, e retomada pelo motor como apos o congestionamento.
+	 */
+	void continueTransfer() throws IOException {
+		try {
+			while (isTransferring() && !output.isCongested() && !blocking) {
+				if (transferAttachment != null)
+					sendAttachmentChunk();
+
+				else if (transferHeaders != null && transferIndex < transferHeaders.size()) {
+					MessageHeader messageHeader = transferHeaders.get(transferIndex++);
+					output.writeFrame(Frame.MESSAGE_HEADER, transferRequestId, EMailMessageCodec.encodeHeader(messageHeader));
+					transferUid = messageHeader.getUid();
+				}
+
+				else if (transferHeaders == null && transferIndex < transferMessages.size())
+					loadMessage(transferMessages.get(transferIndex++));
+
+				else
+					finishTransfer();
+			}
+		}
+		catch (IOException ex) {
+			failTransfer(ex);
+		}
+	}
+
+	/**
+	 * Responde ao download com o erro ocorrido e o descarta
+	 */
+	private void failTransfer(IOException ex) throws IOException {
+		writeError(transferRequestId, "Error while downloading your e-mails: " + ex.getMessage());
+		abortTransfer();
+	}
+
+	/**
+	 * Remonta o e-mail de uma entrada da caixa postal e, caso o download inclua seu anexo, abre o arquivo do
+	 * anexo, antes do envio, para que um arquivo ausente resulte apenas no quadro ERROR, sem um e-mail
+	 * incompleto do lado do cliente
+	 */
+	private void loadMessage(Mailbox.Entry entry) throws IOException {
+		String user = userEMail;
+		boolean withAttachment = transferCommand != Frame.FETCH_MESSAGE;
+
+		executeBlocking(() -> {
+			EMailMessage emailMessage = server.getStorage().loadMessage(user, entry);
+
+			if (withAttachment && emailMessage.hasAttachment())
+				transferAttachment = FileChannel.open( server.getStorage().attachmentPath(emailMessage) );
+
+			return emailMessage;
+		}, (emailMessage, error) -> {
+			try {
+				if (error != null)
+					throw error;
+
+				sendMessage(emailMessage);
+				transferUid = entry.getUid();
+			}
+			catch (IOException ex) {
+				failTransfer(ex);
+			}
+		});
+	}
+
+	private void finishTransfer() throws IOException {
+		if (transferCommand == Frame.LIST_MESSAGES)
+			output.writeFrame(Frame.END_OF_LIST, transferRequestId, FrameCodec.uid(transferUid));
+		else if (transferCommand == Frame.RECEIVE_MESSAGES)
+			output.writeFrame(Frame.END_OF_MESSAGES, transferRequestId, FrameCodec.uid(transferUid));
+		else
+			output.writeFrame(Frame.END_OF_MESSAGES, transferRequestId, new byte[0]);
+
+		transferMessages = null;
+		transferHeaders = null;
+		recordCommand(transferCommand, transferStart);
+
+		if (transferEvent != null) {
+			transferEvent.bytes += output.getWrittenBytes();
+			transferEvent.commit();
+			transferEvent = null;
+		}
+	}
+
+	/**
+	 * Envia o quadro MESSAGE de um e-mail e, caso seu anexo tenha sido aberto por loadMessage, os quadros do
+	 * anexo
+	 */
+	private void sendMessage(EMailMessage emailMessage) throws IOException {
+		if (transferAttachment == null) {
+			writeMessage(transferRequestId, emailMessage);
+			return;
+		}
+
+		transferCompressed = compressing && Compression.isCompressible(emailMessage.getAttachmentName());
+		writeMessage(transferRequestId, emailMessage);
+
+		if (ZERO_COPY_DOWNLOAD && !transferCompressed) {
+			FileChannel attachment = transferAttachment;
+			transferAttachment = null;
+			output.transferFile(Frame.ATTACHMENT_CHUNK, transferRequestId, attachment);
+			output.writeFrame(Frame.ATTACHMENT_END, transferRequestId, new byte[0]);
+		}
+	}
+
+	private void sendAttachmentChunk() throws IOException {
+		if (chunkBuffer == null)
+			chunkBuffer = ByteBuffer.allocate(Frame.CHUNK_SIZE);
+
+		FileChannel attachment = transferAttachment;
+		chunkBuffer.clear();
+
+		executeBlocking(() -> attachment.read(chunkBuffer), (read, error) -> {
+			if (error != null)
+				failTransfer(error);
+
+			else if (read == -1) {
+				transferAttachment.close();
+				transferAttachment = null;
+				output.writeFrame(Frame.ATTACHMENT_END, transferRequestId, new byte[0]);
+			}
+			else
+				transferCompressed = writeCompressible(Frame.ATTACHMENT_CHUNK, transferRequestId, chunkBuffer.array(), 0, read, transferCompressed);
+		});
+	}
+
+	/**
+	 * Descarta o download em andamento, caso exista, fechando o anexo sendo lido
+	 */
+	private void abortTransfer() {
+		try {
+			if (transferAttachment != null)
+				transferAttachment.close();
+		}
+		catch (IOException ex) {
+			ServerLog.warn("Error closing the attachment file: {}", ex.getMessage());
+		}
+
+		transferAttachment = null;
+		transferMessages = null;
+		transferHeaders = null;
+		transferEvent = null;
+	}
+
+	private void setPushMode(int requestId, String pushMode) throws IOException {
+		if (!pushMode.equals("off") && !pushMode.equals("header") && !pushMode.equals("message")) {
+			writeError(requestId, "Unknown push mode: " + pushMode);
+			return;
+		}
+
+		this.pushMode = pushMode;
+		output.writeFrame(Frame.STATUS, requestId, FrameCodec.text("New e-mail alerts set to: " + pushMode));
+	}
+
+	/**
+	 * Avisa a sessao de uma mensagem que acaba de chegar a caixa postal do usuario, chamado pelas threads de
+	 * entrega (ver MailStorage.deliver). O aviso e escrito pelo motor na thread da propria sessao (ver
+	 * SessionOutput.execute), de modo que o cliente nao precise consultar a caixa postal periodicamente. No
+	 * modo "message", a mensagem e lida do disco aqui mesmo, pela thread de entrega, e nao pela sessao.
+	 */
+	void notifyNewMail(String recipient, MessageHeader messageHeader) {
+		String mode = pushMode;
+		EMailMessage emailMessage = null;
+
+		if (mode.equals("off"))
+			return;
+
+		if (mode.equals("message")) {
+			try {
+				Mailbox.Entry entry = server.getStorage().findReceivedMessage(recipient, messageHeader.getUid());
+
+				if (entry != null)
+					emailMessage = server.getStorage().loadMessage(recipient, entry);
+			}
+			catch (IOException ex) {
+				metrics.operationFailed();
+				ServerLog.warn("Error pushing the new e-mail to {}: {}", recipient, ex.getMessage());
+			}
+		}
+
+		EMailMessage pushedMessage = emailMessage;
+		output.execute(() -> pushNewMail(recipient, messageHeader, pushedMessage));
+	}
+
+	/**
+	 * Envia o quadro NEW_MAIL com o cabecalho da mensagem e, no modo "message", o quadro MESSAGE com a
+	 * propria mensagem, sem o anexo, como em /fetchMessage. Ambos usam o identificador 0, que nao pertence a
+	 * nenhum comando do cliente. O aviso e descartado caso a sessao ja nao pertenca ao destinatario.
+	 */
+	private void pushNewMail(String recipient, MessageHeader messageHeader, EMailMessage emailMessage) {
+		if (!recipient.equals(userEMail) || pushMode.equals("off"))
+			return;
+
+		try {
+			output.writeFrame(Frame.NEW_MAIL, 0, EMailMessageCodec.encodeHeader(messageHeader));
+
+			if (pushMode.equals("message") && emailMessage != null)
+				writeMessage(0, emailMessage);
+		}
+		catch (IOException ex) {
+			metrics.operationFailed();
+			ServerLog.warn("Error pushing the new e-mail to {}: {}", userEMail, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Encerra a sessao, removendo-a do registro de sessoes logadas mantido pelo servidor, descartando o
+	 * upload ou o download que estiver em andamento e liberando o compressor
+	 */
+	void close() {
+		abortUpload();
+		abortTransfer();
+		compression.end();
+
+		if (userEMail != null) {
+			server.removeUserSession(userEMail, this);
+			userEMail = null;
+		}
+
+		if (!closed) {
+			closed = true;
+			metrics.sessionClosed();
+		}
+	}
+
+	/**
+	 * Resposta a um envio, escrita com os erros da gravacao de cada e-mail (ver acknowledge)
+	 */
+	private interface StoreReply {
+		void write(List<IOException> errors) throws IOException;
+	}
+
+	/**
+	 * Operacao em disco executada por executeBlocking, possivelmente fora da thread da sessao
+	 */
+	private interface BlockingOperation<T> {
+		T run() throws IOException;
+	}
+
+	/**
+	 * Continuacao de executeBlocking, que recebe o resultado da operacao ou o erro ocorrido nela
+	 */
+	private interface BlockingReply<T> {
+		void write(T result, IOException error) throws IOException;
+	}
+
+	/**
+	 * Resultado de uma operacao de executeBlocking, entregue a sua continuacao
+	 */
+	private static class BlockingResult<T> {
+		private T value;
+		private IOException error;
+	}
+
+	/**
+	 * Saida de sessao que conta os bytes dos quadros escritos na saida do motor, a quem repassa cada chamada,
+	 * tanto nas metricas do servidor quanto no total da sessao (usado pelo evento do download)
+	 */
+	private static class MeteredOutput implements SessionOutput {
+		private SessionOutput output;
+		private ServerMetrics metrics;
+		private long writtenBytes;
+
+		MeteredOutput(SessionOutput output, ServerMetrics metrics) {
+			this.output = output;
+			this.metrics = metrics;
+		}
+
+		long getWrittenBytes() {
+			return this.writtenBytes;
+		}
+
+		public void writeFrame(byte type, int requestId, byte[] payload) throws IOException {
+			output.writeFrame(type, requestId, payload);
+			written(Frame.HEADER_SIZE + payload.length);
+		}
+
+		public void writeFrame(byte type, int requestId, byte[] payload, int offset, int length) throws IOException {
+			output.writeFrame(type, requestId, payload, offset, length);
+			written(Frame.HEADER_SIZE + length);
+		}
+
+		public void transferFile(byte type, int requestId, FileChannel file) throws IOException {
+			long length = file.size() - file.position();
+			long frames = (length + Frame.CHUNK_SIZE - 1) / Frame.CHUNK_SIZE;
+
+			output.transferFile(type, requestId, file);
+			written(length + frames * Frame.HEADER_SIZE);
+		}
+
+		private void written(long bytes) {
+			writtenBytes += bytes;
+			metrics.addBytesOut(bytes);
+		}
+
+		public boolean isCongested() {
+			return output.isCongested();
+		}
+
+		public void flush() throws IOException {
+			output.flush();
+		}
+
+		public void execute(Runnable task) {
+			output.execute(task);
+		}
+
+		public void executeBlocking(Runnable operation, Continuation continuation) throws IOException {
+			output.executeBlocking(operation, continuation);
+		}
+	}
+}